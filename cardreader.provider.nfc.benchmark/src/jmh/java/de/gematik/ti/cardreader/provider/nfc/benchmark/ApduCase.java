@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.cardreader.provider.nfc.benchmark;
+
+import java.security.GeneralSecurityException;
+
+import de.gematik.ti.cardreader.provider.api.command.CommandApdu;
+import de.gematik.ti.cardreader.provider.api.command.ResponseApdu;
+import de.gematik.ti.cardreader.provider.nfc.security.SessionCipher;
+import de.gematik.ti.cardreader.provider.nfc.security.SessionMac;
+import de.gematik.ti.cardreader.provider.nfc.security.tagobjects.TlvWriter;
+import de.gematik.ti.openhealthcard.events.response.entities.PaceKey;
+
+/**
+ * Builds the APDUs of the benchmarks: plain commands for the four APDU cases and secure messaging responses as a card would send them.
+ *
+ */
+public enum ApduCase {
+
+    /** |CLA|INS|P1|P2| */
+    CASE_1(false, false),
+    /** |CLA|INS|P1|P2|LE| */
+    CASE_2(false, true),
+    /** |CLA|INS|P1|P2|LC|DATA| */
+    CASE_3(true, false),
+    /** |CLA|INS|P1|P2|LC|DATA|LE| */
+    CASE_4(true, true);
+
+    /**
+     * Largest plain payload whose secure messaging wrapping still fits into an extended APDU
+     */
+    public static final int MAX_PAYLOAD = 65503;
+
+    private static final int CLA = 0x00;
+    private static final int INS_READ = 0xB0;
+    private static final int INS_UPDATE = 0xD6;
+    private static final int BLOCK_SIZE = 16;
+    private static final int MAC_SIZE = 8;
+    private static final int STATUS_SIZE = 2;
+    private static final int DO_87_TAG = 0x87;
+    private static final int DO_99_TAG = 0x99;
+    private static final int DO_8E_TAG = 0x8E;
+    private static final int SW_SUCCESS = 0x9000;
+    private static final int BYTE_VALUE = 8;
+
+    private final boolean commandData;
+    private final boolean responseData;
+
+    ApduCase(final boolean commandData, final boolean responseData) {
+        this.commandData = commandData;
+        this.responseData = responseData;
+    }
+
+    /**
+     * Returns the plain command for the payload. Case 3 and 4 send at least one byte, case 2 and 4 expect payload bytes or the short wildcard Le for payload 0.
+     *
+     * @param payload
+     *            payload size, larger values are limited to {@link #MAX_PAYLOAD}
+     * @return plain command
+     */
+    public CommandApdu createCommand(final int payload) {
+        int size = Math.min(payload, MAX_PAYLOAD);
+        int ne = size == 0 ? CommandApdu.EXPECTED_LENGTH_WILDCARD_SHORT : size;
+        if (commandData && responseData) {
+            return new CommandApdu(CLA, INS_UPDATE, 0x00, 0x00, createData(Math.max(size, 1)), ne);
+        } else if (commandData) {
+            return new CommandApdu(CLA, INS_UPDATE, 0x00, 0x00, createData(Math.max(size, 1)));
+        } else if (responseData) {
+            return new CommandApdu(CLA, INS_READ, 0x00, 0x00, ne);
+        }
+        return new CommandApdu(CLA, INS_READ, 0x00, 0x00);
+    }
+
+    /**
+     * Returns the encrypted response a card sends for the command of this case
+     *
+     * @param paceKey
+     *            session keys of the card
+     * @param ssc
+     *            send sequence counter of the response
+     * @param payload
+     *            payload size, larger values are limited to {@link #MAX_PAYLOAD}
+     * @return encrypted response
+     * @throws GeneralSecurityException
+     *             if an error occurred
+     */
+    public ResponseApdu createResponse(final PaceKey paceKey, final byte[] ssc, final int payload) throws GeneralSecurityException {
+        int size = responseData ? Math.min(payload, MAX_PAYLOAD) : 0;
+        int paddedLength = size > 0 ? TlvWriter.getPaddedLength(size, BLOCK_SIZE) : 0;
+        int dataObjectLength = size > 0 ? TlvWriter.getEncodedLength(1 + paddedLength) : 0;
+        TlvWriter writer = new TlvWriter(dataObjectLength + TlvWriter.getEncodedLength(STATUS_SIZE) + TlvWriter.getEncodedLength(MAC_SIZE) + STATUS_SIZE);
+
+        if (size > 0) {
+            writer.writeTag(DO_87_TAG);
+            writer.writeLength(1 + paddedLength);
+            writer.writeByte(1);
+            int offset = writer.writePadded(createData(size), BLOCK_SIZE);
+            new SessionCipher(paceKey.getEnc()).encrypt(ssc, writer.getBuffer(), offset, paddedLength, writer.getBuffer(), offset);
+        }
+        byte[] status = new byte[] { (byte) (SW_SUCCESS >> BYTE_VALUE), (byte) SW_SUCCESS };
+        writer.write(DO_99_TAG, status, 0, STATUS_SIZE);
+        byte[] mac = new SessionMac(paceKey.getMac()).calculateMac(ssc, null, writer.getBuffer(), 0, writer.getPosition());
+        writer.write(DO_8E_TAG, mac, 0, MAC_SIZE);
+        writer.write(status, 0, STATUS_SIZE);
+        return new ResponseApdu(writer.getBuffer());
+    }
+
+    private static byte[] createData(final int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) i;
+        }
+        return data;
+    }
+}
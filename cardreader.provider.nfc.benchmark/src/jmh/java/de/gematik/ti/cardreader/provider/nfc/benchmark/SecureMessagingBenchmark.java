@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.cardreader.provider.nfc.benchmark;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import de.gematik.ti.cardreader.provider.api.command.CommandApdu;
+import de.gematik.ti.cardreader.provider.api.command.ResponseApdu;
+import de.gematik.ti.cardreader.provider.nfc.security.SecureMessaging;
+import de.gematik.ti.openhealthcard.events.response.entities.PaceKey;
+import de.gematik.ti.utils.codec.Hex;
+
+/**
+ * Throughput of {@link SecureMessaging#encrypt} and {@link SecureMessaging#decrypt} per APDU case and payload size.
+ *
+ * Whether the wrapped APDU uses short or extended length follows from the payload: up to 16 bytes the wrapped command is short, from 255 bytes on it is
+ * extended. Payload 65535 stands for the largest payload that fits into a wrapped extended APDU. Case 1 ignores the payload.
+ *
+ * The send sequence counter advances with every call, so decrypt cycles through responses prepared for consecutive counter values and starts a new session
+ * when they are used up.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class SecureMessagingBenchmark {
+
+    private static final PaceKey PACE_KEY = new PaceKey(Hex.decode("68406B4162100563D9C901A6154D2901"), Hex.decode("73FF268784F72AF833FDC9464049AFC9"));
+    private static final int BLOCK_SIZE = 16;
+    private static final int PREPARED_BYTES = 4 * 1024 * 1024;
+    private static final int MAX_PREPARED_RESPONSES = 1024;
+
+    @Param({ "CASE_1", "CASE_2", "CASE_3", "CASE_4" })
+    private ApduCase apduCase;
+
+    @Param({ "0", "16", "255", "1024", "65535" })
+    private int payload;
+
+    private CommandApdu command;
+    private SecureMessaging encryptSession;
+    private SecureMessaging decryptSession;
+    private ResponseApdu[] responses;
+    private int responseIndex;
+
+    @Setup(Level.Trial)
+    public void setup() throws GeneralSecurityException {
+        command = apduCase.createCommand(payload);
+        encryptSession = new SecureMessaging(PACE_KEY);
+
+        int count = Math.max(1, Math.min(MAX_PREPARED_RESPONSES, PREPARED_BYTES / Math.max(1, payload)));
+        responses = new ResponseApdu[count];
+        byte[] ssc = new byte[BLOCK_SIZE];
+        for (int i = 0; i < count; i++) {
+            incrementSSC(ssc);
+            responses[i] = apduCase.createResponse(PACE_KEY, ssc, payload);
+        }
+        decryptSession = new SecureMessaging(PACE_KEY);
+        responseIndex = 0;
+    }
+
+    @Benchmark
+    public CommandApdu encrypt() throws IOException {
+        return encryptSession.encrypt(command);
+    }
+
+    @Benchmark
+    public ResponseApdu decrypt() throws IOException, GeneralSecurityException {
+        if (responseIndex == responses.length) {
+            decryptSession = new SecureMessaging(PACE_KEY);
+            responseIndex = 0;
+        }
+        return decryptSession.decrypt(responses[responseIndex++]);
+    }
+
+    private static void incrementSSC(final byte[] ssc) {
+        for (int i = ssc.length - 1; i >= 0; i--) {
+            ssc[i]++;
+            if (ssc[i] != 0) {
+                break;
+            }
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.cardreader.provider.nfc.cache;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-memory LRU cache of READ BINARY responses of EFs whose content never changes, e.g. EF.ATR, EF.DIR, EF.Version2 or certificates.
+ *
+ * The cache holds the files of one card, identified by its tag UID and historical bytes. Entries are stored per file, offset and length of the read. The
+ * least recently used entries are evicted when the size limit is exceeded. All entries are evicted when another card is used or the cache is flushed,
+ * the entries of a file when it is updated. Only files added with {@link #addImmutableFile(int)} are cached.
+ */
+public class EfCache {
+
+    /**
+     * Value for a file without short file identifier
+     */
+    public static final int NO_SHORT_FILE_ID = -1;
+
+    private static final char SEPARATOR = '|';
+
+    private final int maxBytes;
+    private final Set<Integer> immutableFileIds = Collections.synchronizedSet(new HashSet<>());
+    private final Map<Integer, Integer> immutableShortFileIds = Collections.synchronizedMap(new HashMap<>());
+    private final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private String cardId;
+    private int size;
+    private long hits;
+    private long misses;
+
+    /**
+     * Constructor
+     *
+     * @param maxBytes
+     *            maximum size of the cached responses
+     */
+    public EfCache(final int maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("cache size " + maxBytes + " not positive");
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Marks a file as immutable, so its content is cached
+     *
+     * @param fileIdentifier
+     *            file identifier of the EF, e.g. 0x2F01 for EF.ATR
+     */
+    public void addImmutableFile(final int fileIdentifier) {
+        addImmutableFile(fileIdentifier, NO_SHORT_FILE_ID);
+    }
+
+    /**
+     * Marks a file as immutable, so its content is cached whether it is read after a SELECT or with its short file identifier
+     *
+     * @param fileIdentifier
+     *            file identifier of the EF, e.g. 0x2F01 for EF.ATR
+     * @param shortFileIdentifier
+     *            short file identifier of the EF, e.g. 0x1D for EF.ATR, or {@link #NO_SHORT_FILE_ID}
+     */
+    public void addImmutableFile(final int fileIdentifier, final int shortFileIdentifier) {
+        immutableFileIds.add(fileIdentifier);
+        if (shortFileIdentifier != NO_SHORT_FILE_ID) {
+            immutableShortFileIds.put(shortFileIdentifier, fileIdentifier);
+        }
+    }
+
+    /**
+     * Returns if the content of a file is cached
+     *
+     * @param fileIdentifier
+     *            file identifier of the EF
+     * @return true if the file was marked as immutable
+     */
+    public boolean isImmutableFile(final int fileIdentifier) {
+        return immutableFileIds.contains(fileIdentifier);
+    }
+
+    /**
+     * Returns if the content of a file read with its short file identifier is cached
+     *
+     * @param shortFileIdentifier
+     *            short file identifier of the EF
+     * @return true if the file was marked as immutable
+     */
+    public boolean isImmutableShortFile(final int shortFileIdentifier) {
+        return immutableShortFileIds.containsKey(shortFileIdentifier);
+    }
+
+    /**
+     * Returns the file identifier of an immutable file
+     *
+     * @param shortFileIdentifier
+     *            short file identifier of the EF
+     * @return file identifier or -1 if the file was not marked as immutable
+     */
+    public int getFileIdentifier(final int shortFileIdentifier) {
+        final Integer fileIdentifier = immutableShortFileIds.get(shortFileIdentifier);
+        return fileIdentifier != null ? fileIdentifier : -1;
+    }
+
+    /**
+     * Sets the card whose files are cached. The files of another card are evicted.
+     *
+     * @param newCardId
+     *            identity of the card, null if it is unknown
+     */
+    public synchronized void changeCard(final String newCardId) {
+        if (newCardId == null || !newCardId.equals(cardId)) {
+            flush();
+        }
+        cardId = newCardId;
+    }
+
+    /**
+     * Returns a cached response
+     *
+     * @param forCardId
+     *            identity of the card
+     * @param file
+     *            key of the file, e.g. the path of SELECT commands
+     * @param offset
+     *            offset of the read
+     * @param ne
+     *            expected length of the read
+     * @return copy of the response with status word, null if it is not cached
+     */
+    public synchronized byte[] get(final String forCardId, final String file, final int offset, final int ne) {
+        final byte[] response = forCardId != null && forCardId.equals(cardId) ? entries.get(getKey(file, offset, ne)) : null;
+        if (response == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return response.clone();
+    }
+
+    /**
+     * Stores a response of a READ BINARY command
+     *
+     * @param forCardId
+     *            identity of the card
+     * @param file
+     *            key of the file, e.g. the path of SELECT commands
+     * @param offset
+     *            offset of the read
+     * @param ne
+     *            expected length of the read
+     * @param response
+     *            response with status word, copied
+     */
+    public synchronized void put(final String forCardId, final String file, final int offset, final int ne, final byte[] response) {
+        if (forCardId == null || !forCardId.equals(cardId) || response.length > maxBytes) {
+            return;
+        }
+        final byte[] previous = entries.put(getKey(file, offset, ne), response.clone());
+        size += response.length - (previous != null ? previous.length : 0);
+        final Iterator<byte[]> eldest = entries.values().iterator();
+        while (size > maxBytes) {
+            size -= eldest.next().length;
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Removes all cached reads of a file, e.g. after the file was updated
+     *
+     * @param file
+     *            key of the file
+     */
+    public synchronized void evictFile(final String file) {
+        final String prefix = file + SEPARATOR;
+        final Iterator<Map.Entry<String, byte[]>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<String, byte[]> entry = iterator.next();
+            if (entry.getKey().startsWith(prefix)) {
+                size -= entry.getValue().length;
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Removes all cached reads
+     */
+    public synchronized void flush() {
+        entries.clear();
+        size = 0;
+    }
+
+    /**
+     * Returns the size of the cached responses
+     *
+     * @return size in bytes
+     */
+    public synchronized int getSize() {
+        return size;
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    private static String getKey(final String file, final int offset, final int ne) {
+        return file + SEPARATOR + offset + SEPARATOR + ne;
+    }
+}
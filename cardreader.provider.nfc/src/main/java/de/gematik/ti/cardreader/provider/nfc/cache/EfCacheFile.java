@@ -0,0 +1,407 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.cardreader.provider.nfc.cache;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Persistent cache of EF contents, written append-only through a memory mapping, so certificates and version files of a card are available after a
+ * restart of the app before PACE is finished.
+ *
+ * The records are encrypted with AES-GCM under a random file key. The file key is stored wrapped with a device key, e.g. a key of the Android
+ * keystore, so the keystore is used once when the file is opened and not for every record. A file whose key cannot be unwrapped is started over.
+ *
+ * The index of the newest record per card identity and file identifier is built when the file is opened. Updates and removals append records. If the
+ * file is full, the live records are written again from the start, the least recently used ones are dropped until the file is filled to three quarters.
+ *
+ * The file starts with a header of magic, version, capacity, used bytes, length of the wrapped key and the wrapped key. Every record consists of its
+ * length followed by the 12 byte IV, the cipher text and the GCM tag. The plain text holds type, card identity, file identifier and content.
+ */
+public class EfCacheFile implements Closeable {
+
+    /**
+     * File identifier of EF.Version2, which tells if the cached files of a card are still valid
+     */
+    public static final int EF_VERSION2 = 0x2F11;
+
+    /**
+     * Short file identifier of EF.Version2
+     */
+    public static final int EF_VERSION2_SHORT = 0x11;
+
+    private static final int MAGIC = 0x45464346;
+    private static final int VERSION = 1;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int USED_OFFSET = 12;
+    private static final int WRAPPED_KEY_LENGTH_OFFSET = 16;
+    private static final int WRAPPED_KEY_OFFSET = 20;
+    private static final int MAX_WRAPPED_KEY_SIZE = 76;
+    private static final int FILE_HEADER_SIZE = WRAPPED_KEY_OFFSET + MAX_WRAPPED_KEY_SIZE;
+    private static final int LENGTH_SIZE = 4;
+    private static final int TYPE_ENTRY = 1;
+    private static final int TYPE_REMOVED = 2;
+    private static final String AES = "AES";
+    private static final String AES_GCM_NO_PADDING = "AES/GCM/NoPadding";
+    private static final int KEY_BITS = 256;
+    private static final int IV_SIZE = 12;
+    private static final int TAG_BITS = 128;
+    private static final int TAG_SIZE = TAG_BITS / 8;
+    private static final int RECORD_OVERHEAD = LENGTH_SIZE + IV_SIZE + TAG_SIZE;
+    private static final int COMPACTION_FILL_PERCENT = 75;
+    private static final int PERCENT = 100;
+    private static final char KEY_SEPARATOR = '#';
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer map;
+    private final int capacity;
+    private final SecretKey fileKey;
+    private final SecureRandom random = new SecureRandom();
+    // offset of the newest record per card identity and file identifier, least recently used first
+    private final LinkedHashMap<String, Integer> index = new LinkedHashMap<>(16, 0.75f, true);
+    private int used;
+
+    /**
+     * Opens or creates a cache file
+     *
+     * @param path
+     *            file to write to
+     * @param capacity
+     *            size of the records in bytes
+     * @param deviceKey
+     *            AES key that wraps the file key, e.g. a key of the Android keystore
+     * @throws IOException
+     *             if the file cannot be mapped
+     * @throws GeneralSecurityException
+     *             if the file key cannot be created or wrapped
+     */
+    public EfCacheFile(final File path, final int capacity, final SecretKey deviceKey) throws IOException, GeneralSecurityException {
+        if (capacity <= RECORD_OVERHEAD) {
+            throw new IllegalArgumentException("capacity " + capacity + " too small");
+        }
+        this.capacity = capacity;
+        file = new RandomAccessFile(path, "rw");
+        try {
+            map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, FILE_HEADER_SIZE + (long) capacity);
+        } catch (final IOException e) {
+            file.close();
+            throw e;
+        }
+        SecretKey existingKey = null;
+        if (map.getInt(0) == MAGIC && map.getInt(4) == VERSION && map.getInt(CAPACITY_OFFSET) == capacity) {
+            existingKey = unwrapQuietly(deviceKey);
+        }
+        if (existingKey != null) {
+            fileKey = existingKey;
+            used = map.getInt(USED_OFFSET);
+            readIndex();
+        } else {
+            fileKey = createFileKey(deviceKey);
+        }
+    }
+
+    /**
+     * Returns the cached content of a file
+     *
+     * @param cardId
+     *            identity of the card
+     * @param fileIdentifier
+     *            file identifier of the EF
+     * @return content or null if the file is not cached
+     */
+    public synchronized byte[] get(final String cardId, final int fileIdentifier) {
+        final String key = getKey(cardId, fileIdentifier);
+        final Integer offset = index.get(key);
+        if (offset == null) {
+            return null;
+        }
+        final ByteBuffer plain = decryptRecord(offset);
+        if (plain == null) {
+            index.remove(key);
+            return null;
+        }
+        skipKey(plain);
+        final byte[] content = new byte[plain.remaining()];
+        plain.get(content);
+        return content;
+    }
+
+    /**
+     * Stores the content of a file
+     *
+     * @param cardId
+     *            identity of the card
+     * @param fileIdentifier
+     *            file identifier of the EF
+     * @param content
+     *            whole content of the EF
+     */
+    public synchronized void put(final String cardId, final int fileIdentifier, final byte[] content) {
+        final String key = getKey(cardId, fileIdentifier);
+        final Integer offset = append(TYPE_ENTRY, cardId, fileIdentifier, content, key);
+        if (offset != null) {
+            index.put(key, offset);
+        }
+    }
+
+    /**
+     * Removes the content of a file
+     *
+     * @param cardId
+     *            identity of the card
+     * @param fileIdentifier
+     *            file identifier of the EF
+     */
+    public synchronized void remove(final String cardId, final int fileIdentifier) {
+        final String key = getKey(cardId, fileIdentifier);
+        if (index.remove(key) != null) {
+            append(TYPE_REMOVED, cardId, fileIdentifier, new byte[0], null);
+        }
+    }
+
+    /**
+     * Removes all files of a card, e.g. if its EF.Version2 changed
+     *
+     * @param cardId
+     *            identity of the card
+     */
+    public synchronized void removeCard(final String cardId) {
+        final String prefix = cardId + KEY_SEPARATOR;
+        final List<Integer> fileIdentifiers = new ArrayList<>();
+        for (final String key : index.keySet()) {
+            if (key.startsWith(prefix)) {
+                fileIdentifiers.add(Integer.parseInt(key.substring(prefix.length()), 16));
+            }
+        }
+        for (final int fileIdentifier : fileIdentifiers) {
+            remove(cardId, fileIdentifier);
+        }
+    }
+
+    /**
+     * Returns the number of cached files
+     *
+     * @return number of files
+     */
+    public synchronized int getFileCount() {
+        return index.size();
+    }
+
+    /**
+     * Removes all files
+     */
+    public synchronized void clear() {
+        index.clear();
+        setUsed(0);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        map.force();
+        file.close();
+    }
+
+    private Integer append(final int type, final String cardId, final int fileIdentifier, final byte[] content, final String replacedKey) {
+        final byte[] cardIdBytes = cardId.getBytes(StandardCharsets.UTF_8);
+        final ByteBuffer plain = ByteBuffer.allocate(1 + 2 + cardIdBytes.length + 4 + content.length);
+        plain.put((byte) type).putShort((short) cardIdBytes.length).put(cardIdBytes).putInt(fileIdentifier).put(content);
+        final int size = RECORD_OVERHEAD + plain.capacity();
+        if (size > capacity) {
+            return null;
+        }
+        if (capacity - used < size) {
+            compact(size, replacedKey);
+        }
+        final byte[] iv = new byte[IV_SIZE];
+        random.nextBytes(iv);
+        final ByteBuffer target = map.duplicate();
+        target.position(FILE_HEADER_SIZE + used);
+        target.putInt(IV_SIZE + plain.capacity() + TAG_SIZE).put(iv);
+        try {
+            final Cipher cipher = Cipher.getInstance(AES_GCM_NO_PADDING);
+            cipher.init(Cipher.ENCRYPT_MODE, fileKey, new GCMParameterSpec(TAG_BITS, iv));
+            plain.flip();
+            cipher.doFinal(plain, target);
+        } catch (final GeneralSecurityException e) {
+            return null;
+        }
+        final int offset = used;
+        // the record counts once it is complete
+        setUsed(used + size);
+        return offset;
+    }
+
+    /**
+     * Writes the live records again from the start, dropping the least recently used ones until the file is filled to three quarters
+     */
+    private void compact(final int needed, final String replacedKey) {
+        final int target = Math.max(capacity * COMPACTION_FILL_PERCENT / PERCENT - needed, 0);
+        if (replacedKey != null) {
+            index.remove(replacedKey);
+        }
+        final List<Map.Entry<String, byte[]>> records = new ArrayList<>(index.size());
+        int live = 0;
+        for (final Map.Entry<String, Integer> entry : index.entrySet()) {
+            final byte[] record = readRecord(entry.getValue());
+            records.add(new AbstractMap.SimpleEntry<>(entry.getKey(), record));
+            live += record.length;
+        }
+        final Iterator<Map.Entry<String, byte[]>> oldest = records.iterator();
+        while (live > target && oldest.hasNext()) {
+            final Map.Entry<String, byte[]> record = oldest.next();
+            live -= record.getValue().length;
+            index.remove(record.getKey());
+            oldest.remove();
+        }
+        // a crash while writing leaves an empty file
+        setUsed(0);
+        final ByteBuffer buffer = map.duplicate();
+        buffer.position(FILE_HEADER_SIZE);
+        for (final Map.Entry<String, byte[]> record : records) {
+            index.put(record.getKey(), buffer.position() - FILE_HEADER_SIZE);
+            buffer.put(record.getValue());
+        }
+        setUsed(buffer.position() - FILE_HEADER_SIZE);
+    }
+
+    private byte[] readRecord(final int offset) {
+        final int length = map.getInt(FILE_HEADER_SIZE + offset);
+        final byte[] record = new byte[LENGTH_SIZE + length];
+        final ByteBuffer source = map.duplicate();
+        source.position(FILE_HEADER_SIZE + offset);
+        source.get(record);
+        return record;
+    }
+
+    private ByteBuffer decryptRecord(final int offset) {
+        if (offset < 0 || offset + LENGTH_SIZE > used) {
+            return null;
+        }
+        final int length = map.getInt(FILE_HEADER_SIZE + offset);
+        if (length < IV_SIZE + TAG_SIZE || length > used - offset - LENGTH_SIZE) {
+            return null;
+        }
+        final byte[] record = readRecord(offset);
+        try {
+            final Cipher cipher = Cipher.getInstance(AES_GCM_NO_PADDING);
+            cipher.init(Cipher.DECRYPT_MODE, fileKey, new GCMParameterSpec(TAG_BITS, record, LENGTH_SIZE, IV_SIZE));
+            return ByteBuffer.wrap(cipher.doFinal(record, LENGTH_SIZE + IV_SIZE, length - IV_SIZE));
+        } catch (final GeneralSecurityException e) {
+            return null;
+        }
+    }
+
+    private void readIndex() {
+        int offset = 0;
+        while (offset < used) {
+            final ByteBuffer plain = decryptRecord(offset);
+            if (plain == null) {
+                // a record that was not completely written ends the file
+                setUsed(offset);
+                break;
+            }
+            final int type = plain.get();
+            final String key = skipKey(plain);
+            if (type == TYPE_ENTRY) {
+                index.put(key, offset);
+            } else {
+                index.remove(key);
+            }
+            offset += LENGTH_SIZE + map.getInt(FILE_HEADER_SIZE + offset);
+        }
+    }
+
+    /**
+     * Reads card identity and file identifier of a decrypted record
+     */
+    private static String skipKey(final ByteBuffer plain) {
+        plain.position(1);
+        final byte[] cardIdBytes = new byte[plain.getShort()];
+        plain.get(cardIdBytes);
+        return getKey(new String(cardIdBytes, StandardCharsets.UTF_8), plain.getInt());
+    }
+
+    private static String getKey(final String cardId, final int fileIdentifier) {
+        return cardId + KEY_SEPARATOR + Integer.toHexString(fileIdentifier);
+    }
+
+    private SecretKey createFileKey(final SecretKey deviceKey) throws GeneralSecurityException {
+        final KeyGenerator generator = KeyGenerator.getInstance(AES);
+        generator.init(KEY_BITS, random);
+        final SecretKey key = generator.generateKey();
+        // the keystore chooses the IV itself
+        final Cipher cipher = Cipher.getInstance(AES_GCM_NO_PADDING);
+        cipher.init(Cipher.ENCRYPT_MODE, deviceKey);
+        final byte[] wrapped = cipher.doFinal(key.getEncoded());
+        final byte[] iv = cipher.getIV();
+        if (iv.length != IV_SIZE || IV_SIZE + wrapped.length > MAX_WRAPPED_KEY_SIZE) {
+            throw new GeneralSecurityException("unexpected size of the wrapped file key");
+        }
+        map.putInt(0, MAGIC);
+        map.putInt(4, VERSION);
+        map.putInt(CAPACITY_OFFSET, capacity);
+        map.putInt(WRAPPED_KEY_LENGTH_OFFSET, IV_SIZE + wrapped.length);
+        final ByteBuffer target = map.duplicate();
+        target.position(WRAPPED_KEY_OFFSET);
+        target.put(iv).put(wrapped);
+        setUsed(0);
+        return key;
+    }
+
+    private SecretKey unwrapQuietly(final SecretKey deviceKey) {
+        final int length = map.getInt(WRAPPED_KEY_LENGTH_OFFSET);
+        if (length <= IV_SIZE + TAG_SIZE || length > MAX_WRAPPED_KEY_SIZE) {
+            return null;
+        }
+        final byte[] wrapped = new byte[length];
+        final ByteBuffer source = map.duplicate();
+        source.position(WRAPPED_KEY_OFFSET);
+        source.get(wrapped);
+        try {
+            final Cipher cipher = Cipher.getInstance(AES_GCM_NO_PADDING);
+            cipher.init(Cipher.DECRYPT_MODE, deviceKey, new GCMParameterSpec(TAG_BITS, wrapped, 0, IV_SIZE));
+            return new SecretKeySpec(cipher.doFinal(wrapped, IV_SIZE, length - IV_SIZE), AES);
+        } catch (final GeneralSecurityException e) {
+            return null;
+        }
+    }
+
+    private void setUsed(final int newUsed) {
+        used = newUsed;
+        map.putInt(USED_OFFSET, used);
+    }
+}
@@ -21,27 +21,25 @@ import org.slf4j.LoggerFactory;
 
 import de.gematik.ti.cardreader.provider.api.CardEventTransmitter;
 import de.gematik.ti.cardreader.provider.api.ICardReader;
-import de.gematik.ti.cardreader.provider.api.card.CardException;
+import de.gematik.ti.cardreader.provider.nfc.entities.NfcCard;
 import de.gematik.ti.cardreader.provider.nfc.entities.NfcCardReader;
 
 /**
  * include::{userguide}/NFCCRP_Overview.adoc[tag=NfcCardChecker]
  *
  */
-public class NfcCardChecker extends Thread {
+public class NfcCardChecker implements NfcCardReader.ICardPresenceListener {
 
     private static final Logger LOG = LoggerFactory.getLogger(NfcCardChecker.class);
-    private static final int TIMEOUT = 5000;
 
-    private final ICardReader cardReader;
+    private final NfcCardReader cardReader;
     private volatile boolean active = true;
     private final CardEventTransmitter cardEventTransmitter;
-    private boolean currentCardState;
 
     public NfcCardChecker(final ICardReader cardReader) {
-        this.cardReader = cardReader;
+        this.cardReader = (NfcCardReader) cardReader;
         cardEventTransmitter = NfcCardReaderController.getInstance().createCardEventTransmitter(cardReader);
-        start();
+        this.cardReader.addCardPresenceListener(this);
     }
 
     /**
@@ -49,54 +47,24 @@ public class NfcCardChecker extends Thread {
      */
     public void shutdown() {
         active = false;
+        cardReader.removeCardPresenceListener(this);
     }
 
     @Override
-    public void run() {
-        super.run();
-        try {
-            Thread.sleep(TIMEOUT);
-        } catch (final InterruptedException e) {
-            LOG.debug("Start Timer error", e);
+    public void cardPresenceChanged(final boolean present, final NfcCard card) {
+        if (!active) {
+            return;
         }
-        currentCardState = isCardPresent();
-        while (active) {
-            if (currentCardState) {
-                LOG.trace("NFCReader: waitForCardAbsent");
-                final boolean absent = ((NfcCardReader) cardReader).waitForCardAbsent(TIMEOUT);
-                LOG.trace("NFCReader: waitForCardAbsent return with " + absent);
-            } else {
-                LOG.trace("NFCReader: waitForCardPresent");
-                final boolean present = ((NfcCardReader) cardReader).waitForCardPresent(TIMEOUT);
-                LOG.trace("NFCReader: waitForCardPresent return with " + present);
+        if (!present) {
+            LOG.debug("NFC Card Absent (cardPresent=" + present + ")");
+            if (!cardReader.removeCard(card)) {
+                // a new card was discovered after the absence was confirmed
+                LOG.debug("absent card already replaced");
+                return;
             }
-            if (active) {
-                checkCardStateAndSendEvent();
-            }
-        }
-
-    }
-
-    private void checkCardStateAndSendEvent() {
-        final boolean cardPresent = isCardPresent();
-        if (currentCardState != cardPresent) {
-            if (!cardPresent) {
-                LOG.debug("NFC Card Absent (cardPresent=" + cardPresent + ")");
-                cardEventTransmitter.informAboutCardAbsent();
-                ((NfcCardReader) cardReader).removeCard();
-            } else {
-                LOG.debug("NFC Card Present (cardPresent=" + cardPresent + ")");
-            }
-            currentCardState = cardPresent;
-        }
-    }
-
-    private boolean isCardPresent() {
-        try {
-            return cardReader.isCardPresent();
-        } catch (final CardException e) {
-            LOG.error("Card State Unknown", e);
-            return false;
+            cardEventTransmitter.informAboutCardAbsent();
+        } else {
+            LOG.debug("NFC Card Present (cardPresent=" + present + ")");
         }
     }
 }
@@ -0,0 +1,30 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.cardreader.provider.nfc.entities;
+
+/**
+ * Priority of the commands of a channel on the card I/O thread. Queued commands of a higher priority are transmitted first, commands of the same
+ * priority are shared fairly between the channels of the card.
+ */
+public enum ApduPriority {
+    /** commands a user is waiting for, e.g. a signature */
+    INTERACTIVE,
+    /** default priority */
+    NORMAL,
+    /** commands nobody waits for, e.g. a prefetch of EFs */
+    BACKGROUND
+}
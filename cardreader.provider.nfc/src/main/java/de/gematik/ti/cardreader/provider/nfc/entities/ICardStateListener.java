@@ -0,0 +1,35 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.cardreader.provider.nfc.entities;
+
+/**
+ * Observes the bring-up of a card from the tag discovery until secure messaging is ready
+ */
+public interface ICardStateListener {
+
+    /**
+     * Called when the card enters a new state. Implementations must return quickly, the bring-up of the card waits for them.
+     *
+     * @param card
+     *            card that changed its state
+     * @param state
+     *            new state of the card
+     * @param phaseNanos
+     *            time in nanoseconds the card spent in the previous state
+     */
+    void stateChanged(NfcCard card, NfcCard.State state, long phaseNanos);
+}
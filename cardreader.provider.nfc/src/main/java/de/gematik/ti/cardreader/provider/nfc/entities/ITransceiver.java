@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.cardreader.provider.nfc.entities;
+
+import java.io.IOException;
+
+import android.nfc.Tag;
+
+/**
+ * Transport of APDUs between {@link NfcCard} and a card. On a device this is {@link IsoDepTransceiver}, other implementations allow to run the card stack
+ * without NFC hardware.
+ *
+ */
+public interface ITransceiver {
+
+    /**
+     * Connects to the card
+     *
+     * @throws IOException
+     *             if the card could not be connected
+     */
+    void connect() throws IOException;
+
+    /**
+     * Closes the current connection and connects again to the same card
+     *
+     * @throws IOException
+     *             if the card could not be connected
+     */
+    void reconnect() throws IOException;
+
+    /**
+     * Closes the current connection and connects to the same card through the tag of a new discovery, e.g. after the card left the field for a moment
+     *
+     * @param tag
+     *            tag of the new discovery with the UID of the card
+     * @throws IOException
+     *             if the card could not be connected
+     */
+    void reconnect(Tag tag) throws IOException;
+
+    /**
+     * Closes the connection to the card
+     *
+     * @throws IOException
+     *             if an error occurred
+     */
+    void close() throws IOException;
+
+    /**
+     * Returns if the card is connected
+     *
+     * @return true if connected
+     */
+    boolean isConnected();
+
+    /**
+     * Sends the raw bytes of a command APDU to the card and returns the raw bytes of the response APDU
+     *
+     * @param command
+     *            command APDU
+     * @return response APDU
+     * @throws IOException
+     *             if the card was lost or the transmission failed
+     */
+    byte[] transceive(byte[] command) throws IOException;
+
+    /**
+     * Returns the maximum number of bytes which can be sent with {@link #transceive(byte[])}
+     *
+     * @return maximum length, 0 if unknown
+     */
+    int getMaxTransceiveLength();
+
+    /**
+     * Returns if extended length APDUs are supported
+     *
+     * @return true if extended length is supported
+     */
+    boolean isExtendedLengthApduSupported();
+
+    /**
+     * Sets the timeout of {@link #transceive(byte[])}
+     *
+     * @param timeout
+     *            timeout in milliseconds
+     */
+    void setTimeout(int timeout);
+
+    /**
+     * Returns the timeout of {@link #transceive(byte[])}
+     *
+     * @return timeout in milliseconds
+     */
+    int getTimeout();
+
+    /**
+     * Returns the historical bytes of the card
+     *
+     * @return historical bytes or null
+     */
+    byte[] getHistoricalBytes();
+
+    /**
+     * Returns the higher layer response of the card
+     *
+     * @return higher layer response or null
+     */
+    byte[] getHiLayerResponse();
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.cardreader.provider.nfc.entities;
+
+import java.io.IOException;
+
+import android.nfc.Tag;
+import android.nfc.tech.IsoDep;
+
+/**
+ * {@link ITransceiver} for an ISO-DEP (ISO 14443-4) card discovered by Android NFC.
+ *
+ */
+public class IsoDepTransceiver implements ITransceiver {
+
+    private volatile IsoDep isoDep;
+
+    /**
+     * Constructor
+     *
+     * @param isoDep
+     *            IsoDep object of the discovered tag
+     */
+    public IsoDepTransceiver(final IsoDep isoDep) {
+        this.isoDep = isoDep;
+    }
+
+    /**
+     * Returns a transceiver for the tag
+     *
+     * @param tag
+     *            discovered Tag object
+     * @return transceiver or null if the tag does not support IsoDep
+     */
+    public static IsoDepTransceiver get(final Tag tag) {
+        final IsoDep isoDep = IsoDep.get(tag);
+        if (isoDep == null) {
+            return null;
+        }
+        return new IsoDepTransceiver(isoDep);
+    }
+
+    @Override
+    public void connect() throws IOException {
+        isoDep.connect();
+    }
+
+    @Override
+    public void reconnect() throws IOException {
+        final Tag tag = isoDep.getTag();
+        isoDep.close();
+        isoDep = IsoDep.get(tag);
+        isoDep.connect();
+    }
+
+    @Override
+    public void reconnect(final Tag tag) throws IOException {
+        final IsoDep newIsoDep = IsoDep.get(tag);
+        if (newIsoDep == null) {
+            throw new IOException("Tag does not support IsoDep");
+        }
+        try {
+            isoDep.close();
+        } catch (final IOException e) {
+            // the old IsoDep object belongs to the previous discovery of the tag
+        }
+        isoDep = newIsoDep;
+        isoDep.connect();
+    }
+
+    @Override
+    public void close() throws IOException {
+        isoDep.close();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return isoDep.isConnected();
+    }
+
+    @Override
+    public byte[] transceive(final byte[] command) throws IOException {
+        return isoDep.transceive(command);
+    }
+
+    @Override
+    public int getMaxTransceiveLength() {
+        return isoDep.getMaxTransceiveLength();
+    }
+
+    @Override
+    public boolean isExtendedLengthApduSupported() {
+        return isoDep.isExtendedLengthApduSupported();
+    }
+
+    @Override
+    public void setTimeout(final int timeout) {
+        isoDep.setTimeout(timeout);
+    }
+
+    @Override
+    public int getTimeout() {
+        return isoDep.getTimeout();
+    }
+
+    @Override
+    public byte[] getHistoricalBytes() {
+        return isoDep.getHistoricalBytes();
+    }
+
+    @Override
+    public byte[] getHiLayerResponse() {
+        return isoDep.getHiLayerResponse();
+    }
+}
@@ -17,12 +17,21 @@
 package de.gematik.ti.cardreader.provider.nfc.entities;
 
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import android.nfc.Tag;
-import android.nfc.tech.IsoDep;
 
 import de.gematik.ti.cardreader.provider.api.card.Atr;
 import de.gematik.ti.cardreader.provider.api.card.CardException;
@@ -32,6 +41,12 @@ import de.gematik.ti.cardreader.provider.api.card.ICardChannel;
 import de.gematik.ti.cardreader.provider.api.command.CommandApdu;
 import de.gematik.ti.cardreader.provider.api.command.ICommandApdu;
 import de.gematik.ti.cardreader.provider.api.command.ResponseApdu;
+import de.gematik.ti.cardreader.provider.nfc.cache.EfCache;
+import de.gematik.ti.cardreader.provider.nfc.cache.EfCacheFile;
+import de.gematik.ti.cardreader.provider.nfc.metrics.AdaptiveTimeout;
+import de.gematik.ti.cardreader.provider.nfc.metrics.ApduMetrics;
+import de.gematik.ti.cardreader.provider.nfc.metrics.ApduTraceBuffer;
+import de.gematik.ti.cardreader.provider.nfc.security.PaceKeyCache;
 import de.gematik.ti.openhealthcard.events.control.RequestTransmitter;
 import de.gematik.ti.openhealthcard.events.response.callbacks.IPaceKeyResponseListener;
 import de.gematik.ti.openhealthcard.events.response.entities.PaceKey;
@@ -44,17 +59,70 @@ import de.gematik.ti.utils.codec.Hex;
 public class NfcCard implements ICard {
 
     private static final Logger LOG = LoggerFactory.getLogger(NfcCard.class);
-    private static final int ISO_DEP_TIMEOUT = 5000;
+    // transceive timeout in milliseconds, used for all commands without an adaptive timeout
+    static final int ISO_DEP_TIMEOUT = 5000;
 
     private static final CommandApdu MANAGE_CHANNEL_COMMAND_OPEN = new CommandApdu(0x00, 0x70, 0x00, 0x00, 1);
     private static final CommandApdu MANAGE_CHANNEL_COMMAND_CLOSE = new CommandApdu(0x00, 0x70, 0x80, 0x00);
     private static final int RESPONSE_SUCCESS = 0x9000;
+    private static final long IO_THREAD_KEEP_ALIVE_SECONDS = 30;
+    static final long NO_DEADLINE = Long.MAX_VALUE;
+    // time the application may take for a new PACE after the card rejected a resumed session, e.g. with the user entering the CAN
+    private static final long PACE_KEY_TIMEOUT_SECONDS = 30;
 
-    private IsoDep isoDep;
+    private ITransceiver transceiver;
     private NfcCardChannel basicChannel = null;
     private boolean isExtendedLengthApduSupported = false;
     private PaceKey paceKey;
     private final ICardPresentCallBack presentCallBack;
+    private final ApduMetrics metrics = new ApduMetrics();
+    private volatile ApduTraceBuffer apduTrace;
+    private volatile AdaptiveTimeout adaptiveTimeout;
+    private volatile EfCache efCache;
+    private volatile EfCacheFile efCacheFile;
+    // type of the card and timeout set on the transceiver, only accessed on the card I/O thread
+    private String cardType;
+    private int currentTimeout = ISO_DEP_TIMEOUT;
+    private final ThreadPoolExecutor ioExecutor;
+    private volatile Thread ioThread;
+    private final Object scheduleLock = new Object();
+    private final Map<Integer, Long> channelTurns = new HashMap<>();
+    private long currentTurn = 0;
+    private long submittedTasks = 0;
+    private final PaceKeyCache paceKeyCache;
+    private final String cardId;
+    private volatile boolean resumedSession = false;
+    private volatile boolean secureMessagingFailed = false;
+    // only used on the card I/O thread
+    private boolean frameRepeated = false;
+    // a transceive failed, the card may have lost power and its secure messaging session
+    private volatile boolean tagLost = false;
+    private final Object stateLock = new Object();
+    private volatile State state = State.CONNECTING;
+    private long phaseStart = System.nanoTime();
+    private final long[] phaseNanos = new long[State.values().length];
+    private volatile ICardStateListener stateListener;
+    private volatile RetryPolicy retryPolicy = RetryPolicy.NONE;
+    private CompletableFuture<PaceKey> paceKeyRequest;
+    private CompletableFuture<Void> recovery;
+    // completed when the card is connected through a new discovery of its tag after the tag was lost
+    private CompletableFuture<Void> tagRediscovered;
+
+    /**
+     * Bring-up states of a card
+     */
+    public enum State {
+        /** the transceiver connects to the tag */
+        CONNECTING,
+        /** the card is connected, the PACE key is requested */
+        PACE,
+        /** the card is connected and secure messaging is established */
+        READY,
+        /** the connection to the tag failed */
+        FAILED,
+        /** the card was removed or replaced by another tag */
+        RELEASED
+    }
 
     /**
      * Constructor
@@ -63,26 +131,285 @@ public class NfcCard implements ICard {
      *            discovered Tag object
      */
     public NfcCard(final Tag tag, final ICardPresentCallBack presentCallBack) {
+        this(createTransceiver(tag), presentCallBack);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param transceiver
+     *            transport to the card, e.g. {@link IsoDepTransceiver}
+     */
+    public NfcCard(final ITransceiver transceiver, final ICardPresentCallBack presentCallBack) {
+        this(transceiver, presentCallBack, null, null);
+        if (transceiver == null) {
+            LOG.debug("transceiver == null");
+            changeState(State.FAILED);
+            return;
+        }
+        connectTransceiver();
+        startSecureMessaging();
+    }
+
+    /**
+     * Constructor for a card that is brought up with {@link #bringUp()}. No I/O is done on the calling thread.
+     *
+     * @param transceiver
+     *            transport to the card, e.g. {@link IsoDepTransceiver}
+     * @param tagId
+     *            UID of the tag, null if sessions are not cached
+     * @param paceKeyCache
+     *            cache of secure messaging sessions, null if sessions are not cached
+     */
+    NfcCard(final ITransceiver transceiver, final ICardPresentCallBack presentCallBack, final byte[] tagId, final PaceKeyCache paceKeyCache) {
         this.presentCallBack = presentCallBack;
+        this.transceiver = transceiver;
+        ioExecutor = new ThreadPoolExecutor(1, 1, IO_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new PriorityBlockingQueue<>(), runnable -> {
+            final Thread thread = new Thread(runnable, "nfc-card-io");
+            thread.setDaemon(true);
+            ioThread = thread;
+            return thread;
+        });
+        ioExecutor.allowCoreThreadTimeOut(true);
+        if (transceiver != null) {
+            basicChannel = new NfcCardChannel(this);
+        }
+        if (transceiver != null && tagId != null) {
+            // the historical bytes are known from the tag discovery, no connection is needed
+            cardId = PaceKeyCache.getCardId(tagId, getATR().getBytes());
+            this.paceKeyCache = paceKeyCache;
+        } else {
+            cardId = null;
+            this.paceKeyCache = null;
+        }
+    }
 
-        LOG.debug("NFCTag " + Hex.encodeHexString(tag.getId()) + " " + tag.toString());
-        isoDep = IsoDep.get(tag);
-        if (isoDep != null) {
-            try {
-                LOG.debug("try isoDep.connect()");
-                isoDep.connect();
-                LOG.debug("isoDep.getMaxTransceiveLength(): " + isoDep.getMaxTransceiveLength());
-                LOG.debug("original value for isoDep.getTimeout(): " + isoDep.getTimeout());
-                isoDep.setTimeout(ISO_DEP_TIMEOUT);
-                LOG.debug("New value for isoDep.getTimeout(): " + isoDep.getTimeout());
-                basicChannel = new NfcCardChannel(this);
-                new RequestTransmitter().requestPaceKey(new PaceKeyResponseListener(), this);
-            } catch (final IOException e) {
-                LOG.error("Connect: IsoDep unsuccessful connect", e);
+    /**
+     * Starts the bring-up of the card and returns at once. The transceiver connects on the card I/O thread, then the cached session is resumed or the
+     * PACE key is requested on the same thread. Commands transmitted meanwhile are queued behind the connect. The card is {@link State#READY} when it
+     * is connected and has a PACE key.
+     */
+    void bringUp() {
+        if (transceiver == null) {
+            LOG.debug("transceiver == null");
+            changeState(State.FAILED);
+            return;
+        }
+        submit(() -> {
+            connectTransceiver();
+            if (state == State.PACE) {
+                startSecureMessaging();
             }
-        } else {
-            LOG.debug("IsoDep == null");
+            return null;
+        });
+    }
+
+    private void connectTransceiver() {
+        if (state == State.RELEASED) {
+            return;
+        }
+        try {
+            LOG.debug("try transceiver.connect()");
+            transceiver.connect();
+            LOG.debug("transceiver.getMaxTransceiveLength(): {}", transceiver.getMaxTransceiveLength());
+            LOG.debug("original value for transceiver.getTimeout(): {}", transceiver.getTimeout());
+            transceiver.setTimeout(ISO_DEP_TIMEOUT);
+            currentTimeout = ISO_DEP_TIMEOUT;
+            LOG.debug("New value for transceiver.getTimeout(): {}", transceiver.getTimeout());
+        } catch (final IOException e) {
+            LOG.error("Connect: IsoDep unsuccessful connect", e);
+            if (changeState(State.FAILED) && presentCallBack != null) {
+                presentCallBack.tagLost();
+            }
+            return;
+        }
+        final boolean ready;
+        synchronized (stateLock) {
+            ready = paceKey != null;
+            if (!changeState(ready ? State.READY : State.PACE)) {
+                // released while connecting
+                closeTransceiver();
+                return;
+            }
+        }
+        if (ready && presentCallBack != null) {
+            presentCallBack.inform();
+        }
+    }
+
+    /**
+     * Resumes the cached secure messaging session of this card or requests a new PACE key
+     */
+    private void startSecureMessaging() {
+        final PaceKeyCache.Session session = paceKeyCache != null ? paceKeyCache.take(cardId) : null;
+        if (session == null) {
+            requestPaceKey();
+            return;
+        }
+        LOG.debug("resume secure messaging with cached PACE key");
+        synchronized (stateLock) {
+            paceKey = session.getPaceKey();
+            resumedSession = true;
+            basicChannel.resumeSecureMessaging(session.getSendSequenceCounter());
+            if (state != State.PACE) {
+                return;
+            }
+            changeState(State.READY);
+        }
+        if (presentCallBack != null) {
+            presentCallBack.inform();
+        }
+    }
+
+    /**
+     * Called when the PACE key of the card was established
+     *
+     * @param newPaceKey
+     *            session keys of the card
+     */
+    void onPaceKey(final PaceKey newPaceKey) {
+        final CompletableFuture<PaceKey> request;
+        final boolean ready;
+        synchronized (stateLock) {
+            paceKey = newPaceKey;
+            basicChannel.setTrustedChannelEstablished(true);
+            request = paceKeyRequest;
+            paceKeyRequest = null;
+            // while connecting the connect reports the card ready
+            ready = state != State.CONNECTING;
+            if (ready) {
+                changeState(State.READY);
+            }
+        }
+        if (ready && presentCallBack != null) {
+            presentCallBack.inform();
+        }
+        if (request != null) {
+            request.complete(newPaceKey);
+        }
+    }
+
+    /**
+     * Sets the new state and reports the time spent in the previous state. Once the card failed or was released its state does not change anymore.
+     *
+     * @return true if the state was changed
+     */
+    private boolean changeState(final State newState) {
+        final long elapsed;
+        synchronized (stateLock) {
+            final State oldState = state;
+            if (oldState == newState || oldState == State.FAILED || oldState == State.RELEASED) {
+                return false;
+            }
+            final long now = System.nanoTime();
+            elapsed = now - phaseStart;
+            phaseNanos[oldState.ordinal()] += elapsed;
+            phaseStart = now;
+            state = newState;
+            LOG.debug("card state {} -> {} after {} us", oldState, newState, TimeUnit.NANOSECONDS.toMicros(elapsed));
+        }
+        final ICardStateListener listener = stateListener;
+        if (listener != null) {
+            listener.stateChanged(this, newState, elapsed);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the bring-up state of the card
+     *
+     * @return current state
+     */
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * Returns the time the card spent in a state, e.g. the connect time for {@link State#CONNECTING} and the PACE time for {@link State#PACE}
+     *
+     * @param phase
+     *            state to return the time for
+     * @return time in nanoseconds, 0 if the card has not left the state yet
+     */
+    public long getPhaseNanos(final State phase) {
+        synchronized (stateLock) {
+            return phaseNanos[phase.ordinal()];
+        }
+    }
+
+    /**
+     * Registers the listener for the bring-up states of this card
+     *
+     * @param stateListener
+     *            listener, null to remove it
+     */
+    public void setStateListener(final ICardStateListener stateListener) {
+        this.stateListener = stateListener;
+    }
+
+    /**
+     * Requests the PACE key from the application, on the card I/O thread unless the card was created with
+     * {@link #NfcCard(ITransceiver, ICardPresentCallBack)}
+     */
+    void requestPaceKey() {
+        new RequestTransmitter().requestPaceKey(new PaceKeyResponseListener(), this);
+    }
+
+    /**
+     * Called by a channel if a response failed the secure messaging checks. The cached session of this card is discarded. If the session was resumed,
+     * the card has not accepted it and a new PACE key is requested.
+     *
+     * @return future completed with the new PACE key, null if the session was not resumed
+     */
+    CompletableFuture<PaceKey> onSecureMessagingFailed() {
+        secureMessagingFailed = true;
+        if (paceKeyCache != null) {
+            paceKeyCache.evict(cardId);
+        }
+        if (!resumedSession) {
+            return null;
         }
+        LOG.debug("resumed secure messaging session rejected");
+        return restartSecureMessaging();
+    }
+
+    /**
+     * Called by a channel if the secure messaging session is out of step with the card after a frame that timed out. The card may have executed the
+     * command or not, so its send sequence counter is not known. The session is discarded and a new PACE key is requested.
+     *
+     * @return future completed with the new PACE key, null without secure messaging
+     */
+    CompletableFuture<PaceKey> onSecureMessagingBroken() {
+        secureMessagingFailed = true;
+        if (paceKeyCache != null) {
+            paceKeyCache.evict(cardId);
+        }
+        LOG.debug("secure messaging session out of step after a timeout");
+        return restartSecureMessaging();
+    }
+
+    /**
+     * Waits for a PACE key requested after the secure messaging session was lost or rejected
+     *
+     * @param request
+     *            future of the requested PACE key
+     * @return future completed when the card has the new PACE key, or with a CardException if it did not come in time
+     */
+    CompletableFuture<Void> awaitPaceKey(final CompletableFuture<PaceKey> request) {
+        return awaitPaceKey(request, System.nanoTime() + TimeUnit.SECONDS.toNanos(PACE_KEY_TIMEOUT_SECONDS));
+    }
+
+    private static CompletableFuture<Void> awaitPaceKey(final CompletableFuture<PaceKey> request, final long deadline) {
+        RecoveryTimer.INSTANCE.schedule(() -> request.completeExceptionally(new CardException("no new PACE key in time")), deadline - System.nanoTime(),
+                TimeUnit.NANOSECONDS);
+        return request.thenApply(newPaceKey -> null);
+    }
+
+    private static ITransceiver createTransceiver(final Tag tag) {
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("NFCTag {} {}", Hex.encodeHexString(tag.getId()), tag);
+        }
+        return IsoDepTransceiver.get(tag);
     }
 
     /**
@@ -92,12 +419,12 @@ public class NfcCard implements ICard {
      */
     @Override
     public Atr getATR() {
-        if (isoDep != null) {
-            byte[] data = isoDep.getHistoricalBytes();
-            LOG.debug("data: " + data);
+        if (transceiver != null) {
+            byte[] data = transceiver.getHistoricalBytes();
+            LOG.debug("data: {}", data);
             if (data == null) {
-                data = isoDep.getHiLayerResponse();
-                LOG.debug("data " + data);
+                data = transceiver.getHiLayerResponse();
+                LOG.debug("data {}", data);
             }
             if (data != null) {
                 return new Atr(data);
@@ -131,6 +458,19 @@ public class NfcCard implements ICard {
         return basicChannel;
     }
 
+    /**
+     * Returns the number of operations waiting for the card I/O thread
+     *
+     * @return current queue depth
+     */
+    public int getQueueDepth() {
+        return ioExecutor.getQueue().size();
+    }
+
+    NfcCardChannel getBasicChannel() {
+        return basicChannel;
+    }
+
     /**
      * Opens a new logical channel to the card and returns it.
      *
@@ -141,7 +481,7 @@ public class NfcCard implements ICard {
     public ICardChannel openLogicalChannel() throws CardException {
         checkCardOpen();
 
-        final ResponseApdu response = transceive(MANAGE_CHANNEL_COMMAND_OPEN);
+        final ResponseApdu response = execute(() -> transceive(MANAGE_CHANNEL_COMMAND_OPEN));
         if (response.getSW() != RESPONSE_SUCCESS) {
             throw new CardException("openLogicalChannel failed, response code: " + String.format("0x%04x", response.getSW()));
         }
@@ -150,22 +490,485 @@ public class NfcCard implements ICard {
         return new NfcCardChannel(this, channelNo);
     }
 
+    /**
+     * Submits an operation of the basic channel with normal priority to the card I/O thread, see {@link #submit(ICardOperation, int, ApduPriority)}
+     *
+     * @param operation
+     *            operation to run on the card I/O thread
+     * @return future with the result of the operation
+     */
+    <T> CompletableFuture<T> submit(final ICardOperation<T> operation) {
+        return submit(operation, 0, ApduPriority.NORMAL);
+    }
+
+    /**
+     * Submits an operation to the card I/O thread. Operations of one card run one after the other. Queued operations of a higher priority run first.
+     * Within a priority the channels take turns, so a channel with many queued operations does not delay the next operation of another channel by more
+     * than one operation. Operations of one channel and priority run in the order they were submitted.
+     *
+     * Cancelling the returned future before the operation started removes it, cancelling it while the operation is running closes the transceiver, so a
+     * pending transceive returns at once and the card has to be discovered again.
+     *
+     * @param operation
+     *            operation to run on the card I/O thread
+     * @param channelNo
+     *            number of the logical channel of the operation
+     * @param priority
+     *            priority of the operation
+     * @return future with the result of the operation
+     */
+    <T> CompletableFuture<T> submit(final ICardOperation<T> operation, final int channelNo, final ApduPriority priority) {
+        return submit(operation, channelNo, priority, NO_DEADLINE);
+    }
+
+    /**
+     * Submits an operation with a deadline to the card I/O thread, see {@link #submit(ICardOperation, int, ApduPriority)}. Within a priority queued
+     * operations with a deadline run first, the earliest deadline first. An operation that starts after its deadline still runs and is counted in
+     * {@link ApduMetrics#getMissedDeadlineCount()}.
+     *
+     * @param operation
+     *            operation to run on the card I/O thread
+     * @param channelNo
+     *            number of the logical channel of the operation
+     * @param priority
+     *            priority of the operation
+     * @param deadlineNanos
+     *            time in nanoseconds from now until the operation should have started, {@link #NO_DEADLINE} for none
+     * @return future with the result of the operation
+     */
+    <T> CompletableFuture<T> submit(final ICardOperation<T> operation, final int channelNo, final ApduPriority priority, final long deadlineNanos) {
+        final CardTask<T> task;
+        synchronized (scheduleLock) {
+            // start-time fair queuing: a channel gets the next turn after its last operation, but not one that has already passed
+            final Long lastTurn = channelTurns.get(channelNo);
+            final long turn = lastTurn != null ? Math.max(currentTurn, lastTurn + 1) : currentTurn;
+            channelTurns.put(channelNo, turn);
+            task = new CardTask<>(operation, priority, deadlineNanos, turn, submittedTasks++);
+        }
+        try {
+            ioExecutor.execute(task);
+            metrics.recordQueueDepth(ioExecutor.getQueue().size());
+        } catch (final RejectedExecutionException e) {
+            task.completeExceptionally(new CardException("card was released", e));
+        }
+        return task;
+    }
+
+    /**
+     * Runs an operation on the card I/O thread and waits for its result. Called on the card I/O thread itself the operation runs directly, so
+     * operations can be nested.
+     *
+     * @param operation
+     *            operation to run on the card I/O thread
+     * @return result of the operation
+     * @throws CardException
+     *             if the operation failed or the waiting thread was interrupted
+     */
+    <T> T execute(final ICardOperation<T> operation) throws CardException {
+        return execute(operation, 0, ApduPriority.NORMAL);
+    }
+
+    /**
+     * Runs an operation on the card I/O thread and waits for its result, see {@link #execute(ICardOperation)} and
+     * {@link #submit(ICardOperation, int, ApduPriority)}
+     *
+     * @param operation
+     *            operation to run on the card I/O thread
+     * @param channelNo
+     *            number of the logical channel of the operation
+     * @param priority
+     *            priority of the operation
+     * @return result of the operation
+     * @throws CardException
+     *             if the operation failed or the waiting thread was interrupted
+     */
+    <T> T execute(final ICardOperation<T> operation, final int channelNo, final ApduPriority priority) throws CardException {
+        if (isIoThread()) {
+            return operation.run();
+        }
+        return await(submit(operation, channelNo, priority));
+    }
+
+    /**
+     * Returns if the calling thread is the card I/O thread, which must not wait for operations queued behind it
+     *
+     * @return true on the card I/O thread
+     */
+    boolean isIoThread() {
+        return Thread.currentThread() == ioThread;
+    }
+
+    /**
+     * Waits for the result of a card operation
+     *
+     * @param future
+     *            future of the operation
+     * @return result of the operation
+     * @throws CardException
+     *             if the operation failed or the waiting thread was interrupted
+     */
+    <T> T await(final CompletableFuture<T> future) throws CardException {
+        try {
+            return future.get();
+        } catch (final InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new CardException("card operation interrupted", e);
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof CardException) {
+                throw (CardException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new CardException(cause.getMessage(), cause);
+        }
+    }
+
+    private void abortTransceive() {
+        LOG.debug("card operation cancelled, closing transceiver");
+        if (transceiver == null) {
+            return;
+        }
+        try {
+            transceiver.close();
+        } catch (final IOException e) {
+            LOG.error("closing transceiver after cancel failed", e);
+        }
+    }
+
     protected ResponseApdu transceive(final ICommandApdu commandApdu) throws CardException {
+        return transceive(commandApdu, commandApdu.getNe() != null ? commandApdu.getNe() : 0);
+    }
+
+    /**
+     * Transceives a frame whose response length is not given by its own Le, e.g. a command with secure messaging. If the frame fails with the learned
+     * timeout while the tag is still connected, the card took longer than learned and the frame is transceived once more with the backed-off timeout,
+     * at least the fixed timeout of 5 s. The card may have executed the first frame, see {@link #isFrameRepeated()}.
+     *
+     * @param commandApdu
+     *            frame to transceive
+     * @param expectedResponseLength
+     *            expected length of the response data, used to choose the learned timeout
+     * @return response frame
+     * @throws CardException
+     *             a {@link TransceiveTimeoutException} if the repeated frame timed out as well while the tag stayed connected
+     */
+    protected ResponseApdu transceive(final ICommandApdu commandApdu, final int expectedResponseLength) throws CardException {
         checkCardOpen();
         final byte[] commandBytes = commandApdu.getBytes();
-        final ResponseApdu responseApdu;
+        final int frameLength = commandBytes.length + expectedResponseLength;
+        final AdaptiveTimeout timeouts = adaptiveTimeout;
+        if (timeouts != null) {
+            applyTimeout(timeouts.getTimeoutMillis(getCardType(), commandApdu.getIns(), frameLength));
+        }
+        frameRepeated = false;
         try {
-            responseApdu = new ResponseApdu(isoDep.transceive(commandBytes));
+            try {
+                return transceiveFrame(commandApdu, commandBytes, frameLength, timeouts);
+            } catch (final IOException e) {
+                if (timeouts == null || !transceiver.isConnected()) {
+                    throw e;
+                }
+                // the tag is still there, the card took longer than learned
+                timeouts.recordFailure(cardType, commandApdu.getIns(), frameLength);
+                LOG.debug("no response within the learned timeout of {} ms, frame transceived again", currentTimeout);
+                applyTimeout(Math.max(timeouts.getTimeoutMillis(cardType, commandApdu.getIns(), frameLength), ISO_DEP_TIMEOUT));
+                frameRepeated = true;
+                return transceiveFrame(commandApdu, commandBytes, frameLength, timeouts);
+            }
         } catch (final IllegalArgumentException e) {
             throw new CardException("Transceive APDU IllegalArgumentException", e);
         } catch (final IOException e) {
+            if (timeouts != null) {
+                timeouts.recordFailure(cardType, commandApdu.getIns(), frameLength);
+            }
+            if (frameRepeated && transceiver.isConnected()) {
+                throw new TransceiveTimeoutException("Transceive APDU timed out twice", e);
+            }
+            tagLost = true;
+            synchronized (stateLock) {
+                if (tagRediscovered == null || tagRediscovered.isDone()) {
+                    tagRediscovered = new CompletableFuture<>();
+                }
+            }
+            if (presentCallBack != null) {
+                presentCallBack.tagLost();
+            }
             throw new CardException("Transceive APDU IOException", e);
         }
+    }
+
+    private ResponseApdu transceiveFrame(final ICommandApdu commandApdu, final byte[] commandBytes, final int frameLength,
+            final AdaptiveTimeout timeouts) throws IOException {
+        final ApduTraceBuffer trace = apduTrace;
+        if (trace != null) {
+            trace.recordCommand(commandBytes);
+        }
+        final long start = System.nanoTime();
+        final byte[] responseBytes = transceiver.transceive(commandBytes);
+        final long roundTrip = System.nanoTime() - start;
+        if (trace != null) {
+            trace.recordResponse(responseBytes);
+        }
+        final ResponseApdu responseApdu = new ResponseApdu(responseBytes);
+        metrics.recordFrame(commandApdu.getIns(), commandBytes.length, responseBytes.length, responseApdu.getSW(), roundTrip);
+        if (timeouts != null) {
+            timeouts.recordRoundTrip(cardType, commandApdu.getIns(), frameLength, roundTrip);
+        }
         return responseApdu;
     }
 
     /**
-     * Disconnects the connection with this card and reset the isoDep connection.
+     * Returns whether the last frame was transceived again after its learned timeout. With secure messaging the card may have executed and counted
+     * the first frame, so it rejects the repeated one and the session is out of step.
+     *
+     * @return true if the last frame was repeated
+     */
+    boolean isFrameRepeated() {
+        return frameRepeated;
+    }
+
+    /**
+     * Waits until the lost tag is discovered again and connected through its new Tag object, see {@link #onTagDiscovered(Tag)}. If secure messaging was
+     * established, the card has lost its session with the power and a new PACE key is requested on the card I/O thread. Neither the tag nor the PACE
+     * key is awaited on the card I/O thread, so the PACE commands can be transmitted. While the card recovers, the reader does not report it absent.
+     * If it does not recover in time, the loss of the tag is reported again.
+     *
+     * @param recoveryNanos
+     *            time the tag may take to come back and to get a new PACE key
+     * @return future completed when the card can be used again, or with a CardException if the tag or the PACE key did not come in time
+     */
+    CompletableFuture<Void> recover(final long recoveryNanos) {
+        synchronized (stateLock) {
+            // commands that lost the tag together wait for the same reconnect
+            if (recovery == null || recovery.isDone()) {
+                recovery = startRecovery(System.nanoTime() + recoveryNanos);
+            }
+            return recovery;
+        }
+    }
+
+    private CompletableFuture<Void> startRecovery(final long deadline) {
+        final CompletableFuture<Void> rediscovery;
+        synchronized (stateLock) {
+            // the tag may have been discovered again before the first command gave up
+            rediscovery = tagRediscovered != null ? tagRediscovered : CompletableFuture.completedFuture(null);
+        }
+        final CompletableFuture<Void> recovered = awaitRediscovery(rediscovery, deadline)
+                .thenCompose(ignored -> submit(this::restartSecureMessaging, 0, ApduPriority.INTERACTIVE)).thenCompose(request -> {
+                    if (request == null) {
+                        return CompletableFuture.<Void> completedFuture(null);
+                    }
+                    return awaitPaceKey(request, deadline);
+                });
+        recovered.whenComplete((ignored, e) -> {
+            if (e != null && presentCallBack != null) {
+                presentCallBack.tagLost();
+            }
+        });
+        return recovered;
+    }
+
+    private static CompletableFuture<Void> awaitRediscovery(final CompletableFuture<Void> rediscovery, final long deadline) {
+        // the shared rediscovery is not failed by the deadline of one recovery
+        final CompletableFuture<Void> result = new CompletableFuture<>();
+        rediscovery.whenComplete((ignored, e) -> {
+            if (e != null) {
+                result.completeExceptionally(e);
+            } else {
+                result.complete(null);
+            }
+        });
+        RecoveryTimer.INSTANCE.schedule(() -> result.completeExceptionally(new CardException("tag was not discovered again in time")),
+                deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        return result;
+    }
+
+    /**
+     * Returns whether the card waits for its lost tag to be discovered again or for the new PACE key after that
+     *
+     * @return true while the card recovers from a lost tag
+     */
+    boolean isRecovering() {
+        synchronized (stateLock) {
+            return recovery != null && !recovery.isDone();
+        }
+    }
+
+    /**
+     * Connects the card through the tag of a new discovery of the same UID. The IsoDep object of the previous discovery is stale, so the transceiver
+     * switches to the new tag on the card I/O thread before the next command. The secure messaging session with its send sequence counter and the
+     * selected file are kept. If the card has lost power meanwhile, it rejects the session and a new PACE key is requested.
+     *
+     * @param tag
+     *            tag of the new discovery
+     * @return false if the card failed or was released and has to be replaced
+     */
+    boolean onTagDiscovered(final Tag tag) {
+        synchronized (stateLock) {
+            if (transceiver == null || state == State.FAILED || state == State.RELEASED) {
+                return false;
+            }
+        }
+        submit(() -> {
+            switchTagOnIoThread(tag);
+            return null;
+        }, 0, ApduPriority.INTERACTIVE);
+        return true;
+    }
+
+    private void switchTagOnIoThread(final Tag tag) {
+        if (state == State.RELEASED) {
+            return;
+        }
+        try {
+            transceiver.reconnect(tag);
+            transceiver.setTimeout(ISO_DEP_TIMEOUT);
+            currentTimeout = ISO_DEP_TIMEOUT;
+        } catch (final IOException e) {
+            LOG.error("connecting the tag discovered again failed", e);
+            if (presentCallBack != null) {
+                presentCallBack.tagLost();
+            }
+            return;
+        }
+        LOG.debug("tag discovered again, secure messaging session kept");
+        tagLost = false;
+        final CompletableFuture<Void> rediscovery;
+        synchronized (stateLock) {
+            // the card may have lost power in between, a rejected session is replaced by a new PACE
+            resumedSession = paceKey != null;
+            rediscovery = tagRediscovered;
+        }
+        if (basicChannel != null) {
+            basicChannel.invalidateSelection();
+        }
+        if (rediscovery != null) {
+            rediscovery.complete(null);
+        }
+    }
+
+    private CompletableFuture<PaceKey> restartSecureMessaging() {
+        final CompletableFuture<PaceKey> request;
+        synchronized (stateLock) {
+            if (paceKey == null) {
+                return null;
+            }
+            LOG.debug("request new PACE key for a new secure messaging session");
+            paceKey = null;
+            resumedSession = false;
+            secureMessagingFailed = false;
+            basicChannel.resetSecureMessaging();
+            request = new CompletableFuture<>();
+            paceKeyRequest = request;
+            changeState(State.PACE);
+        }
+        requestPaceKey();
+        return request;
+    }
+
+    /**
+     * Sets which commands are transmitted again after the tag was lost, see {@link RetryPolicy}
+     *
+     * @param retryPolicy
+     *            policy for the following commands, {@link RetryPolicy#NONE} to disable retries
+     */
+    public void setRetryPolicy(final RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    private void applyTimeout(final int timeout) {
+        if (timeout != currentTimeout) {
+            transceiver.setTimeout(timeout);
+            currentTimeout = timeout;
+        }
+    }
+
+    private String getCardType() {
+        if (cardType == null) {
+            cardType = Hex.encodeHexString(getATR().getBytes());
+        }
+        return cardType;
+    }
+
+    /**
+     * Sets the transceive timeout of every command from the round trip times learned for its instruction and the type of this card instead of the
+     * fixed timeout of 5 s
+     *
+     * @param adaptiveTimeout
+     *            learned timeouts, null for the fixed timeout
+     */
+    public void setAdaptiveTimeout(final AdaptiveTimeout adaptiveTimeout) {
+        this.adaptiveTimeout = adaptiveTimeout;
+    }
+
+    /**
+     * Serves repeated reads of immutable EFs of this card from a cache. The files of another card are evicted from the cache. A card without tag UID is
+     * not cached.
+     *
+     * @param efCache
+     *            cache of EF contents, null for none
+     */
+    public void setEfCache(final EfCache efCache) {
+        if (efCache != null) {
+            efCache.changeCard(cardId);
+        }
+        this.efCache = efCache;
+    }
+
+    EfCache getEfCache() {
+        return cardId != null ? efCache : null;
+    }
+
+    /**
+     * Keeps the immutable EFs of this card read with {@link NfcCardChannel#readBinary(int, int)} in a file, so they are available in the next session
+     * before PACE is finished, see {@link #getCachedFile(int)}
+     *
+     * @param efCacheFile
+     *            persistent cache, null for none
+     */
+    public void setEfCacheFile(final EfCacheFile efCacheFile) {
+        this.efCacheFile = efCacheFile;
+    }
+
+    EfCacheFile getEfCacheFile() {
+        return cardId != null ? efCacheFile : null;
+    }
+
+    /**
+     * Returns the content of an EF of this card stored in an earlier session. It can be called in every state, e.g. to show card holder data while PACE
+     * is running. The files are checked against EF.Version2 of the card once it is read in this session; if it changed, the files of the card are
+     * removed.
+     *
+     * @param fileIdentifier
+     *            file identifier of the EF
+     * @return content of the EF or null if it is not cached
+     */
+    public byte[] getCachedFile(final int fileIdentifier) {
+        final EfCacheFile cacheFile = getEfCacheFile();
+        return cacheFile != null ? cacheFile.get(cardId, fileIdentifier) : null;
+    }
+
+    /**
+     * Returns the identity of this card, its tag UID and historical bytes
+     *
+     * @return identity or null without tag UID
+     */
+    String getCardId() {
+        return cardId;
+    }
+
+    /**
+     * Disconnects the connection with this card and reset the transceiver connection.
      *
      * @param reset
      * @throws CardException
@@ -173,44 +976,116 @@ public class NfcCard implements ICard {
     @Override
     public void disconnect(final boolean reset) throws CardException {
         checkCardOpen();
+        execute(() -> {
+            disconnectOnIoThread(reset);
+            return null;
+        });
+    }
+
+    private void disconnectOnIoThread(final boolean reset) throws CardException {
         final ResponseApdu responseApdu;
         responseApdu = transceive(MANAGE_CHANNEL_COMMAND_CLOSE);
         if (responseApdu.getSW() != RESPONSE_SUCCESS) {
             throw new CardException("RESET CHANNEL unexpected response: " + responseApdu.getSW());
         }
+        if (basicChannel != null) {
+            // RESET CHANNEL selects the MF
+            basicChannel.resetSelection();
+        }
         if (reset) {
             try {
-                final Tag tag = isoDep.getTag();
-                isoDep.close();
-                isoDep = IsoDep.get(tag);
-                isoDep.connect();
-                isoDep.setTimeout(ISO_DEP_TIMEOUT);
+                transceiver.reconnect();
+                transceiver.setTimeout(ISO_DEP_TIMEOUT);
+                currentTimeout = ISO_DEP_TIMEOUT;
             } catch (final IOException e) {
                 throw new CardException("unsuccessful reset of isodep connection", e);
             }
         }
     }
 
+    /**
+     * Stores the secure messaging session in the cache, closes the transceiver and stops the card I/O thread. Called by the reader if the card was
+     * removed or replaced by another tag. The session is not stored if the tag was lost during a transmission, because the card has most likely lost
+     * power and with it the session.
+     */
+    void release() {
+        changeState(State.RELEASED);
+        final CompletableFuture<PaceKey> request;
+        final CompletableFuture<Void> rediscovery;
+        synchronized (stateLock) {
+            request = paceKeyRequest;
+            paceKeyRequest = null;
+            rediscovery = tagRediscovered;
+        }
+        if (request != null) {
+            request.completeExceptionally(new CardException("card was released"));
+        }
+        if (rediscovery != null) {
+            rediscovery.completeExceptionally(new CardException("card was released"));
+        }
+        if (paceKeyCache != null) {
+            submit(() -> {
+                storeSession();
+                return null;
+            });
+        }
+        ioExecutor.shutdown();
+        closeTransceiver();
+    }
+
+    private void closeTransceiver() {
+        if (transceiver == null) {
+            return;
+        }
+        try {
+            transceiver.close();
+        } catch (final IOException e) {
+            LOG.debug("closing transceiver of released card failed", e);
+        }
+    }
+
+    private void storeSession() {
+        if (paceKey == null || secureMessagingFailed || tagLost) {
+            return;
+        }
+        final byte[] ssc = basicChannel.getSendSequenceCounter();
+        if (ssc != null) {
+            paceKeyCache.put(cardId, paceKey, ssc);
+        }
+    }
+
     /**
      * Returns if card is present
      *
-     * @return true if IsoDep not null and IsoDep is connected false if IsoDep is null or IsoDep is not connected
-     * @throws CardException
+     * @return true if the transceiver is connected false if it is not connected
      */
     public boolean isCardPresent() {
-        final boolean result = isoDep.isConnected();
-        LOG.debug("isCardPresent() = " + result);
+        // a tag that is still connecting is in the field
+        final boolean result = transceiver != null && (state == State.CONNECTING || transceiver.isConnected());
+        LOG.debug("isCardPresent() = {}", result);
         return result;
     }
 
     /**
-     * Returns if extended length on IsoDep is supported
+     * Returns the maximum number of bytes the transceiver can send in one frame
+     *
+     * @return maximum length, 0 if unknown
+     */
+    public int getMaxTransceiveLength() {
+        if (transceiver != null) {
+            return transceiver.getMaxTransceiveLength();
+        }
+        return 0;
+    }
+
+    /**
+     * Returns if extended length on the transceiver is supported
      *
      * @return true if extended length is supported false if extended length is not supported
      */
     public boolean isExtendedLengthApduSupported() {
-        if (isoDep != null) {
-            isExtendedLengthApduSupported = isoDep.isExtendedLengthApduSupported();
+        if (transceiver != null) {
+            isExtendedLengthApduSupported = transceiver.isExtendedLengthApduSupported();
         }
         return isExtendedLengthApduSupported;
     }
@@ -222,6 +1097,29 @@ public class NfcCard implements ICard {
         }
     }
 
+    /**
+     * Returns the latency and throughput metrics of the APDUs exchanged with this card
+     *
+     * @return metrics of this card
+     */
+    public ApduMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Enables the binary APDU trace of this card. Every frame sent and received is copied into the buffer, nothing is formatted.
+     *
+     * @param apduTrace
+     *            buffer for the frames, null disables the trace
+     */
+    public void setApduTrace(final ApduTraceBuffer apduTrace) {
+        this.apduTrace = apduTrace;
+    }
+
+    public ApduTraceBuffer getApduTrace() {
+        return apduTrace;
+    }
+
     public PaceKey getPaceKey() {
         return paceKey;
     }
@@ -230,14 +1128,121 @@ public class NfcCard implements ICard {
 
         @Override
         public void handlePaceKey(final PaceKey paceKey) {
-            NfcCard.this.paceKey = paceKey;
-            basicChannel.setTrustedChannelEstablished(true);
-            presentCallBack.inform();
+            onPaceKey(paceKey);
         }
 
     }
 
+    /**
+     * Daemon thread that ends the wait for a lost tag or for a PACE key after a reconnect, created on first use
+     */
+    private static final class RecoveryTimer {
+        private static final ScheduledExecutorService INSTANCE = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "nfc-card-recovery");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        private RecoveryTimer() {
+        }
+    }
+
+    /**
+     * Task of the card I/O thread, completes the future with the result of the operation. Tasks are ordered by priority, deadline, turn of their
+     * channel and submission.
+     */
+    private final class CardTask<T> extends CompletableFuture<T> implements Runnable, Comparable<CardTask<?>> {
+        private final ICardOperation<T> operation;
+        private final ApduPriority priority;
+        private final long submitted = System.nanoTime();
+        private final boolean hasDeadline;
+        private final long deadline;
+        private final long turn;
+        private final long sequence;
+        private volatile boolean running = false;
+
+        private CardTask(final ICardOperation<T> operation, final ApduPriority priority, final long deadlineNanos, final long turn, final long sequence) {
+            this.operation = operation;
+            this.priority = priority;
+            hasDeadline = deadlineNanos != NO_DEADLINE;
+            deadline = hasDeadline ? submitted + deadlineNanos : 0;
+            this.turn = turn;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            if (isDone()) {
+                return;
+            }
+            synchronized (scheduleLock) {
+                currentTurn = Math.max(currentTurn, turn);
+            }
+            final long now = System.nanoTime();
+            metrics.recordQueueWait(now - submitted, hasDeadline && now - deadline > 0);
+            running = true;
+            try {
+                complete(operation.run());
+            } catch (final Throwable e) {
+                completeExceptionally(e);
+            } finally {
+                running = false;
+            }
+        }
+
+        @Override
+        public boolean cancel(final boolean mayInterruptIfRunning) {
+            final boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled && running) {
+                abortTransceive();
+            }
+            return cancelled;
+        }
+
+        @Override
+        public int compareTo(final CardTask<?> other) {
+            if (priority != other.priority) {
+                return priority.compareTo(other.priority);
+            }
+            if (hasDeadline != other.hasDeadline) {
+                return hasDeadline ? -1 : 1;
+            }
+            if (hasDeadline && deadline != other.deadline) {
+                return deadline - other.deadline < 0 ? -1 : 1;
+            }
+            if (turn != other.turn) {
+                return Long.compare(turn, other.turn);
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+
+    /**
+     * Operation on the card, run by the card I/O thread
+     */
+    interface ICardOperation<T> {
+        T run() throws CardException;
+    }
+
+    /**
+     * A frame got no response within the timeout twice while the tag stayed connected. The card is still in the field, but it is not known whether it
+     * executed the command.
+     */
+    static final class TransceiveTimeoutException extends CardException {
+        private static final long serialVersionUID = 1L;
+
+        TransceiveTimeoutException(final String message, final Throwable cause) {
+            super(message, cause);
+        }
+    }
+
     interface ICardPresentCallBack {
         void inform();
+
+        /**
+         * Called if a transmission failed because the card left the field
+         */
+        default void tagLost() {
+        }
     }
 }
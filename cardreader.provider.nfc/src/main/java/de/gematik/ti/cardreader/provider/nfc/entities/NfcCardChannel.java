@@ -16,8 +16,23 @@
 
 package de.gematik.ti.cardreader.provider.nfc.entities;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -29,7 +44,12 @@ import de.gematik.ti.cardreader.provider.api.command.CommandApdu;
 import de.gematik.ti.cardreader.provider.api.command.ICommandApdu;
 import de.gematik.ti.cardreader.provider.api.command.IResponseApdu;
 import de.gematik.ti.cardreader.provider.api.command.ResponseApdu;
+import de.gematik.ti.cardreader.provider.nfc.cache.EfCache;
+import de.gematik.ti.cardreader.provider.nfc.cache.EfCacheFile;
+import de.gematik.ti.cardreader.provider.nfc.metrics.ApduMetrics;
+import de.gematik.ti.cardreader.provider.nfc.metrics.ApduTiming;
 import de.gematik.ti.cardreader.provider.nfc.security.SecureMessaging;
+import de.gematik.ti.openhealthcard.events.response.entities.PaceKey;
 import de.gematik.ti.utils.codec.Hex;
 
 /**
@@ -43,6 +63,59 @@ public class NfcCardChannel implements ICardChannel {
     private static final int RESPONSE_SUCCESS = 0x9000;
     private static final int LOW_CHANNEL_NUMBER_VALUE = 4;
     private static final int MAX_CHANNEL_NO_VALUE = 20;
+    private static final int DEFAULT_MAX_LENGTH = 261;
+    private static final int SHORT_MAX_RESPONSE_LENGTH = 258;
+    // header, extended Lc and extended Le of a plain command
+    private static final int EXTENDED_COMMAND_OVERHEAD = 4 + 3 + 2;
+    private static final int STATUS_SIZE = 2;
+    private static final int SW_SM_DATA_OBJECTS_MISSING = 0x6987;
+    private static final int SW_SM_DATA_OBJECTS_INCORRECT = 0x6988;
+    private static final int INS_READ_BINARY = 0xB0;
+    private static final int MAX_READ_BINARY_OFFSET = 0x7FFF;
+    private static final int MIN_READ_BINARY_CHUNK_SIZE = 0xDF;
+    private static final int SW_END_OF_FILE = 0x6282;
+    private static final int SW_WRONG_LENGTH = 0x6700;
+    private static final int SW_WRONG_LE = 0x6C00;
+    private static final int SW_OFFSET_OUT_OF_RANGE = 0x6B00;
+    private static final int SW_MASK = 0xFF00;
+    private static final int BYTE_MASK = 0xFF;
+    private static final int BYTE_VALUE = 8;
+    private static final int P1_SELECT_BY_AID = 0x04;
+    private static final int P1_SELECT_BY_PATH_FROM_MF = 0x08;
+    private static final int MAX_SELECT_PATH = 8;
+    private static final int P1_SELECT_CHILD_DF = 0x01;
+    private static final int P1_SELECT_CHILD_EF = 0x02;
+    private static final int P1_SELECT_BY_PATH_FROM_DF = 0x09;
+    private static final int FILE_ID_SIZE = 2;
+    private static final int NO_FILE_ID = -1;
+    private static final int P1_SHORT_FILE_ID = 0x80;
+    private static final int SHORT_FILE_ID_MASK = 0x1F;
+    private static final int INS_UPDATE_BINARY = 0xD6;
+    private static final int INS_WRITE_BINARY = 0xD0;
+    private static final int INS_ERASE_BINARY = 0x0E;
+    private static final int INS_ODD = 0x01;
+    private static final String SHORT_FILE_KEY = "sfi";
+    private static final int INS_MANAGE_CHANNEL = 0x70;
+    private static final int INS_READ_RECORD = 0xB2;
+    private static final int INS_UPDATE_RECORD = 0xDC;
+    private static final int INS_APPEND_RECORD = 0xE2;
+    private static final int INS_SEARCH_RECORD = 0xA2;
+    private static final int RECORD_SHORT_FILE_ID_SHIFT = 3;
+    private static final int FCP_TAG = 0x62;
+    private static final int FCP_FILE_SIZE_TAG = 0x80;
+    private static final int FCP_SHORT_FILE_ID_TAG = 0x88;
+    private static final int LENGTH_BYTES_FLAG = 0x80;
+    private static final int NO_FILE_SIZE = -1;
+    private static final int NO_CORRECTED_NE = -1;
+    private static final int SW_BYTES_REMAINING = 0x6100;
+    private static final int INS_GET_RESPONSE = 0xC0;
+    private static final int SHORT_LE_MAX = 256;
+    private static final int MAX_RESPONSE_DATA_LENGTH = 65536;
+    private static final int CLA_COMMAND_CHAINING = 0x10;
+    // header, short Lc and short Le of a plain command
+    private static final int SHORT_COMMAND_OVERHEAD = 4 + 1 + 1;
+    private static final int SHORT_MAX_DATA_LENGTH = 255;
+    private static final int EXTENDED_MAX_DATA_LENGTH = 65535;
 
     private final int channelNo;
     private final NfcCard nfcCard;
@@ -50,6 +123,30 @@ public class NfcCardChannel implements ICardChannel {
     private SecureMessaging secureMessaging;
 
     private boolean channelClosed = false;
+    private volatile ApduPriority priority = ApduPriority.NORMAL;
+    // chunk size of readBinary, used on the card I/O thread only
+    private int readBinaryChunkSize = CommandApdu.EXPECTED_LENGTH_WILDCARD_EXTENDED;
+    // the Le the card asked for with 6Cxx in the current command, NO_CORRECTED_NE if it did not, used on the card I/O thread only
+    private int correctedNe = NO_CORRECTED_NE;
+    // SELECT commands from the MF or an application to the current file, used on the card I/O thread only
+    private final List<ICommandApdu> selectPath = new ArrayList<>();
+    // a card starts with the MF selected
+    private boolean selectionKnown = true;
+    private String selectedFileKey = "";
+    private int selectedFileId = NO_FILE_ID;
+    private int selectedShortFileId = EfCache.NO_SHORT_FILE_ID;
+    // the last SELECT and its response while nothing has changed the selection since
+    private byte[] lastSelectCommand;
+    private byte[] lastSelectResponse;
+    // file size and short file identifier from the FCP per file, used on the card I/O thread only
+    private final Map<String, FileControlParameters> fileControlParameters = new HashMap<>();
+    private volatile FileControlParameters selectedFileParameters;
+    // the secure messaging session changed, the last SELECT and the FCPs are forgotten before the next command
+    private final AtomicBoolean sessionChanged = new AtomicBoolean();
+    // GET RESPONSE commands and commands sent again with the Le from 6Cxx
+    private final AtomicLong responseRoundTrips = new AtomicLong();
+    // the commands of transmit(List) while they are transmitted, used on the card I/O thread only
+    private CommandPipeline pipeline;
 
     NfcCardChannel(NfcCard nfcCard) {
         this(nfcCard, 0);
@@ -84,22 +181,56 @@ public class NfcCardChannel implements ICardChannel {
     @Override
     public boolean isExtendedLengthSupported() {
         boolean isExtendedLengthSupported = getMaxMessageLength() > 255 && getMaxResponseLength() > 255;
-        LOG.debug("isExtendedLengthSupported: " + isExtendedLengthSupported);
+        LOG.debug("isExtendedLengthSupported: {}", isExtendedLengthSupported);
         return isExtendedLengthSupported;
     }
 
+    /**
+     * Returns the maximum length of a plain command APDU. It is derived from the maximum transceive length of the card and reduced by the secure
+     * messaging overhead if the trusted channel is established. Without a known transceive length the limit is 261 bytes.
+     *
+     * @return maximum length of a command APDU
+     */
     @Override
     public int getMaxMessageLength() {
-        return 261;
+        int maxLength = nfcCard.getMaxTransceiveLength();
+        if (maxLength <= 0) {
+            return DEFAULT_MAX_LENGTH;
+        }
+        if (!nfcCard.isExtendedLengthApduSupported()) {
+            maxLength = Math.min(maxLength, DEFAULT_MAX_LENGTH);
+        }
+        if (isTrustedChannelEstablished()) {
+            maxLength = SecureMessaging.getMaxCommandDataLength(maxLength) + EXTENDED_COMMAND_OVERHEAD;
+        }
+        return maxLength;
     }
 
+    /**
+     * Returns the maximum length of a plain response APDU including the status word. It is derived from the maximum transceive length of the card and
+     * reduced by the secure messaging overhead if the trusted channel is established. Without a known transceive length the limit is 261 bytes.
+     *
+     * @return maximum length of a response APDU
+     */
     @Override
     public int getMaxResponseLength() {
-        return 261;
+        int maxLength = nfcCard.getMaxTransceiveLength();
+        if (maxLength <= 0) {
+            return DEFAULT_MAX_LENGTH;
+        }
+        if (!nfcCard.isExtendedLengthApduSupported()) {
+            maxLength = Math.min(maxLength, SHORT_MAX_RESPONSE_LENGTH);
+        }
+        if (isTrustedChannelEstablished()) {
+            maxLength = SecureMessaging.getMaxResponseDataLength(maxLength) + STATUS_SIZE;
+        }
+        return maxLength;
     }
 
     /**
-     * Returns the responseApdu after transmitting a commandApdu
+     * Returns the responseApdu after transmitting a commandApdu. The command is transmitted on the card I/O thread, see
+     * {@link #transmitAsync(ICommandApdu)}. Called on the card I/O thread, the command is neither retried nor transmitted again with a new PACE key,
+     * because both need the card I/O thread.
      *
      * @param commandApdu
      * @return responseApdu
@@ -107,53 +238,604 @@ public class NfcCardChannel implements ICardChannel {
      */
     @Override
     public IResponseApdu transmit(ICommandApdu commandApdu) throws CardException {
+        if (nfcCard.isIoThread()) {
+            return nfcCard.execute(() -> transmitOnIoThread(commandApdu), channelNo, priority);
+        }
+        return nfcCard.await(new RetryingTransmit<>(commandApdu, priority, () -> transmitOnIoThread(commandApdu)).start(NfcCard.NO_DEADLINE));
+    }
 
-        LOG.debug("Command: " + de.gematik.ti.utils.codec.Hex.encodeHexString(commandApdu.getBytes()));
+    /**
+     * Transmits a commandApdu with the priority of this channel on the card I/O thread without blocking the caller, see
+     * {@link #transmitAsync(ICommandApdu, ApduPriority)}.
+     *
+     * @param commandApdu
+     * @return future completed with the responseApdu or with a CardException
+     */
+    public CompletableFuture<IResponseApdu> transmitAsync(final ICommandApdu commandApdu) {
+        return transmitAsync(commandApdu, priority);
+    }
 
-        ICommandApdu command = commandApdu;
-        ICommandApdu encryptedCommand = null;
+    /**
+     * Transmits a commandApdu on the card I/O thread without blocking the caller. Commands of all channels of a card are transmitted one after the
+     * other, queued commands of a higher priority first and the channels taking turns within a priority. Cancelling the future of a command that is
+     * already transmitted closes the connection to the card. If the tag is lost, commands of the basic channel allowed by the {@link RetryPolicy} of the
+     * card are transmitted again after the reconnect. If the card rejects a resumed secure messaging session, the command is transmitted again once
+     * with the new PACE key. If the session is out of step after a frame timed out, a new PACE key is requested as well and commands allowed by the
+     * {@link RetryPolicy} are transmitted again with it.
+     *
+     * @param commandApdu
+     * @param commandPriority
+     *            priority of this command
+     * @return future completed with the responseApdu or with a CardException
+     */
+    public CompletableFuture<IResponseApdu> transmitAsync(final ICommandApdu commandApdu, final ApduPriority commandPriority) {
+        return submitTransmit(commandApdu, commandPriority, NfcCard.NO_DEADLINE);
+    }
 
-        ResponseApdu responseApdu = null;
+    /**
+     * Transmits a commandApdu with a deadline on the card I/O thread without blocking the caller, e.g. a PIN verification the user is waiting for.
+     * Queued commands of the same priority with a deadline are transmitted first, the earliest deadline first. Commands are reordered only between
+     * APDUs, a running command is never interrupted, so the command waits for at most the command on the air and commands of a higher priority.
+     *
+     * @param commandApdu
+     * @param commandPriority
+     *            priority of this command
+     * @param deadline
+     *            time from now until the command should be transmitted
+     * @param unit
+     *            unit of deadline
+     * @return future completed with the responseApdu or with a CardException
+     */
+    public CompletableFuture<IResponseApdu> transmitAsync(final ICommandApdu commandApdu, final ApduPriority commandPriority, final long deadline,
+            final TimeUnit unit) {
+        return submitTransmit(commandApdu, commandPriority, unit.toNanos(deadline));
+    }
+
+    private CompletableFuture<IResponseApdu> submitTransmit(final ICommandApdu commandApdu, final ApduPriority commandPriority, final long deadlineNanos) {
+        return new RetryingTransmit<>(commandApdu, commandPriority, () -> transmitOnIoThread(commandApdu)).start(deadlineNanos);
+    }
+
+    private boolean isRetried(final ICommandApdu commandApdu) {
+        // logical channels are closed when the card loses power
+        return channelNo == 0 && nfcCard.getRetryPolicy().isRetrySafe(commandApdu);
+    }
+
+    /**
+     * Sets the priority of the commands transmitted on this channel, e.g. {@link ApduPriority#BACKGROUND} for a channel that prefetches EFs while
+     * another channel serves the user
+     *
+     * @param priority
+     *            priority of the following commands
+     */
+    public void setPriority(final ApduPriority priority) {
+        this.priority = priority;
+    }
+
+    public ApduPriority getPriority() {
+        return priority;
+    }
+
+    private IResponseApdu transmitOnIoThread(ICommandApdu commandApdu) throws CardException {
+
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("Command: {}", Hex.encodeHexString(commandApdu.getBytes()));
+        }
+
+        ICommandApdu command = commandApdu;
         checkChannelClosed();
         nfcCard.checkCardOpen();
+        correctedNe = NO_CORRECTED_NE;
         if (channelNo > 0) {
             command = modifyCommandForLogicalChannel(command);
         }
 
-        if (isTrustedChannelEstablished && secureMessaging == null) {
-            secureMessaging = new SecureMessaging(nfcCard.getPaceKey());
-            LOG.debug("KEnc: " + Hex.encodeHexString(nfcCard.getPaceKey().getEnc()));
-            LOG.debug("KMac: " + Hex.encodeHexString(nfcCard.getPaceKey().getMac()));
+        initSecureMessaging();
+        forgetSelectionOfOldSession();
 
-            LOG.debug("Trusted Channel is established.");
+        if (lastSelectCommand != null && commandApdu.getIns() == RetryPolicy.INS_SELECT && Arrays.equals(lastSelectCommand, commandApdu.getBytes())) {
+            LOG.debug("file still selected, SELECT answered without the card");
+            return new ResponseApdu(lastSelectResponse);
         }
 
-        if (secureMessaging != null) {
-            try {
-                encryptedCommand = secureMessaging.encrypt(command);
-            } catch (IOException e) {
-                LOG.error("encrypting command failed" + e);
-                throw new CardException("encrypting command failed", e);
+        final EfCache efCache = nfcCard.getEfCache();
+        final String cachedFile = efCache != null ? getCachedFileKey(efCache, commandApdu) : null;
+        if (cachedFile != null) {
+            final byte[] cachedResponse = efCache.get(nfcCard.getCardId(), cachedFile, getReadOffset(commandApdu), commandApdu.getNe());
+            if (cachedResponse != null) {
+                LOG.debug("READ BINARY served from EF cache");
+                return new ResponseApdu(cachedResponse);
             }
-            LOG.debug("encrypted command: " + Hex.encodeHexString(encryptedCommand.getBytes()));
+        } else if (efCache != null && isBinaryUpdate(commandApdu)) {
+            evictUpdatedFile(efCache, commandApdu);
+        }
 
-            responseApdu = nfcCard.transceive(encryptedCommand);
-            LOG.debug("encrypted response: " + Hex.encodeHexString(responseApdu.getBytes()));
+        final ResponseApdu responseApdu = completeResponse(exchangeChained(command));
 
-            try {
-                responseApdu = secureMessaging.decrypt(responseApdu);
-            } catch (IOException e) {
-                LOG.error("decrypting response failed" + e);
-            } catch (GeneralSecurityException e) {
-                LOG.error("decrypting response failed" + e);
+        if (cachedFile != null && (responseApdu.getSW() == RESPONSE_SUCCESS || responseApdu.getSW() == SW_END_OF_FILE)) {
+            efCache.put(nfcCard.getCardId(), cachedFile, getReadOffset(commandApdu), commandApdu.getNe(), responseApdu.getBytes());
+        }
+        trackSelection(commandApdu, responseApdu);
+        return responseApdu;
+    }
+
+    /**
+     * Transmits one command to the card, protected by secure messaging if it is established
+     */
+    private ResponseApdu exchange(final ICommandApdu command) throws CardException {
+        final ApduMetrics metrics = nfcCard.getMetrics();
+        long encryptNanos = 0;
+        long decryptNanos = 0;
+        ICommandApdu encryptedCommand = null;
+        ResponseApdu responseApdu = null;
+        metrics.beginApdu(command.getIns());
+        try {
+            if (secureMessaging != null) {
+                final byte[] ssc = secureMessaging.getSendSequenceCounter();
+                long start = System.nanoTime();
+                encryptedCommand = pipeline != null ? pipeline.take(command, SecureMessaging.getSendSequenceCounter(ssc, 1)) : null;
+                if (encryptedCommand != null) {
+                    encryptNanos = pipeline.getEncryptNanos();
+                    secureMessaging.setSendSequenceCounter(SecureMessaging.getSendSequenceCounter(ssc, 1));
+                } else {
+                    try {
+                        encryptedCommand = secureMessaging.encrypt(command);
+                    } catch (IOException e) {
+                        LOG.error("encrypting command failed", e);
+                        throw new CardException("encrypting command failed", e);
+                    }
+                    encryptNanos = System.nanoTime() - start;
+                }
+                if (LOG.isTraceEnabled()) {
+                    LOG.trace("encrypted command: {}", Hex.encodeHexString(encryptedCommand.getBytes()));
+                }
+                if (pipeline != null) {
+                    // the next command follows this command and its response
+                    pipeline.prepareNext(SecureMessaging.getSendSequenceCounter(ssc, 3));
+                }
+
+                try {
+                    // the Le of the encrypted frame does not tell the length of the response
+                    responseApdu = nfcCard.transceive(encryptedCommand, command.getNe() != null ? command.getNe() : 0);
+                } catch (final NfcCard.TransceiveTimeoutException e) {
+                    // the card may have executed the command and counted it, its send sequence counter is not known
+                    throw secureMessagingBroken(e.getMessage(), e);
+                } catch (final CardException e) {
+                    // without a response the card is still at the send sequence counter of its last response
+                    secureMessaging.setSendSequenceCounter(ssc);
+                    throw e;
+                }
+                if (LOG.isTraceEnabled()) {
+                    LOG.trace("encrypted response: {}", Hex.encodeHexString(responseApdu.getBytes()));
+                }
+
+                if (isSecureMessagingError(responseApdu)) {
+                    throw secureMessagingFailure("card answered without secure messaging, response code: "
+                            + String.format("0x%04x", responseApdu.getSW()), null);
+                }
+                if (isTransmissionStatus(responseApdu)) {
+                    // a plain 61xx or 6Cxx carries no data to protect, the card has counted the response like a protected one
+                    secureMessaging.setSendSequenceCounter(SecureMessaging.getSendSequenceCounter(secureMessaging.getSendSequenceCounter(), 1));
+                    return responseApdu;
+                }
+                start = System.nanoTime();
+                try {
+                    responseApdu = secureMessaging.decrypt(responseApdu);
+                } catch (IOException | GeneralSecurityException | IllegalArgumentException e) {
+                    LOG.error("decrypting response failed", e);
+                    throw secureMessagingFailure("decrypting response failed", e);
+                }
+                decryptNanos = System.nanoTime() - start;
+                if (LOG.isTraceEnabled()) {
+                    LOG.trace("plain response: {}", Hex.encodeHexString(responseApdu.getBytes()));
+                }
+
+            } else {
+                responseApdu = nfcCard.transceive(command);
+            }
+        } finally {
+            metrics.endApdu(responseApdu != null ? responseApdu.getSW() : ApduTiming.NO_STATUS, encryptNanos, decryptNanos);
+        }
+        return responseApdu;
+    }
+
+    /**
+     * Transmits a command whose data does not fit into one frame as a chain of commands with the chaining bit set in the CLA of all but the last one,
+     * see [ISO 7816-4#5.1.1]. Every segment is a command of its own with secure messaging, so it has its own send sequence counter and MAC.
+     */
+    private ResponseApdu exchangeChained(final ICommandApdu command) throws CardException {
+        final byte[] data = command.getData();
+        final int maxDataLength = getMaxCommandDataLength();
+        if (data == null || data.length <= maxDataLength) {
+            return exchangeWithLe(command);
+        }
+        LOG.debug("command data of {} bytes sent in segments of {} bytes", data.length, maxDataLength);
+        int offset = 0;
+        while (data.length - offset > maxDataLength) {
+            final ResponseApdu responseApdu = exchange(new CommandApdu(command.getCla() | CLA_COMMAND_CHAINING, command.getIns(), command.getP1(),
+                    command.getP2(), Arrays.copyOfRange(data, offset, offset + maxDataLength)));
+            if (responseApdu.getSW() != RESPONSE_SUCCESS) {
+                // the card refused the chain
+                return responseApdu;
+            }
+            offset += maxDataLength;
+        }
+        final byte[] lastSegment = Arrays.copyOfRange(data, offset, data.length);
+        if (command.getNe() != null) {
+            return exchangeWithLe(new CommandApdu(command.getCla(), command.getIns(), command.getP1(), command.getP2(), lastSegment, command.getNe()));
+        }
+        return exchangeWithLe(new CommandApdu(command.getCla(), command.getIns(), command.getP1(), command.getP2(), lastSegment));
+    }
+
+    /**
+     * Transmits a command, or the last segment of a chain, and sends it again with the Le the card asked for with 6Cxx. The segments before have been
+     * accepted by the card and are not sent again. The corrected Le is kept for the caller of the current command in {@link #correctedNe}.
+     */
+    private ResponseApdu exchangeWithLe(final ICommandApdu command) throws CardException {
+        final ResponseApdu responseApdu = exchange(command);
+        if ((responseApdu.getSW() & SW_MASK) != SW_WRONG_LE) {
+            return responseApdu;
+        }
+        responseRoundTrips.incrementAndGet();
+        correctedNe = getLe(responseApdu.getSW());
+        LOG.debug("command sent again with Le {}", String.format("0x%02x", correctedNe));
+        return exchange(new CommandApdu(command.getCla(), command.getIns(), command.getP1(), command.getP2(), command.getData(), correctedNe));
+    }
+
+    /**
+     * Returns the maximum command data length that still fits into one frame of the card, after secure messaging if it is established
+     */
+    private int getMaxCommandDataLength() {
+        final int maxLength = getMaxMessageLength();
+        if (isTrustedChannelEstablished()) {
+            return maxLength - EXTENDED_COMMAND_OVERHEAD;
+        }
+        if (maxLength > DEFAULT_MAX_LENGTH && nfcCard.isExtendedLengthApduSupported()) {
+            return Math.min(maxLength - EXTENDED_COMMAND_OVERHEAD, EXTENDED_MAX_DATA_LENGTH);
+        }
+        return Math.min(maxLength - SHORT_COMMAND_OVERHEAD, SHORT_MAX_DATA_LENGTH);
+    }
+
+    /**
+     * Sends GET RESPONSE as long as the card signals more data with 61xx. The data of all responses is returned in one response APDU. A 6Cxx has
+     * already been answered by {@link #exchangeWithLe(ICommandApdu)}.
+     */
+    private ResponseApdu completeResponse(final ResponseApdu firstResponse) throws CardException {
+        ResponseApdu responseApdu = firstResponse;
+        if ((responseApdu.getSW() & SW_MASK) != SW_BYTES_REMAINING) {
+            return responseApdu;
+        }
+        final ByteArrayOutputStream response = new ByteArrayOutputStream(responseApdu.getBytes().length + SHORT_LE_MAX);
+        while ((responseApdu.getSW() & SW_MASK) == SW_BYTES_REMAINING && response.size() < MAX_RESPONSE_DATA_LENGTH) {
+            final byte[] data = responseApdu.getData();
+            response.write(data, 0, data.length);
+            responseRoundTrips.incrementAndGet();
+            ICommandApdu getResponse = new CommandApdu(0x00, INS_GET_RESPONSE, 0x00, 0x00, getLe(responseApdu.getSW()));
+            if (channelNo > 0) {
+                getResponse = modifyCommandForLogicalChannel(getResponse);
             }
-            LOG.debug("plain response: " + Hex.encodeHexString(responseApdu.getBytes()));
+            responseApdu = exchange(getResponse);
+        }
+        final byte[] last = responseApdu.getBytes();
+        response.write(last, 0, last.length);
+        return new ResponseApdu(response.toByteArray());
+    }
+
+    private static int getLe(final int sw) {
+        return (sw & BYTE_MASK) == 0 ? SHORT_LE_MAX : sw & BYTE_MASK;
+    }
 
+    /**
+     * Returns the number of GET RESPONSE commands and commands sent again with the Le from 6Cxx on this channel. A high number means the Le of the
+     * commands should be changed.
+     *
+     * @return number of additional round trips
+     */
+    public long getResponseRoundTrips() {
+        return responseRoundTrips.get();
+    }
+
+    private void trackSelection(final ICommandApdu commandApdu, final IResponseApdu responseApdu) {
+        final int sw = responseApdu.getSW();
+        if (sw != RESPONSE_SUCCESS && sw != SW_END_OF_FILE || commandApdu.getIns() == INS_MANAGE_CHANNEL) {
+            // the card may have changed the selection
+            lastSelectCommand = null;
+        }
+        final int shortFileId = getShortFileIdentifier(commandApdu);
+        if (shortFileId != EfCache.NO_SHORT_FILE_ID && (sw == RESPONSE_SUCCESS || sw == SW_END_OF_FILE)) {
+            // a command with a short file identifier selects the EF
+            if (selectedShortFileId != EfCache.NO_SHORT_FILE_ID || selectedFileParameters == null
+                    || selectedFileParameters.shortFileId != shortFileId) {
+                selectedShortFileId = shortFileId;
+                selectedFileParameters = null;
+                lastSelectCommand = null;
+            }
+            return;
+        }
+        if (commandApdu.getIns() != RetryPolicy.INS_SELECT || sw != RESPONSE_SUCCESS) {
+            return;
+        }
+        if (isSelectFromRoot(commandApdu)) {
+            selectPath.clear();
+            selectionKnown = true;
+        } else if (selectPath.size() == MAX_SELECT_PATH) {
+            selectionKnown = false;
+        }
+        if (selectionKnown) {
+            selectPath.add(commandApdu);
         } else {
-            responseApdu = nfcCard.transceive(command);
+            // the way to the current file is unknown
+            selectPath.clear();
+        }
+        selectedFileKey = selectionKnown ? getPathKey() : null;
+        selectedFileId = getFileIdentifier(commandApdu);
+        selectedShortFileId = EfCache.NO_SHORT_FILE_ID;
+        selectedFileParameters = FileControlParameters.parse(responseApdu.getData());
+        if (selectedFileKey == null) {
+            lastSelectCommand = null;
+            return;
         }
+        if (selectedFileParameters != null) {
+            fileControlParameters.put(selectedFileKey, selectedFileParameters);
+        } else {
+            selectedFileParameters = fileControlParameters.get(selectedFileKey);
+        }
+        lastSelectCommand = commandApdu.getBytes();
+        lastSelectResponse = responseApdu.getBytes();
+    }
 
-        return responseApdu;
+    /**
+     * Forgets the last SELECT and the FCPs once the secure messaging session has changed, so no response of the old session is given in the new one
+     */
+    private void forgetSelectionOfOldSession() {
+        if (sessionChanged.getAndSet(false)) {
+            lastSelectCommand = null;
+            lastSelectResponse = null;
+            selectedFileParameters = null;
+            fileControlParameters.clear();
+        }
+    }
+
+    /**
+     * Forgets the last SELECT, so the next SELECT is transmitted to the card. The path of the selected file is kept.
+     */
+    void invalidateSelection() {
+        lastSelectCommand = null;
+    }
+
+    /**
+     * Sets the selection back to the MF after a reset of the card
+     */
+    void resetSelection() {
+        selectPath.clear();
+        selectionKnown = true;
+        selectedFileKey = "";
+        selectedFileId = NO_FILE_ID;
+        selectedShortFileId = EfCache.NO_SHORT_FILE_ID;
+        selectedFileParameters = null;
+        fileControlParameters.clear();
+        lastSelectCommand = null;
+    }
+
+    /**
+     * Returns the size of the current EF from its FCP
+     *
+     * @return number of data bytes or -1 if the FCP of the EF is not known
+     */
+    public int getSelectedFileSize() {
+        if (sessionChanged.get()) {
+            return NO_FILE_SIZE;
+        }
+        final FileControlParameters parameters = selectedFileParameters;
+        return parameters != null ? parameters.fileSize : NO_FILE_SIZE;
+    }
+
+    private static int getShortFileIdentifier(final ICommandApdu commandApdu) {
+        if (isShortFileCommand(commandApdu)) {
+            return commandApdu.getP1() & SHORT_FILE_ID_MASK;
+        }
+        final int ins = commandApdu.getIns();
+        final int shortFileId = commandApdu.getP2() >> RECORD_SHORT_FILE_ID_SHIFT;
+        if (shortFileId != 0 && (ins == INS_READ_RECORD || ins == INS_UPDATE_RECORD || ins == INS_APPEND_RECORD || ins == INS_SEARCH_RECORD)) {
+            return shortFileId;
+        }
+        return EfCache.NO_SHORT_FILE_ID;
+    }
+
+    private static boolean isSelectFromRoot(final ICommandApdu commandApdu) {
+        final int p1 = commandApdu.getP1();
+        final byte[] data = commandApdu.getData();
+        return p1 == P1_SELECT_BY_AID || p1 == P1_SELECT_BY_PATH_FROM_MF || data == null || data.length == 0;
+    }
+
+    private String getPathKey() {
+        final StringBuilder key = new StringBuilder();
+        for (final ICommandApdu select : selectPath) {
+            key.append(String.format("%02x", select.getP1()));
+            final byte[] data = select.getData();
+            if (data != null) {
+                key.append(Hex.encodeHexString(data));
+            }
+            key.append('/');
+        }
+        return key.toString();
+    }
+
+    private static int getFileIdentifier(final ICommandApdu select) {
+        final int p1 = select.getP1();
+        final byte[] data = select.getData();
+        if (p1 == P1_SELECT_BY_AID || p1 == P1_SELECT_CHILD_DF || data == null || data.length < FILE_ID_SIZE) {
+            return NO_FILE_ID;
+        }
+        if (p1 != 0 && p1 != P1_SELECT_CHILD_EF && p1 != P1_SELECT_BY_PATH_FROM_MF && p1 != P1_SELECT_BY_PATH_FROM_DF) {
+            return NO_FILE_ID;
+        }
+        return (data[data.length - 2] & BYTE_MASK) << BYTE_VALUE | data[data.length - 1] & BYTE_MASK;
+    }
+
+    private static boolean isShortFileCommand(final ICommandApdu commandApdu) {
+        final int ins = commandApdu.getIns();
+        return (commandApdu.getP1() & P1_SHORT_FILE_ID) != 0
+                && (ins == INS_READ_BINARY || ins == INS_UPDATE_BINARY || ins == INS_WRITE_BINARY || ins == INS_ERASE_BINARY);
+    }
+
+    private static boolean isBinaryUpdate(final ICommandApdu commandApdu) {
+        final int ins = commandApdu.getIns() & ~INS_ODD;
+        return ins == INS_UPDATE_BINARY || ins == INS_WRITE_BINARY || ins == INS_ERASE_BINARY;
+    }
+
+    private static int getReadOffset(final ICommandApdu commandApdu) {
+        return commandApdu.getP1() << BYTE_VALUE | commandApdu.getP2();
+    }
+
+    /**
+     * Returns the key of the file a READ BINARY reads if the file is cached
+     */
+    private String getCachedFileKey(final EfCache efCache, final ICommandApdu commandApdu) {
+        if (commandApdu.getIns() != INS_READ_BINARY || commandApdu.getNe() == null || selectedFileKey == null) {
+            return null;
+        }
+        if (isShortFileCommand(commandApdu)) {
+            final int shortFileId = commandApdu.getP1() & SHORT_FILE_ID_MASK;
+            return efCache.isImmutableShortFile(shortFileId) ? selectedFileKey + SHORT_FILE_KEY + shortFileId : null;
+        }
+        if (selectedShortFileId != EfCache.NO_SHORT_FILE_ID) {
+            return efCache.isImmutableShortFile(selectedShortFileId) ? selectedFileKey + SHORT_FILE_KEY + selectedShortFileId : null;
+        }
+        return efCache.isImmutableFile(selectedFileId) ? selectedFileKey : null;
+    }
+
+    private void evictUpdatedFile(final EfCache efCache, final ICommandApdu commandApdu) {
+        if (selectedFileKey == null || (commandApdu.getIns() & INS_ODD) != 0) {
+            // the updated file is not known
+            efCache.flush();
+        } else if (isShortFileCommand(commandApdu)) {
+            efCache.evictFile(selectedFileKey + SHORT_FILE_KEY + (commandApdu.getP1() & SHORT_FILE_ID_MASK));
+        } else if (selectedShortFileId != EfCache.NO_SHORT_FILE_ID) {
+            efCache.evictFile(selectedFileKey + SHORT_FILE_KEY + selectedShortFileId);
+        } else {
+            efCache.evictFile(selectedFileKey);
+        }
+    }
+
+    /**
+     * Runs the operation of a command again after the card lost power, selecting the file that was selected before first
+     */
+    private <T> T replayOnIoThread(final ICommandApdu commandApdu, final NfcCard.ICardOperation<T> operation) throws CardException {
+        if (commandApdu.getIns() != RetryPolicy.INS_SELECT || !isSelectFromRoot(commandApdu)) {
+            if (!selectionKnown) {
+                throw new CardException("the selected file cannot be selected again");
+            }
+            for (final ICommandApdu select : new ArrayList<>(selectPath)) {
+                final IResponseApdu response = transmitOnIoThread(select);
+                if (response.getSW() != RESPONSE_SUCCESS) {
+                    throw new CardException("selecting the file again failed, response code: " + String.format("0x%04x", response.getSW()));
+                }
+            }
+        }
+        return operation.run();
+    }
+
+    /**
+     * Transmits the commands in the order of the list and returns the responses in the same order.
+     *
+     * Every command is transmitted like with {@link #transmit(ICommandApdu)} and its response is checked before the next command is sent. With secure
+     * messaging the next command is encrypted on a separate thread while the current command is transmitted. If a command fails, the commands not yet
+     * sent are discarded. The whole list is transmitted on the card I/O thread without commands of other callers in between. The list is not
+     * transmitted again if the tag is lost.
+     *
+     * @param commandApdus
+     *            commands to transmit
+     * @return responses
+     * @throws CardException
+     *             if a command could not be transmitted or secure messaging failed
+     */
+    public List<IResponseApdu> transmit(final List<? extends ICommandApdu> commandApdus) throws CardException {
+        return nfcCard.execute(() -> transmitOnIoThread(commandApdus), channelNo, priority);
+    }
+
+    private List<IResponseApdu> transmitOnIoThread(final List<? extends ICommandApdu> commandApdus) throws CardException {
+        checkChannelClosed();
+        nfcCard.checkCardOpen();
+        initSecureMessaging();
+
+        final List<IResponseApdu> responses = new ArrayList<>(commandApdus.size());
+        final CommandPipeline previous = pipeline;
+        pipeline = secureMessaging != null && commandApdus.size() > 1 ? new CommandPipeline(commandApdus) : null;
+        try {
+            for (int i = 0; i < commandApdus.size(); i++) {
+                if (pipeline != null) {
+                    pipeline.setIndex(i);
+                }
+                responses.add(transmitOnIoThread(commandApdus.get(i)));
+            }
+        } finally {
+            pipeline = previous;
+        }
+        return responses;
+    }
+
+    private void initSecureMessaging() {
+        if (channelNo > 0) {
+            // the card has one secure messaging session with one send sequence counter for all logical channels
+            final NfcCardChannel basicChannel = nfcCard.getBasicChannel();
+            secureMessaging = basicChannel != null ? basicChannel.getSecureMessaging() : null;
+            return;
+        }
+        if (isTrustedChannelEstablished && secureMessaging == null) {
+            secureMessaging = new SecureMessaging(nfcCard.getPaceKey());
+            LOG.debug("Trusted Channel is established.");
+        }
+    }
+
+    private SecureMessaging getSecureMessaging() {
+        initSecureMessaging();
+        return secureMessaging;
+    }
+
+    private boolean isTrustedChannelEstablished() {
+        if (channelNo > 0) {
+            final NfcCardChannel basicChannel = nfcCard.getBasicChannel();
+            return basicChannel != null && basicChannel.isTrustedChannelEstablished;
+        }
+        return isTrustedChannelEstablished;
+    }
+
+    /**
+     * Returns the exception for a response that failed the secure messaging checks. The session is not cached anymore. A resumed session was rejected
+     * by the card, so a new PACE key is requested and the command can be transmitted again once it has arrived.
+     */
+    private CardException secureMessagingFailure(final String message, final Exception cause) {
+        if (nfcCard.isFrameRepeated()) {
+            // the card executed the frame that timed out and rejects the repeated one
+            return secureMessagingBroken(message, cause);
+        }
+        final CompletableFuture<PaceKey> paceKeyRequest = nfcCard.onSecureMessagingFailed();
+        if (paceKeyRequest != null) {
+            return new SessionRejectedException(message, cause, paceKeyRequest);
+        }
+        return new CardException(message, cause);
+    }
+
+    /**
+     * Returns the exception for a secure messaging session that is out of step with the card after a timeout. A new PACE key is requested and the
+     * command is transmitted again with it if the {@link RetryPolicy} allows, because the card may have executed it.
+     */
+    private CardException secureMessagingBroken(final String message, final Exception cause) {
+        final CompletableFuture<PaceKey> paceKeyRequest = nfcCard.onSecureMessagingBroken();
+        if (paceKeyRequest != null) {
+            return new SessionBrokenException(message, cause, paceKeyRequest);
+        }
+        return new CardException(message, cause);
+    }
+
+    private static boolean isTransmissionStatus(final IResponseApdu responseApdu) {
+        final int sw = responseApdu.getSW() & SW_MASK;
+        return responseApdu.getBytes().length == STATUS_SIZE && (sw == SW_BYTES_REMAINING || sw == SW_WRONG_LE);
+    }
+
+    private static boolean isSecureMessagingError(final IResponseApdu responseApdu) {
+        final int sw = responseApdu.getSW();
+        return responseApdu.getBytes().length == STATUS_SIZE && (sw == SW_SM_DATA_OBJECTS_MISSING || sw == SW_SM_DATA_OBJECTS_INCORRECT);
     }
 
     /**
@@ -180,6 +862,145 @@ public class NfcCardChannel implements ICardChannel {
         }
     }
 
+    /**
+     * Reads the currently selected transparent EF with as few READ BINARY commands as the channel limits allow. A chunk size answered with 6700 is
+     * halved down to 223 bytes and kept for following reads. Reading stops at the end of the file, also when the card answered 6Cxx with the number of
+     * bytes left in the file. If the size of the EF is known from the FCP of its SELECT, no more than the file is requested. A whole immutable EF read
+     * from offset 0 is stored in the {@link EfCacheFile} of the card. Every chunk is read on the card I/O thread like a command of
+     * {@link #transmit(ICommandApdu)}.
+     *
+     * @param offset
+     *            offset of the first byte, at most 0x7FFF
+     * @param length
+     *            number of bytes to read
+     * @return data read, shorter than length if the end of the file was reached
+     * @throws CardException
+     *             if a READ BINARY command failed
+     */
+    public byte[] readBinary(final int offset, final int length) throws CardException {
+        if (offset < 0 || offset > MAX_READ_BINARY_OFFSET || length < 0) {
+            throw new IllegalArgumentException("READ BINARY offset " + offset + " or length " + length + " out of range");
+        }
+        final BinaryRead read = new BinaryRead(offset, length);
+        while (!read.done) {
+            final NfcCard.ICardOperation<Void> chunk = () -> readBinaryChunkOnIoThread(read);
+            if (nfcCard.isIoThread()) {
+                nfcCard.execute(chunk, channelNo, priority);
+            } else {
+                // the retry policy is applied to READ BINARY, the Le of the chunk is chosen on the card I/O thread
+                final ICommandApdu command = createReadBinaryCommand(read.position, CommandApdu.EXPECTED_LENGTH_WILDCARD_SHORT);
+                nfcCard.await(new RetryingTransmit<>(command, priority, chunk).start(NfcCard.NO_DEADLINE));
+            }
+        }
+        return read.data.toByteArray();
+    }
+
+    /**
+     * Reads the next chunk of a {@link #readBinary(int, int)}. Run again after a lost tag, it reads the same chunk again.
+     */
+    private Void readBinaryChunkOnIoThread(final BinaryRead read) throws CardException {
+        if (!read.started) {
+            read.started = true;
+            final int fileSize = getSelectedFileSize();
+            if (fileSize != NO_FILE_SIZE && read.remaining >= fileSize - read.offset) {
+                // the size is known from the FCP, no command has to find the end of the file
+                read.remaining = Math.max(fileSize - read.offset, 0);
+                read.endOfFile = true;
+            }
+        }
+        if (read.remaining <= 0 || read.position > MAX_READ_BINARY_OFFSET) {
+            finishBinaryRead(read);
+            return null;
+        }
+        final int ne = Math.min(read.remaining, getReadBinaryChunkSize());
+        final IResponseApdu response = transmitOnIoThread(createReadBinaryCommand(read.position, ne));
+        final int sw = response.getSW();
+        if (sw == SW_WRONG_LENGTH && readBinaryChunkSize > MIN_READ_BINARY_CHUNK_SIZE) {
+            readBinaryChunkSize = Math.max(Math.min(readBinaryChunkSize, ne) / 2, MIN_READ_BINARY_CHUNK_SIZE);
+            LOG.debug("READ BINARY chunk size reduced to {}", readBinaryChunkSize);
+            return null;
+        }
+        if (sw == SW_OFFSET_OUT_OF_RANGE) {
+            read.endOfFile = true;
+            finishBinaryRead(read);
+            return null;
+        }
+        if (sw != RESPONSE_SUCCESS && sw != SW_END_OF_FILE) {
+            throw new CardException("READ BINARY failed, response code: " + String.format("0x%04x", sw));
+        }
+        final byte[] chunk = response.getData();
+        final int chunkLength = Math.min(chunk.length, read.remaining);
+        read.data.write(chunk, 0, chunkLength);
+        read.position += chunkLength;
+        read.remaining -= chunkLength;
+        if (sw == SW_END_OF_FILE || chunk.length < ne || correctedNe != NO_CORRECTED_NE) {
+            // 6Cxx tells the number of bytes the card has left, the file ends after them
+            read.endOfFile = true;
+            finishBinaryRead(read);
+        } else if (read.remaining <= 0 || read.position > MAX_READ_BINARY_OFFSET) {
+            finishBinaryRead(read);
+        }
+        return null;
+    }
+
+    private void finishBinaryRead(final BinaryRead read) {
+        read.done = true;
+        if (read.offset == 0 && read.endOfFile) {
+            storeFile(read.data.toByteArray());
+        }
+    }
+
+    /**
+     * Stores the content of the selected EF if it is immutable. A changed EF.Version2 removes the stored files of the card.
+     */
+    private void storeFile(final byte[] content) {
+        final EfCacheFile cacheFile = nfcCard.getEfCacheFile();
+        final int fileIdentifier = getSelectedFileIdentifier();
+        if (cacheFile == null || fileIdentifier == NO_FILE_ID) {
+            return;
+        }
+        final EfCache efCache = nfcCard.getEfCache();
+        if (fileIdentifier != EfCacheFile.EF_VERSION2 && (efCache == null || !efCache.isImmutableFile(fileIdentifier))) {
+            return;
+        }
+        final String cardId = nfcCard.getCardId();
+        final byte[] cachedContent = cacheFile.get(cardId, fileIdentifier);
+        if (Arrays.equals(cachedContent, content)) {
+            return;
+        }
+        if (fileIdentifier == EfCacheFile.EF_VERSION2 && cachedContent != null) {
+            LOG.debug("EF.Version2 changed, removing the cached files of the card");
+            cacheFile.removeCard(cardId);
+        }
+        cacheFile.put(cardId, fileIdentifier, content);
+    }
+
+    /**
+     * Returns the file identifier of the current EF
+     */
+    private int getSelectedFileIdentifier() {
+        if (selectedShortFileId == EfCache.NO_SHORT_FILE_ID) {
+            return selectedFileId;
+        }
+        if (selectedShortFileId == EfCacheFile.EF_VERSION2_SHORT && selectionKnown && selectPath.isEmpty()) {
+            return EfCacheFile.EF_VERSION2;
+        }
+        final EfCache efCache = nfcCard.getEfCache();
+        return efCache != null ? efCache.getFileIdentifier(selectedShortFileId) : NO_FILE_ID;
+    }
+
+    private int getReadBinaryChunkSize() {
+        int chunkSize = Math.min(readBinaryChunkSize, getMaxResponseLength() - STATUS_SIZE);
+        if (!nfcCard.isExtendedLengthApduSupported()) {
+            chunkSize = Math.min(chunkSize, CommandApdu.EXPECTED_LENGTH_WILDCARD_SHORT);
+        }
+        return chunkSize;
+    }
+
+    private static CommandApdu createReadBinaryCommand(final int offset, final int ne) {
+        return new CommandApdu(0x00, INS_READ_BINARY, offset >> BYTE_VALUE, offset & BYTE_MASK, ne);
+    }
+
     CommandApdu modifyCommandForLogicalChannel(ICommandApdu command) throws CardException {
         byte cla = (byte) command.getCla();
         if (channelNo < LOW_CHANNEL_NUMBER_VALUE) {
@@ -191,6 +1012,9 @@ public class NfcCardChannel implements ICardChannel {
         } else {
             throw new CardException("Channel number: " + channelNo + " not allowed");
         }
+        if (command.getNe() != null) {
+            return new CommandApdu(cla, command.getIns(), command.getP1(), command.getP2(), command.getData(), command.getNe());
+        }
         return new CommandApdu(cla, command.getIns(), command.getP1(), command.getP2(), command.getData());
     }
 
@@ -202,5 +1026,360 @@ public class NfcCardChannel implements ICardChannel {
 
     public void setTrustedChannelEstablished(boolean trustedChannelEstablished) {
         isTrustedChannelEstablished = trustedChannelEstablished;
+        // a new PACE key starts a new session
+        secureMessaging = null;
+        sessionChanged.set(true);
+    }
+
+    /**
+     * Continues a secure messaging session with the PACE key of the card and the send sequence counter of the session
+     *
+     * @param ssc
+     *            send sequence counter of the last response of the session
+     */
+    void resumeSecureMessaging(final byte[] ssc) {
+        isTrustedChannelEstablished = true;
+        secureMessaging = new SecureMessaging(nfcCard.getPaceKey());
+        secureMessaging.setSendSequenceCounter(ssc);
+        sessionChanged.set(true);
+    }
+
+    /**
+     * Ends the secure messaging session until a new PACE key is established
+     */
+    void resetSecureMessaging() {
+        isTrustedChannelEstablished = false;
+        secureMessaging = null;
+        sessionChanged.set(true);
+    }
+
+    /**
+     * Returns the send sequence counter of the secure messaging session
+     *
+     * @return copy of the send sequence counter, null without secure messaging
+     */
+    byte[] getSendSequenceCounter() {
+        return secureMessaging != null ? secureMessaging.getSendSequenceCounter() : null;
+    }
+
+    /**
+     * File size and short file identifier from the FCP template of a SELECT response
+     */
+    private static final class FileControlParameters {
+        private final int fileSize;
+        private final int shortFileId;
+
+        private FileControlParameters(final int fileSize, final int shortFileId) {
+            this.fileSize = fileSize;
+            this.shortFileId = shortFileId;
+        }
+
+        /**
+         * Parses an FCP template
+         *
+         * @param data
+         *            response data of a SELECT
+         * @return parameters or null if the data is no FCP template with a file size
+         */
+        static FileControlParameters parse(final byte[] data) {
+            if (data == null || data.length < 2 || (data[0] & BYTE_MASK) != FCP_TAG) {
+                return null;
+            }
+            int fileSize = NO_FILE_SIZE;
+            int shortFileId = EfCache.NO_SHORT_FILE_ID;
+            int position = skipLength(data, 1);
+            while (position > 0 && position + 1 < data.length) {
+                final int tag = data[position] & BYTE_MASK;
+                final int valueOffset = skipLength(data, position + 1);
+                if (valueOffset < 0) {
+                    return null;
+                }
+                final int length = getLength(data, position + 1);
+                if (valueOffset + length > data.length) {
+                    return null;
+                }
+                if (tag == FCP_FILE_SIZE_TAG) {
+                    fileSize = 0;
+                    for (int i = 0; i < length; i++) {
+                        fileSize = fileSize << BYTE_VALUE | data[valueOffset + i] & BYTE_MASK;
+                    }
+                } else if (tag == FCP_SHORT_FILE_ID_TAG && length == 1) {
+                    shortFileId = (data[valueOffset] & BYTE_MASK) >> RECORD_SHORT_FILE_ID_SHIFT;
+                }
+                position = valueOffset + length;
+            }
+            return fileSize != NO_FILE_SIZE ? new FileControlParameters(fileSize, shortFileId) : null;
+        }
+
+        private static int getLength(final byte[] data, final int lengthOffset) {
+            final int first = data[lengthOffset] & BYTE_MASK;
+            if ((first & LENGTH_BYTES_FLAG) == 0) {
+                return first;
+            }
+            int length = 0;
+            for (int i = 1; i <= (first & ~LENGTH_BYTES_FLAG); i++) {
+                length = length << BYTE_VALUE | data[lengthOffset + i] & BYTE_MASK;
+            }
+            return length;
+        }
+
+        private static int skipLength(final byte[] data, final int lengthOffset) {
+            if (lengthOffset >= data.length) {
+                return -1;
+            }
+            final int first = data[lengthOffset] & BYTE_MASK;
+            final int next = lengthOffset + 1 + ((first & LENGTH_BYTES_FLAG) != 0 ? first & ~LENGTH_BYTES_FLAG : 0);
+            return next <= data.length ? next : -1;
+        }
+    }
+
+    /**
+     * Commands of {@link #transmit(List)} while they are transmitted. The command after the current one is encrypted on the secure messaging thread
+     * while the current one is on the air. The thread has an instance of {@link SecureMessaging} of its own for the session, so the instance of the
+     * channel is only used on the card I/O thread.
+     */
+    private final class CommandPipeline {
+        private final List<? extends ICommandApdu> commandApdus;
+        private final SecureMessaging encryption;
+        private int index;
+        private ICommandApdu preparedCommand;
+        private byte[] preparedSsc;
+        private Future<CommandApdu> prepared;
+        private volatile long encryptNanos;
+
+        CommandPipeline(final List<? extends ICommandApdu> commandApdus) {
+            this.commandApdus = commandApdus;
+            encryption = new SecureMessaging(nfcCard.getPaceKey());
+        }
+
+        void setIndex(final int index) {
+            this.index = index;
+        }
+
+        /**
+         * Encrypts the command after the current one with the given send sequence counter, unless it does not fit into one frame
+         */
+        void prepareNext(final byte[] ssc) throws CardException {
+            if (index + 1 >= commandApdus.size()) {
+                return;
+            }
+            final ICommandApdu commandApdu = commandApdus.get(index + 1);
+            final ICommandApdu command = channelNo > 0 ? modifyCommandForLogicalChannel(commandApdu) : commandApdu;
+            if (prepared != null && Arrays.equals(preparedSsc, ssc) && Arrays.equals(preparedCommand.getBytes(), command.getBytes())) {
+                return;
+            }
+            final byte[] data = command.getData();
+            if (data != null && data.length > getMaxCommandDataLength()) {
+                prepared = null;
+                return;
+            }
+            preparedCommand = command;
+            preparedSsc = ssc;
+            prepared = CryptoExecutor.INSTANCE.submit(() -> {
+                final long start = System.nanoTime();
+                final CommandApdu encryptedCommand = encryption.encrypt(command, ssc);
+                encryptNanos = System.nanoTime() - start;
+                return encryptedCommand;
+            });
+        }
+
+        /**
+         * Returns the encrypted command if it was prepared with the given send sequence counter
+         *
+         * @return encrypted command or null if the command has to be encrypted
+         */
+        CommandApdu take(final ICommandApdu command, final byte[] ssc) throws CardException {
+            final Future<CommandApdu> encryptedCommand = prepared;
+            if (encryptedCommand == null || !Arrays.equals(preparedSsc, ssc) || !Arrays.equals(preparedCommand.getBytes(), command.getBytes())) {
+                return null;
+            }
+            prepared = null;
+            try {
+                return encryptedCommand.get();
+            } catch (final ExecutionException e) {
+                LOG.error("encrypting command failed", e.getCause());
+                throw new CardException("encrypting command failed", e.getCause());
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CardException("transmit interrupted", e);
+            }
+        }
+
+        long getEncryptNanos() {
+            return encryptNanos;
+        }
+    }
+
+    /**
+     * Progress of a {@link #readBinary(int, int)}. The chunks are read one after the other on the card I/O thread, the caller only waits for them.
+     */
+    private static final class BinaryRead {
+        private final int offset;
+        private final ByteArrayOutputStream data;
+        private int position;
+        private int remaining;
+        private boolean started;
+        private boolean endOfFile;
+        private boolean done;
+
+        BinaryRead(final int offset, final int length) {
+            this.offset = offset;
+            position = offset;
+            remaining = length;
+            data = new ByteArrayOutputStream(Math.min(length, MAX_READ_BINARY_OFFSET + 1));
+        }
+    }
+
+    /**
+     * Future of a command that is transmitted again if the tag was lost. The tag is connected again and, with secure messaging, a new PACE key is
+     * awaited without blocking the card I/O thread. Cancelling the future cancels the current transmission.
+     *
+     * @param <T>
+     *            result of the operation that transmits the command, e.g. its response
+     */
+    private final class RetryingTransmit<T> extends CompletableFuture<T> {
+        private final ICommandApdu commandApdu;
+        private final ApduPriority commandPriority;
+        private final NfcCard.ICardOperation<T> operation;
+        private final RetryPolicy policy;
+        private int retries;
+        private boolean sessionRejected;
+        private volatile CompletableFuture<?> current;
+
+        RetryingTransmit(final ICommandApdu commandApdu, final ApduPriority commandPriority, final NfcCard.ICardOperation<T> operation) {
+            this.commandApdu = commandApdu;
+            this.commandPriority = commandPriority;
+            this.operation = operation;
+            policy = nfcCard.getRetryPolicy();
+        }
+
+        RetryingTransmit<T> start(final long deadlineNanos) {
+            attempt(nfcCard.submit(operation, channelNo, commandPriority, deadlineNanos));
+            return this;
+        }
+
+        private void attempt(final CompletableFuture<T> transmission) {
+            current = transmission;
+            if (isDone()) {
+                transmission.cancel(true);
+                return;
+            }
+            transmission.whenComplete((response, e) -> {
+                if (e == null) {
+                    complete(response);
+                    return;
+                }
+                final Throwable failure = unwrap(e);
+                if (!isDone() && !sessionRejected && failure instanceof SessionRejectedException) {
+                    // the card has not executed the command
+                    sessionRejected = true;
+                    retryWithNewPaceKey(failure, ((SessionRejectedException) failure).getPaceKeyRequest());
+                    return;
+                }
+                if (!isDone() && failure instanceof SessionBrokenException && isRetried(commandApdu) && retries < policy.getMaxRetries()) {
+                    // the card may have executed the command
+                    retries++;
+                    retryWithNewPaceKey(failure, ((SessionBrokenException) failure).getPaceKeyRequest());
+                    return;
+                }
+                if (isDone() || !isRetried(commandApdu) || retries >= policy.getMaxRetries() || !isTagLost(failure)) {
+                    completeExceptionally(failure);
+                    return;
+                }
+                retries++;
+                LOG.debug("tag lost during command {}, retry {} after reconnect", String.format("0x%02x", commandApdu.getIns()), retries);
+                // the reconnect is shared with other commands and is not cancelled with this one
+                current = null;
+                nfcCard.recover(policy.getRecoveryNanos()).whenComplete((ignored, recoveryFailure) -> {
+                    if (recoveryFailure != null) {
+                        LOG.debug("card did not recover", unwrap(recoveryFailure));
+                        completeExceptionally(failure);
+                    } else {
+                        attempt(nfcCard.submit(() -> replayOnIoThread(commandApdu, operation), channelNo, commandPriority));
+                    }
+                });
+            });
+        }
+
+        private void retryWithNewPaceKey(final Throwable failure, final CompletableFuture<PaceKey> paceKeyRequest) {
+            current = null;
+            nfcCard.awaitPaceKey(paceKeyRequest).whenComplete((ignored, paceFailure) -> {
+                if (paceFailure != null) {
+                    LOG.debug("no new PACE key", unwrap(paceFailure));
+                    completeExceptionally(failure);
+                } else {
+                    LOG.debug("command {} transmitted again with the new PACE key", String.format("0x%02x", commandApdu.getIns()));
+                    attempt(nfcCard.submit(() -> replayOnIoThread(commandApdu, operation), channelNo, commandPriority));
+                }
+            });
+        }
+
+        @Override
+        public boolean cancel(final boolean mayInterruptIfRunning) {
+            final boolean cancelled = super.cancel(mayInterruptIfRunning);
+            final CompletableFuture<?> transmission = current;
+            if (cancelled && transmission != null) {
+                transmission.cancel(mayInterruptIfRunning);
+            }
+            return cancelled;
+        }
+    }
+
+    /**
+     * Secure messaging failure of a resumed session the card has not accepted
+     */
+    private static final class SessionRejectedException extends CardException {
+        private static final long serialVersionUID = 1L;
+        private final transient CompletableFuture<PaceKey> paceKeyRequest;
+
+        SessionRejectedException(final String message, final Throwable cause, final CompletableFuture<PaceKey> paceKeyRequest) {
+            super("resumed secure messaging session was rejected by the card, a new PACE key is requested: " + message, cause);
+            this.paceKeyRequest = paceKeyRequest;
+        }
+
+        CompletableFuture<PaceKey> getPaceKeyRequest() {
+            return paceKeyRequest;
+        }
+    }
+
+    /**
+     * Secure messaging session that is out of step with the card after a frame timed out
+     */
+    private static final class SessionBrokenException extends CardException {
+        private static final long serialVersionUID = 1L;
+        private final transient CompletableFuture<PaceKey> paceKeyRequest;
+
+        SessionBrokenException(final String message, final Throwable cause, final CompletableFuture<PaceKey> paceKeyRequest) {
+            super("secure messaging session is out of step with the card, a new PACE key is requested: " + message, cause);
+            this.paceKeyRequest = paceKeyRequest;
+        }
+
+        CompletableFuture<PaceKey> getPaceKeyRequest() {
+            return paceKeyRequest;
+        }
+    }
+
+    private static Throwable unwrap(final Throwable e) {
+        return e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+    }
+
+    private static boolean isTagLost(final Throwable e) {
+        // commands queued behind the lost one find the card not connected
+        return e instanceof CardException && !(e instanceof NfcCard.TransceiveTimeoutException) && e.getCause() instanceof IOException
+                || e instanceof IllegalStateException;
+    }
+
+    /**
+     * Single daemon thread for the encryption of the next command of {@link #transmit(List)}, created on first use
+     */
+    private static final class CryptoExecutor {
+        private static final ExecutorService INSTANCE = Executors.newSingleThreadExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "nfc-secure-messaging");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        private CryptoExecutor() {
+        }
     }
 }
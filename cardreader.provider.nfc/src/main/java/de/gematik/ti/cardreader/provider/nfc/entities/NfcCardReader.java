@@ -16,6 +16,16 @@
 
 package de.gematik.ti.cardreader.provider.nfc.entities;
 
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -30,19 +40,45 @@ import android.os.Bundle;
 import de.gematik.ti.cardreader.provider.api.ICardReader;
 import de.gematik.ti.cardreader.provider.api.card.CardException;
 import de.gematik.ti.cardreader.provider.api.card.ICard;
+import de.gematik.ti.cardreader.provider.nfc.cache.EfCache;
+import de.gematik.ti.cardreader.provider.nfc.cache.EfCacheFile;
 import de.gematik.ti.cardreader.provider.nfc.control.NfcCardReaderController;
+import de.gematik.ti.cardreader.provider.nfc.metrics.AdaptiveTimeout;
+import de.gematik.ti.cardreader.provider.nfc.metrics.ApduTraceFile;
+import de.gematik.ti.cardreader.provider.nfc.security.PaceKeyCache;
 
 /**
  * include::{userguide}/NFCCRP_Overview.adoc[tag=NfcCardReader]
  *
+ * Android reports the removal of a tag only for tags passed to {@link NfcAdapter#ignore}, which also keeps the tag from being discovered again. A card
+ * has to be discovered again to recover its connection, so the presence of a card is checked by polling its connection instead.
  */
-public class NfcCardReader implements ICardReader, NfcAdapter.ReaderCallback, NfcAdapter.OnTagRemovedListener {
+public class NfcCardReader implements ICardReader, NfcAdapter.ReaderCallback {
 
     private static final Logger LOG = LoggerFactory.getLogger(NfcCardReader.class);
-    private static final long WAIT_FOR_CARDS = 100L;
     private static final String NAME = "NFC CardReader";
+    private static final int DEBOUNCE_MS = 200;
+    private static final long PRESENCE_CHECK_INTERVAL_MS = 250L;
+    private static final long PACE_KEY_CACHE_SECONDS = 30L;
+    private static final int EF_CACHE_BYTES = 64 * 1024;
     private final NfcActivityLifecycleCallback activityLifecycleCallback = new NfcActivityLifecycleCallback();
-    private NfcCard nfcCard = null;
+    private final ReentrantLock presenceLock = new ReentrantLock();
+    private final Condition presenceChanged = presenceLock.newCondition();
+    private final List<ICardPresenceListener> presenceListeners = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService presenceExecutor;
+    private ScheduledFuture<?> presenceCheck;
+    private ScheduledFuture<?> pendingAbsent;
+    private boolean lastReportedPresence = false;
+    // nfcCard is replaced and removed under cardLock
+    private final Object cardLock = new Object();
+    private volatile NfcCard nfcCard = null;
+    private volatile ApduTraceFile apduTraceFile;
+    private volatile EfCacheFile efCacheFile;
+    private volatile ICardStateListener cardStateListener;
+    private byte[] currentTagId;
+    private final PaceKeyCache paceKeyCache = new PaceKeyCache(PACE_KEY_CACHE_SECONDS, TimeUnit.SECONDS);
+    private final AdaptiveTimeout adaptiveTimeout = new AdaptiveTimeout(NfcCard.ISO_DEP_TIMEOUT);
+    private final EfCache efCache = new EfCache(EF_CACHE_BYTES);
     private final NfcAdapter adapter;
     private boolean isInitialized = false;
     private boolean isOnline = false;
@@ -57,13 +93,53 @@ public class NfcCardReader implements ICardReader, NfcAdapter.ReaderCallback, Nf
     public NfcCardReader(final NfcAdapter adapter, final Context context) {
         this.adapter = adapter;
         this.context = context;
+        final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            final Thread thread = new Thread(runnable, "nfc-card-presence");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+        presenceExecutor = executor;
 
         initialize();
     }
 
     /**
-     * Overrides the method from NfcAdapter ReaderCallback If Nfc/Tech tags discovered a new NfcCard object will be created or existing NfcCard object will be
-     * reset
+     * Listener for changes of the card presence. It is called on the presence thread of the reader after a card was discovered or after a lost card
+     * was not discovered again within the debounce time.
+     */
+    public interface ICardPresenceListener {
+        /**
+         * @param present
+         *            true if a card is present
+         * @param card
+         *            card the presence was determined for, null if there is none. A card reported absent may already have been replaced by the
+         *            card of a new discovery, see {@link NfcCardReader#removeCard(NfcCard)}.
+         */
+        void cardPresenceChanged(boolean present, NfcCard card);
+    }
+
+    /**
+     * Adds a listener for changes of the card presence
+     *
+     * @param listener
+     */
+    public void addCardPresenceListener(final ICardPresenceListener listener) {
+        presenceListeners.add(listener);
+    }
+
+    /**
+     * Removes a listener for changes of the card presence
+     *
+     * @param listener
+     */
+    public void removeCardPresenceListener(final ICardPresenceListener listener) {
+        presenceListeners.remove(listener);
+    }
+
+    /**
+     * Overrides the method from NfcAdapter ReaderCallback If Nfc/Tech tags discovered a new NfcCard object will be created. If the same tag is discovered
+     * again, the existing NfcCard object with its secure messaging session is kept and connects through the new tag.
      *
      * @param tag
      */
@@ -74,36 +150,163 @@ public class NfcCardReader implements ICardReader, NfcAdapter.ReaderCallback, Nf
             return;
         }
 
-        if (nfcCard != null) {
-            try {
-                // reset nfcCard
-                nfcCard.disconnect(true);
-            } catch (final CardException e) {
-                LOG.error("reset card failed " + e);
-            }
+        synchronized (cardLock) {
+            discoverCard(tag);
+        }
+        presenceExecutor.execute(this::onCardDiscovered);
+    }
+
+    private void discoverCard(final Tag tag) {
+        final NfcCard currentCard = nfcCard;
+        if (currentCard != null && Arrays.equals(tag.getId(), currentTagId) && currentCard.onTagDiscovered(tag)) {
+            LOG.debug("same tag discovered again, keep secure messaging session");
         } else {
+            if (currentCard != null) {
+                // other tag or failed card, the session cannot be continued
+                nfcCard = null;
+                currentCard.release();
+            }
             for (final String tech : tag.getTechList()) {
                 if (tech.equals(IsoDep.class.getName())) {
-                    nfcCard = new NfcCard(tag, () -> NfcCardReaderController.getInstance().createCardEventTransmitter(this).informAboutCardPresent());
+                    currentTagId = tag.getId();
+                    final NfcCard card = createCard(IsoDepTransceiver.get(tag), tag.getId());
+                    nfcCard = card;
+                    card.bringUp();
                     break;
                 }
             }
+            if (nfcCard == null) {
+                // not a smart card, do not discover it again until it was out of range, its removal is of no interest
+                adapter.ignore(tag, DEBOUNCE_MS, null, null);
+            }
         }
     }
 
-    @Override
-    public void onTagRemoved() {
+    /**
+     * Creates a card with the settings of this reader that reports a lost tag to this reader
+     */
+    NfcCard createCard(final ITransceiver tagTransceiver, final byte[] tagId) {
+        ITransceiver transceiver = tagTransceiver;
+        final ApduTraceFile traceFile = apduTraceFile;
+        if (transceiver != null && traceFile != null) {
+            transceiver = new RecordingTransceiver(transceiver, traceFile);
+        }
+        final NfcCard card = new NfcCard(transceiver, new CardPresentCallBack(), tagId, paceKeyCache);
+        card.setStateListener(cardStateListener);
+        card.setAdaptiveTimeout(adaptiveTimeout);
+        card.setRetryPolicy(RetryPolicy.DEFAULT);
+        card.setEfCache(efCache);
+        card.setEfCacheFile(efCacheFile);
+        return card;
+    }
 
-        LOG.debug("onTagRemoved");
+    /**
+     * Returns the transceive timeouts learned from the cards of this reader. The application can save them with
+     * {@link AdaptiveTimeout#writeTo(java.io.OutputStream)} and load them in the next session with {@link AdaptiveTimeout#readFrom(java.io.InputStream)}.
+     *
+     * @return adaptive timeouts of this reader
+     */
+    public AdaptiveTimeout getAdaptiveTimeout() {
+        return adaptiveTimeout;
+    }
 
-        if (nfcCard != null) {
-            try {
-                nfcCard.disconnect(false);
-                LOG.debug("remove NFC card");
-                nfcCard = null;
+    /**
+     * Returns the cache of immutable EFs of the cards of this reader. The application marks the files to cache with
+     * {@link EfCache#addImmutableFile(int, int)} and can flush the cache with {@link EfCache#flush()}.
+     *
+     * @return EF cache of this reader
+     */
+    public EfCache getEfCache() {
+        return efCache;
+    }
+
+    /**
+     * Keeps the immutable EFs of every card discovered from now on in a file, so the application can show them with {@link NfcCard#getCachedFile(int)}
+     * in the next session before PACE is finished
+     *
+     * @param efCacheFile
+     *            persistent cache, e.g. with a device key of the Android keystore, null for none
+     */
+    public void setEfCacheFile(final EfCacheFile efCacheFile) {
+        this.efCacheFile = efCacheFile;
+    }
+
+    /**
+     * Observes the bring-up of every card discovered from now on, e.g. to measure the time from the tap until the card is ready
+     *
+     * @param cardStateListener
+     *            listener for the card states, null to remove it
+     */
+    public void setCardStateListener(final ICardStateListener cardStateListener) {
+        this.cardStateListener = cardStateListener;
+    }
+
+    /**
+     * Records the frames of every card discovered from now on
+     *
+     * @param apduTraceFile
+     *            file for the frames, null to stop recording
+     */
+    public void setApduTraceFile(final ApduTraceFile apduTraceFile) {
+        this.apduTraceFile = apduTraceFile;
+    }
 
-            } catch (final CardException e) {
-                LOG.error("remove card failed" + e);
+    private void onCardDiscovered() {
+        if (pendingAbsent != null) {
+            pendingAbsent.cancel(false);
+            pendingAbsent = null;
+        }
+        if (presenceCheck == null && nfcCard != null) {
+            presenceCheck = presenceExecutor.scheduleWithFixedDelay(this::checkPresence, PRESENCE_CHECK_INTERVAL_MS, PRESENCE_CHECK_INTERVAL_MS,
+                    TimeUnit.MILLISECONDS);
+        }
+        updatePresence();
+    }
+
+    private void onTagLost() {
+        if (pendingAbsent == null) {
+            LOG.debug("NFC tag lost, confirm absence in " + DEBOUNCE_MS + " ms");
+            pendingAbsent = presenceExecutor.schedule(() -> {
+                pendingAbsent = null;
+                updatePresence();
+            }, DEBOUNCE_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void checkPresence() {
+        final NfcCard card = nfcCard;
+        boolean present = false;
+        try {
+            present = card != null && isCardPresent(card);
+        } catch (final RuntimeException e) {
+            LOG.error("presence check failed " + e);
+        }
+        if (!present) {
+            onTagLost();
+        }
+    }
+
+    private void updatePresence() {
+        final NfcCard card = nfcCard;
+        final boolean present = card != null && isCardPresent(card);
+        if (!present && pendingAbsent != null) {
+            // absence is reported once the debounce time is over
+            return;
+        }
+        if (!present && presenceCheck != null) {
+            presenceCheck.cancel(false);
+            presenceCheck = null;
+        }
+        presenceLock.lock();
+        try {
+            presenceChanged.signalAll();
+        } finally {
+            presenceLock.unlock();
+        }
+        if (present != lastReportedPresence) {
+            lastReportedPresence = present;
+            for (final ICardPresenceListener listener : presenceListeners) {
+                listener.cardPresenceChanged(present, card);
             }
         }
     }
@@ -165,56 +368,59 @@ public class NfcCardReader implements ICardReader, NfcAdapter.ReaderCallback, Nf
     }
 
     /**
-     * Returns whether a card is present
+     * Returns whether a card is present. A card that waits for its lost tag to be discovered again is present until it gives up.
      *
      * @return true if card is present false if card is not present
      */
     @Override
     public boolean isCardPresent() {
-        return nfcCard != null && nfcCard.isCardPresent();
+        final NfcCard card = nfcCard;
+        return card != null && isCardPresent(card);
+    }
+
+    private static boolean isCardPresent(final NfcCard card) {
+        return card.isCardPresent() || card.isRecovering();
     }
 
     /**
      * Waits until a card is absent in this reader or the timeout expires. If the method returns due to an expired timeout, it returns false. Otherwise it
-     * return true.
+     * return true. The wait ends as soon as the loss of the card is confirmed.
      *
      * @param timeout
      * @return
      */
     public boolean waitForCardAbsent(final long timeout) {
-        final long start = System.currentTimeMillis();
-
-        while (isCardPresent()) {
-            try {
-                Thread.sleep(WAIT_FOR_CARDS);
-            } catch (final InterruptedException e) {
-            }
-            if (System.currentTimeMillis() - start > timeout) {
-                return false;
-            }
-        }
-        return true;
+        return waitForCardPresence(false, timeout);
     }
 
     /**
      * Waits until a card is present in this reader or the timeout expires. If the method returns due to an expired timeout, it returns false. Otherwise it
-     * return true.
+     * return true. The wait ends as soon as a card is discovered.
      *
      * @param timeout
      * @return
      */
     public boolean waitForCardPresent(final long timeout) {
-        final long start = System.currentTimeMillis();
-        while (!isCardPresent()) {
-            try {
-                Thread.sleep(WAIT_FOR_CARDS);
-            } catch (final InterruptedException e) {
-            }
-            if (System.currentTimeMillis() - start > timeout) {
-                return false;
+        return waitForCardPresence(true, timeout);
+    }
+
+    private boolean waitForCardPresence(final boolean present, final long timeout) {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(timeout);
+        presenceLock.lock();
+        try {
+            while (isCardPresent() != present) {
+                if (remaining <= 0) {
+                    return false;
+                }
+                remaining = presenceChanged.awaitNanos(remaining);
             }
+            return true;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            presenceLock.unlock();
         }
-        return true;
     }
 
     public boolean isOnline() {
@@ -226,7 +432,47 @@ public class NfcCardReader implements ICardReader, NfcAdapter.ReaderCallback, Nf
     }
 
     public void removeCard() {
-        nfcCard = null;
+        final NfcCard card;
+        synchronized (cardLock) {
+            card = nfcCard;
+            nfcCard = null;
+        }
+        if (card != null) {
+            card.release();
+        }
+    }
+
+    /**
+     * Removes and releases a card reported absent, unless it was replaced by the card of a new discovery meanwhile
+     *
+     * @param card
+     *            card reported absent, null if there was none
+     * @return true if the card was still the current card of this reader
+     */
+    public boolean removeCard(final NfcCard card) {
+        synchronized (cardLock) {
+            if (nfcCard != card) {
+                return false;
+            }
+            nfcCard = null;
+        }
+        if (card != null) {
+            card.release();
+        }
+        return true;
+    }
+
+    private class CardPresentCallBack implements NfcCard.ICardPresentCallBack {
+
+        @Override
+        public void inform() {
+            NfcCardReaderController.getInstance().createCardEventTransmitter(NfcCardReader.this).informAboutCardPresent();
+        }
+
+        @Override
+        public void tagLost() {
+            presenceExecutor.execute(NfcCardReader.this::onTagLost);
+        }
     }
 
     private class NfcActivityLifecycleCallback implements Application.ActivityLifecycleCallbacks {
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.cardreader.provider.nfc.entities;
+
+import java.io.IOException;
+
+import android.nfc.Tag;
+
+import de.gematik.ti.cardreader.provider.nfc.metrics.ApduTraceBuffer;
+import de.gematik.ti.cardreader.provider.nfc.metrics.ApduTraceFile;
+
+/**
+ * {@link ITransceiver} that records every frame of another transceiver in an {@link ApduTraceFile}. Frames with secure messaging are encrypted by the
+ * trace file.
+ *
+ */
+public class RecordingTransceiver implements ITransceiver {
+
+    private static final int CLA_FURTHER_INTERINDUSTRY = 0x40;
+    private static final int CLA_SM_FIRST_INTERINDUSTRY = 0x0C;
+    private static final int CLA_SM_FURTHER_INTERINDUSTRY = 0x20;
+    private static final int CLA_CHANNEL_FIRST_INTERINDUSTRY = 0x03;
+    private static final int CLA_CHANNEL_FURTHER_INTERINDUSTRY = 0x0F;
+    private static final int LOW_CHANNEL_NUMBER_VALUE = 4;
+
+    private final ITransceiver transceiver;
+    private final ApduTraceFile traceFile;
+
+    /**
+     * Constructor
+     *
+     * @param transceiver
+     *            transceiver to record
+     * @param traceFile
+     *            file for the frames
+     */
+    public RecordingTransceiver(final ITransceiver transceiver, final ApduTraceFile traceFile) {
+        this.transceiver = transceiver;
+        this.traceFile = traceFile;
+    }
+
+    @Override
+    public byte[] transceive(final byte[] command) throws IOException {
+        final int channelNo = getChannelNo(command);
+        final boolean secureMessaging = isSecureMessaging(command);
+        traceFile.append(ApduTraceBuffer.COMMAND, channelNo, secureMessaging, 0, command);
+        final long start = System.nanoTime();
+        final byte[] response = transceiver.transceive(command);
+        traceFile.append(ApduTraceBuffer.RESPONSE, channelNo, secureMessaging, System.nanoTime() - start, response);
+        return response;
+    }
+
+    static int getChannelNo(final byte[] command) {
+        if (command.length == 0) {
+            return 0;
+        }
+        final int cla = command[0];
+        if ((cla & CLA_FURTHER_INTERINDUSTRY) != 0) {
+            return LOW_CHANNEL_NUMBER_VALUE + (cla & CLA_CHANNEL_FURTHER_INTERINDUSTRY);
+        }
+        return cla & CLA_CHANNEL_FIRST_INTERINDUSTRY;
+    }
+
+    static boolean isSecureMessaging(final byte[] command) {
+        if (command.length == 0) {
+            return false;
+        }
+        final int cla = command[0];
+        if ((cla & CLA_FURTHER_INTERINDUSTRY) != 0) {
+            return (cla & CLA_SM_FURTHER_INTERINDUSTRY) != 0;
+        }
+        return (cla & CLA_SM_FIRST_INTERINDUSTRY) != 0;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        transceiver.connect();
+    }
+
+    @Override
+    public void reconnect() throws IOException {
+        transceiver.reconnect();
+    }
+
+    @Override
+    public void reconnect(final Tag tag) throws IOException {
+        transceiver.reconnect(tag);
+    }
+
+    @Override
+    public void close() throws IOException {
+        transceiver.close();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return transceiver.isConnected();
+    }
+
+    @Override
+    public int getMaxTransceiveLength() {
+        return transceiver.getMaxTransceiveLength();
+    }
+
+    @Override
+    public boolean isExtendedLengthApduSupported() {
+        return transceiver.isExtendedLengthApduSupported();
+    }
+
+    @Override
+    public void setTimeout(final int timeout) {
+        transceiver.setTimeout(timeout);
+    }
+
+    @Override
+    public int getTimeout() {
+        return transceiver.getTimeout();
+    }
+
+    @Override
+    public byte[] getHistoricalBytes() {
+        return transceiver.getHistoricalBytes();
+    }
+
+    @Override
+    public byte[] getHiLayerResponse() {
+        return transceiver.getHiLayerResponse();
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.cardreader.provider.nfc.entities;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import android.nfc.Tag;
+
+import de.gematik.ti.cardreader.provider.nfc.metrics.ApduTraceBuffer;
+import de.gematik.ti.cardreader.provider.nfc.metrics.ApduTraceRecord;
+
+/**
+ * {@link ITransceiver} that answers with the responses of a recorded session, e.g. to reproduce a session from the field in a unit test on the JVM and
+ * profile the secure messaging path. A session with secure messaging can only be replayed with the same session keys, the recording does not contain
+ * them.
+ *
+ * Every command is compared with the recorded command. With {@link #setTimed(boolean)} every response is delayed by the recorded round trip time.
+ *
+ */
+public class ReplayTransceiver implements ITransceiver {
+
+    private static final int DEFAULT_MAX_TRANSCEIVE_LENGTH = 65546;
+    private static final int DEFAULT_MAX_LENGTH_SHORT = 261;
+
+    private final List<ApduTraceRecord> records;
+    private int position = 0;
+    private boolean connected = false;
+    private boolean timed = false;
+    private boolean verifyCommands = true;
+    private int timeout;
+    private int maxTransceiveLength = DEFAULT_MAX_TRANSCEIVE_LENGTH;
+
+    /**
+     * Constructor
+     *
+     * @param records
+     *            recorded frames, e.g. from {@link de.gematik.ti.cardreader.provider.nfc.metrics.ApduTraceFile#readRecords()}
+     */
+    public ReplayTransceiver(final List<ApduTraceRecord> records) {
+        this.records = records;
+    }
+
+    /**
+     * Delays every response by the recorded round trip time
+     *
+     * @param timed
+     *            true to reproduce the timing of the recording
+     */
+    public void setTimed(final boolean timed) {
+        this.timed = timed;
+    }
+
+    /**
+     * Sets whether commands have to match the recorded commands
+     *
+     * @param verifyCommands
+     *            false to answer any command with the next recorded response
+     */
+    public void setVerifyCommands(final boolean verifyCommands) {
+        this.verifyCommands = verifyCommands;
+    }
+
+    public void setMaxTransceiveLength(final int maxTransceiveLength) {
+        this.maxTransceiveLength = maxTransceiveLength;
+    }
+
+    /**
+     * Returns the number of recorded frames not replayed yet
+     *
+     * @return remaining frames
+     */
+    public int getRemainingFrames() {
+        return records.size() - position;
+    }
+
+    @Override
+    public byte[] transceive(final byte[] command) throws IOException {
+        if (!connected) {
+            throw new IOException("Tag was lost.");
+        }
+        final ApduTraceRecord recordedCommand = next(ApduTraceBuffer.COMMAND);
+        if (verifyCommands && !Arrays.equals(command, recordedCommand.getData())) {
+            throw new IOException("Command differs from recorded frame " + (position - 1));
+        }
+        final ApduTraceRecord recordedResponse = next(ApduTraceBuffer.RESPONSE);
+        if (recordedResponse.getData() == null) {
+            throw new IOException("Recorded frame " + (position - 1) + " has no content");
+        }
+        if (timed) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(recordedResponse.getDurationNanos());
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Replay interrupted", e);
+            }
+        }
+        return recordedResponse.getData();
+    }
+
+    private ApduTraceRecord next(final int direction) throws IOException {
+        while (position < records.size()) {
+            final ApduTraceRecord record = records.get(position++);
+            if (record.getDirection() == direction) {
+                return record;
+            }
+        }
+        throw new IOException("End of recorded session");
+    }
+
+    @Override
+    public void connect() {
+        connected = true;
+    }
+
+    @Override
+    public void reconnect() {
+        connected = true;
+    }
+
+    @Override
+    public void reconnect(final Tag tag) {
+        connected = true;
+    }
+
+    @Override
+    public void close() {
+        connected = false;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected;
+    }
+
+    @Override
+    public int getMaxTransceiveLength() {
+        return maxTransceiveLength;
+    }
+
+    @Override
+    public boolean isExtendedLengthApduSupported() {
+        return maxTransceiveLength > DEFAULT_MAX_LENGTH_SHORT;
+    }
+
+    @Override
+    public void setTimeout(final int timeout) {
+        this.timeout = timeout;
+    }
+
+    @Override
+    public int getTimeout() {
+        return timeout;
+    }
+
+    @Override
+    public byte[] getHistoricalBytes() {
+        return null;
+    }
+
+    @Override
+    public byte[] getHiLayerResponse() {
+        return null;
+    }
+}
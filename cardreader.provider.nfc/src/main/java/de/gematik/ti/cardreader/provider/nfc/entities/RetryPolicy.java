@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.cardreader.provider.nfc.entities;
+
+import java.util.concurrent.TimeUnit;
+
+import de.gematik.ti.cardreader.provider.api.command.ICommandApdu;
+
+/**
+ * Decides which commands are transmitted again after the tag was lost during their transmission.
+ *
+ * Only commands that can be repeated without changing the card are safe to retry, e.g. SELECT and READ BINARY. Commands such as GET CHALLENGE,
+ * VERIFY or UPDATE BINARY change the state of the card and are never retried. Before a retry the tag is connected again within the recovery time and,
+ * if secure messaging was established, a new PACE key is requested.
+ */
+public class RetryPolicy {
+
+    public static final int INS_SELECT = 0xA4;
+    public static final int INS_READ_BINARY = 0xB0;
+    public static final int INS_READ_RECORD = 0xB2;
+    public static final int INS_SEARCH_RECORD = 0xA2;
+
+    /**
+     * Commands are not retried
+     */
+    public static final RetryPolicy NONE = new RetryPolicy(0, 0, TimeUnit.MILLISECONDS);
+
+    /**
+     * One retry of SELECT, READ BINARY, READ RECORD and SEARCH RECORD within 2 seconds
+     */
+    public static final RetryPolicy DEFAULT = new RetryPolicy(1, 2, TimeUnit.SECONDS, INS_SELECT, INS_READ_BINARY, INS_READ_RECORD, INS_SEARCH_RECORD);
+
+    private static final int INS_COUNT = 256;
+    private static final int BYTE_MASK = 0xFF;
+
+    private final int maxRetries;
+    private final long recoveryNanos;
+    private final boolean[] retrySafe = new boolean[INS_COUNT];
+
+    /**
+     * Constructor
+     *
+     * @param maxRetries
+     *            number of retries of a command, 0 for none
+     * @param recoveryTime
+     *            time the tag may take to come back and, with secure messaging, to get a new PACE key
+     * @param unit
+     *            unit of recoveryTime
+     * @param retrySafeInstructions
+     *            instruction bytes of the commands that may be transmitted again
+     */
+    public RetryPolicy(final int maxRetries, final long recoveryTime, final TimeUnit unit, final int... retrySafeInstructions) {
+        if (maxRetries < 0 || recoveryTime < 0) {
+            throw new IllegalArgumentException("retries " + maxRetries + " or recovery time " + recoveryTime + " negative");
+        }
+        this.maxRetries = maxRetries;
+        recoveryNanos = unit.toNanos(recoveryTime);
+        for (final int ins : retrySafeInstructions) {
+            retrySafe[ins & BYTE_MASK] = true;
+        }
+    }
+
+    /**
+     * Returns if a command may be transmitted again after the tag was lost
+     *
+     * @param commandApdu
+     *            plain command
+     * @return true if the command is retried
+     */
+    public boolean isRetrySafe(final ICommandApdu commandApdu) {
+        return maxRetries > 0 && retrySafe[commandApdu.getIns() & BYTE_MASK];
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * Returns the time the tag may take to come back and, with secure messaging, to get a new PACE key
+     *
+     * @return recovery time in nanoseconds
+     */
+    public long getRecoveryNanos() {
+        return recoveryNanos;
+    }
+}
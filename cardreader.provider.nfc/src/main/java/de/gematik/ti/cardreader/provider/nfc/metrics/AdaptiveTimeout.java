@@ -0,0 +1,279 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.cardreader.provider.nfc.metrics;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transceive timeout learned from the round trip times of the commands of a card type.
+ *
+ * For every card type, identified by its historical bytes, every instruction byte and every frame size class the round trip times are kept in a
+ * {@link LatencyHistogram}. The frame size is the length of the command frame plus the expected length of the response. The classes double in size,
+ * below 128 bytes, below 256 bytes and so on up to 8 KB and more, so a long READ BINARY does not get the timeout learned from short ones. Once 1000
+ * round trips are known, enough for the 99.9th percentile to be more than the slowest round trip seen, the timeout of a class is that percentile
+ * times 1.5 plus 250 ms, between 500 ms and 30 s. Before that the fallback timeout is used. Every transceive that fails with the learned timeout
+ * doubles the timeout of the class, up to 16 times, and every successful one within the learned timeout halves it again.
+ *
+ * The statistics can be saved with {@link #writeTo(OutputStream)} and loaded in the next session with {@link #readFrom(InputStream)}.
+ */
+public class AdaptiveTimeout {
+
+    private static final int MAGIC = 0x4154494D; // "ATIM"
+    private static final int VERSION = 2;
+    private static final int MIN_SAMPLES = 1000;
+    private static final int UPDATE_INTERVAL = 16;
+    private static final double PERCENTILE = 99.9;
+    private static final double FACTOR = 1.5;
+    private static final long MARGIN_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+    private static final int MIN_TIMEOUT_MILLIS = 500;
+    private static final int MAX_TIMEOUT_MILLIS = 30000;
+    private static final int MAX_BACKOFF_SHIFT = 4;
+    private static final int INS_COUNT = 256;
+    private static final int BYTE_MASK = 0xFF;
+    private static final int SIZE_CLASS_BITS = 3;
+    private static final int SIZE_CLASS_COUNT = 1 << SIZE_CLASS_BITS;
+    private static final int SMALLEST_SIZE_CLASS_SHIFT = 7;
+
+    private final int fallbackMillis;
+    private final Map<String, InstructionStatistics[]> cardTypes = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor
+     *
+     * @param fallbackMillis
+     *            timeout in milliseconds for instructions without enough round trips
+     */
+    public AdaptiveTimeout(final int fallbackMillis) {
+        this.fallbackMillis = fallbackMillis;
+    }
+
+    /**
+     * Returns the transceive timeout for a command
+     *
+     * @param cardType
+     *            type of the card, e.g. its historical bytes in hex
+     * @param ins
+     *            instruction byte of the command
+     * @param frameLength
+     *            length of the command frame plus the expected length of the response
+     * @return timeout in milliseconds
+     */
+    public int getTimeoutMillis(final String cardType, final int ins, final int frameLength) {
+        final InstructionStatistics[] instructions = cardTypes.get(cardType);
+        final int key = getKey(ins, frameLength);
+        if (instructions == null || instructions[key] == null) {
+            return fallbackMillis;
+        }
+        return instructions[key].getTimeoutMillis();
+    }
+
+    /**
+     * Records the round trip time of a successful transceive
+     *
+     * @param cardType
+     *            type of the card
+     * @param ins
+     *            instruction byte of the command
+     * @param frameLength
+     *            length of the command frame plus the expected length of the response
+     * @param nanos
+     *            round trip time in nanoseconds
+     */
+    public void recordRoundTrip(final String cardType, final int ins, final int frameLength, final long nanos) {
+        getStatistics(cardType, getKey(ins, frameLength)).recordRoundTrip(nanos);
+    }
+
+    /**
+     * Records a failed transceive. The timeout of the instruction and frame size class is doubled if it was learned, because a tap that lost the card
+     * cannot be told apart from a command that took longer than learned.
+     *
+     * @param cardType
+     *            type of the card
+     * @param ins
+     *            instruction byte of the command
+     * @param frameLength
+     *            length of the command frame plus the expected length of the response
+     */
+    public void recordFailure(final String cardType, final int ins, final int frameLength) {
+        getStatistics(cardType, getKey(ins, frameLength)).recordFailure();
+    }
+
+    /**
+     * Returns the index of the statistics of an instruction and frame size class
+     */
+    private static int getKey(final int ins, final int frameLength) {
+        final int sizeClass = Integer.SIZE - Integer.numberOfLeadingZeros(Math.max(frameLength, 0) >> SMALLEST_SIZE_CLASS_SHIFT);
+        return (ins & BYTE_MASK) << SIZE_CLASS_BITS | Math.min(sizeClass, SIZE_CLASS_COUNT - 1);
+    }
+
+    /**
+     * Saves the round trip statistics of all card types
+     *
+     * @param outputStream
+     *            stream to write to, not closed
+     * @throws IOException
+     *             if writing failed
+     */
+    public void writeTo(final OutputStream outputStream) throws IOException {
+        final DataOutputStream out = new DataOutputStream(outputStream);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(cardTypes.size());
+        for (final Map.Entry<String, InstructionStatistics[]> cardType : cardTypes.entrySet()) {
+            out.writeUTF(cardType.getKey());
+            final List<Integer> learned = new ArrayList<>();
+            for (int key = 0; key < INS_COUNT * SIZE_CLASS_COUNT; key++) {
+                if (cardType.getValue()[key] != null) {
+                    learned.add(key);
+                }
+            }
+            out.writeShort(learned.size());
+            for (final int key : learned) {
+                out.writeByte(key >> SIZE_CLASS_BITS);
+                out.writeByte(key & (SIZE_CLASS_COUNT - 1));
+                writeHistogram(out, cardType.getValue()[key].roundTrips.getSnapshot());
+            }
+        }
+        out.flush();
+    }
+
+    private static void writeHistogram(final DataOutputStream out, final HistogramSnapshot snapshot) throws IOException {
+        int buckets = 0;
+        for (int i = 0; i < LatencyHistogram.BUCKET_COUNT; i++) {
+            if (snapshot.getCountOfBucket(i) > 0) {
+                buckets++;
+            }
+        }
+        out.writeShort(buckets);
+        for (int i = 0; i < LatencyHistogram.BUCKET_COUNT; i++) {
+            final long count = snapshot.getCountOfBucket(i);
+            if (count > 0) {
+                out.writeShort(i);
+                out.writeLong(count);
+            }
+        }
+    }
+
+    /**
+     * Loads round trip statistics saved with {@link #writeTo(OutputStream)} and adds them to the current ones
+     *
+     * @param inputStream
+     *            stream to read from, not closed
+     * @throws IOException
+     *             if reading failed or the data is not valid
+     */
+    public void readFrom(final InputStream inputStream) throws IOException {
+        final DataInputStream in = new DataInputStream(inputStream);
+        if (in.readInt() != MAGIC) {
+            throw new IOException("not an adaptive timeout file");
+        }
+        final int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("unsupported adaptive timeout version " + version);
+        }
+        final int cardTypeCount = in.readInt();
+        for (int c = 0; c < cardTypeCount; c++) {
+            final String cardType = in.readUTF();
+            final int insCount = in.readUnsignedShort();
+            for (int i = 0; i < insCount; i++) {
+                final int ins = in.readUnsignedByte();
+                final int sizeClass = in.readUnsignedByte();
+                if (sizeClass >= SIZE_CLASS_COUNT) {
+                    throw new IOException("invalid frame size class " + sizeClass + " of instruction " + ins);
+                }
+                final InstructionStatistics statistics = getStatistics(cardType, ins << SIZE_CLASS_BITS | sizeClass);
+                final int buckets = in.readUnsignedShort();
+                for (int b = 0; b < buckets; b++) {
+                    final int index = in.readUnsignedShort();
+                    final long count = in.readLong();
+                    if (index >= LatencyHistogram.BUCKET_COUNT || count < 0) {
+                        throw new IOException("invalid bucket " + index + " of instruction " + ins);
+                    }
+                    statistics.roundTrips.recordBucket(index, count);
+                }
+                statistics.update();
+            }
+        }
+    }
+
+    private InstructionStatistics getStatistics(final String cardType, final int key) {
+        final InstructionStatistics[] instructions = cardTypes.computeIfAbsent(cardType,
+                type -> new InstructionStatistics[INS_COUNT * SIZE_CLASS_COUNT]);
+        synchronized (instructions) {
+            if (instructions[key] == null) {
+                instructions[key] = new InstructionStatistics();
+            }
+            return instructions[key];
+        }
+    }
+
+    /**
+     * Round trips and current timeout of one instruction and frame size class. The percentile is computed again every 16 round trips, not for every
+     * command.
+     */
+    private final class InstructionStatistics {
+        private final LatencyHistogram roundTrips = new LatencyHistogram();
+        private volatile int learnedMillis = fallbackMillis;
+        private volatile int backoffShift = 0;
+        private volatile boolean learned = false;
+
+        private int getTimeoutMillis() {
+            if (!learned) {
+                return fallbackMillis;
+            }
+            return (int) Math.min((long) learnedMillis << backoffShift, MAX_TIMEOUT_MILLIS);
+        }
+
+        private void recordRoundTrip(final long nanos) {
+            roundTrips.record(nanos);
+            if (backoffShift > 0 && nanos <= TimeUnit.MILLISECONDS.toNanos(learnedMillis)) {
+                // a round trip that took longer than learned does not show that the learned timeout is enough again
+                backoffShift--;
+            }
+            final long count = roundTrips.getCount();
+            if (count == MIN_SAMPLES || count > MIN_SAMPLES && count % UPDATE_INTERVAL == 0) {
+                update();
+            }
+        }
+
+        private void recordFailure() {
+            if (learned && backoffShift < MAX_BACKOFF_SHIFT) {
+                backoffShift++;
+            }
+        }
+
+        private void update() {
+            final HistogramSnapshot snapshot = roundTrips.getSnapshot();
+            if (snapshot.getCount() < MIN_SAMPLES) {
+                return;
+            }
+            final long nanos = (long) (snapshot.getValueAtPercentile(PERCENTILE) * FACTOR) + MARGIN_NANOS;
+            final long millis = TimeUnit.NANOSECONDS.toMillis(nanos) + 1;
+            learnedMillis = (int) Math.max(MIN_TIMEOUT_MILLIS, Math.min(millis, MAX_TIMEOUT_MILLIS));
+            learned = true;
+        }
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.cardreader.provider.nfc.metrics;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency and throughput of the APDUs exchanged with one card.
+ *
+ * The radio round trip of every frame, the secure messaging encryption and decryption and the total time of every APDU are kept in
+ * {@link LatencyHistogram}s, bytes and status words in counters. Recording does not allocate unless an {@link IApduMetricsListener} is registered.
+ *
+ * {@link #beginApdu(int)}, {@link #recordFrame(int, int, int, int, long)} and {@link #endApdu(int, long, long)} are called on the card I/O thread. A
+ * frame outside of beginApdu and endApdu counts as an APDU of its own.
+ */
+public class ApduMetrics {
+
+    private static final int SW_SUCCESS = 0x9000;
+
+    private final LatencyHistogram roundTrip = new LatencyHistogram();
+    private final LatencyHistogram encrypt = new LatencyHistogram();
+    private final LatencyHistogram decrypt = new LatencyHistogram();
+    private final LatencyHistogram total = new LatencyHistogram();
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+    private final AtomicLong missedDeadlines = new AtomicLong();
+    private final AtomicLong maxQueueDepth = new AtomicLong();
+    private final AtomicLong apdus = new AtomicLong();
+    private final AtomicLong unsuccessfulApdus = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final List<IApduMetricsListener> listeners = new CopyOnWriteArrayList<>();
+
+    // APDU in progress, only accessed on the card I/O thread
+    private boolean apduInProgress = false;
+    private int apduIns;
+    private long apduStart;
+    private int apduFrames;
+    private int apduBytesSent;
+    private int apduBytesReceived;
+    private long apduRoundTrip;
+
+    /**
+     * Registers a listener that is informed about every APDU
+     *
+     * @param listener
+     *            listener to add
+     */
+    public void addListener(final IApduMetricsListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Unregisters a listener
+     *
+     * @param listener
+     *            listener to remove
+     */
+    public void removeListener(final IApduMetricsListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Starts the timing of an APDU that may consist of several frames
+     *
+     * @param ins
+     *            instruction byte of the plain command
+     */
+    public void beginApdu(final int ins) {
+        apduInProgress = true;
+        apduIns = ins;
+        apduStart = System.nanoTime();
+        apduFrames = 0;
+        apduBytesSent = 0;
+        apduBytesReceived = 0;
+        apduRoundTrip = 0;
+    }
+
+    /**
+     * Records a frame exchanged with the card
+     *
+     * @param ins
+     *            instruction byte of the frame
+     * @param sent
+     *            number of bytes sent
+     * @param received
+     *            number of bytes received
+     * @param sw
+     *            status word of the frame
+     * @param nanos
+     *            round trip time of the frame
+     */
+    public void recordFrame(final int ins, final int sent, final int received, final int sw, final long nanos) {
+        roundTrip.record(nanos);
+        bytesSent.addAndGet(sent);
+        bytesReceived.addAndGet(received);
+        if (apduInProgress) {
+            apduFrames++;
+            apduBytesSent += sent;
+            apduBytesReceived += received;
+            apduRoundTrip += nanos;
+        } else {
+            completeApdu(ins, sw, 1, sent, received, nanos, 0, 0, nanos);
+        }
+    }
+
+    /**
+     * Ends the timing of the APDU started with {@link #beginApdu(int)}
+     *
+     * @param sw
+     *            status word of the plain response or {@link ApduTiming#NO_STATUS} if the APDU failed
+     * @param encryptNanos
+     *            time spent encrypting the command, 0 without secure messaging
+     * @param decryptNanos
+     *            time spent decrypting the response, 0 without secure messaging
+     */
+    public void endApdu(final int sw, final long encryptNanos, final long decryptNanos) {
+        if (!apduInProgress) {
+            return;
+        }
+        apduInProgress = false;
+        if (encryptNanos > 0) {
+            encrypt.record(encryptNanos);
+        }
+        if (decryptNanos > 0) {
+            decrypt.record(decryptNanos);
+        }
+        completeApdu(apduIns, sw, apduFrames, apduBytesSent, apduBytesReceived, apduRoundTrip, encryptNanos, decryptNanos, System.nanoTime() - apduStart);
+    }
+
+    /**
+     * Records the time an operation waited in the queue of the card I/O thread. Called on the card I/O thread when the operation starts.
+     *
+     * @param nanos
+     *            time from the submission to the start of the operation
+     * @param deadlineMissed
+     *            true if the operation started after its deadline
+     */
+    public void recordQueueWait(final long nanos, final boolean deadlineMissed) {
+        queueWait.record(nanos);
+        if (deadlineMissed) {
+            missedDeadlines.incrementAndGet();
+        }
+    }
+
+    /**
+     * Records the number of operations waiting in the queue of the card I/O thread. Can be called from any thread.
+     *
+     * @param depth
+     *            number of queued operations
+     */
+    public void recordQueueDepth(final int depth) {
+        long max = maxQueueDepth.get();
+        while (depth > max && !maxQueueDepth.compareAndSet(max, depth)) {
+            max = maxQueueDepth.get();
+        }
+    }
+
+    private void completeApdu(final int ins, final int sw, final int frames, final int sent, final int received, final long roundTripNanos,
+            final long encryptNanos, final long decryptNanos, final long totalNanos) {
+        total.record(totalNanos);
+        apdus.incrementAndGet();
+        if (sw != SW_SUCCESS) {
+            unsuccessfulApdus.incrementAndGet();
+        }
+        if (listeners.isEmpty()) {
+            return;
+        }
+        final ApduTiming timing = new ApduTiming(ins, sw, frames, sent, received, roundTripNanos, encryptNanos, decryptNanos, totalNanos);
+        for (final IApduMetricsListener listener : listeners) {
+            listener.apduExchanged(timing);
+        }
+    }
+
+    /**
+     * Returns the radio round trip times of all frames
+     *
+     * @return snapshot of the round trip histogram
+     */
+    public HistogramSnapshot getRoundTripSnapshot() {
+        return roundTrip.getSnapshot();
+    }
+
+    /**
+     * Returns the secure messaging encryption times
+     *
+     * @return snapshot of the encryption histogram
+     */
+    public HistogramSnapshot getEncryptSnapshot() {
+        return encrypt.getSnapshot();
+    }
+
+    /**
+     * Returns the secure messaging decryption and MAC verification times
+     *
+     * @return snapshot of the decryption histogram
+     */
+    public HistogramSnapshot getDecryptSnapshot() {
+        return decrypt.getSnapshot();
+    }
+
+    /**
+     * Returns the times from the start of an APDU to its plain response
+     *
+     * @return snapshot of the total time histogram
+     */
+    public HistogramSnapshot getTotalSnapshot() {
+        return total.getSnapshot();
+    }
+
+    /**
+     * Returns the times operations waited in the queue of the card I/O thread before they started
+     *
+     * @return snapshot of the queue wait histogram
+     */
+    public HistogramSnapshot getQueueWaitSnapshot() {
+        return queueWait.getSnapshot();
+    }
+
+    /**
+     * Returns the number of operations that started after their deadline
+     *
+     * @return number of missed deadlines
+     */
+    public long getMissedDeadlineCount() {
+        return missedDeadlines.get();
+    }
+
+    /**
+     * Returns the highest number of operations that were waiting in the queue of the card I/O thread at the same time
+     *
+     * @return maximum queue depth
+     */
+    public long getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    public long getApduCount() {
+        return apdus.get();
+    }
+
+    /**
+     * Returns the number of APDUs with a status word other than 9000, including APDUs without response
+     *
+     * @return number of unsuccessful APDUs
+     */
+    public long getUnsuccessfulApduCount() {
+        return unsuccessfulApdus.get();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+}
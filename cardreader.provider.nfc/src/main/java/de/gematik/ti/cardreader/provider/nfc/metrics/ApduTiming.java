@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.cardreader.provider.nfc.metrics;
+
+/**
+ * Timing of one APDU exchanged with the card
+ */
+public class ApduTiming {
+
+    /**
+     * Status word of an APDU without response, e.g. because the card left the field
+     */
+    public static final int NO_STATUS = -1;
+
+    private final int ins;
+    private final int sw;
+    private final int frames;
+    private final int bytesSent;
+    private final int bytesReceived;
+    private final long roundTripNanos;
+    private final long encryptNanos;
+    private final long decryptNanos;
+    private final long totalNanos;
+
+    ApduTiming(final int ins, final int sw, final int frames, final int bytesSent, final int bytesReceived, final long roundTripNanos,
+            final long encryptNanos, final long decryptNanos, final long totalNanos) {
+        this.ins = ins;
+        this.sw = sw;
+        this.frames = frames;
+        this.bytesSent = bytesSent;
+        this.bytesReceived = bytesReceived;
+        this.roundTripNanos = roundTripNanos;
+        this.encryptNanos = encryptNanos;
+        this.decryptNanos = decryptNanos;
+        this.totalNanos = totalNanos;
+    }
+
+    public int getIns() {
+        return ins;
+    }
+
+    /**
+     * Returns the status word of the plain response
+     *
+     * @return status word or {@link #NO_STATUS}
+     */
+    public int getSw() {
+        return sw;
+    }
+
+    /**
+     * Returns the number of frames sent for this APDU
+     *
+     * @return number of frames
+     */
+    public int getFrames() {
+        return frames;
+    }
+
+    /**
+     * Returns the number of bytes sent to the card, including secure messaging
+     *
+     * @return bytes sent
+     */
+    public int getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * Returns the number of bytes received from the card, including secure messaging
+     *
+     * @return bytes received
+     */
+    public int getBytesReceived() {
+        return bytesReceived;
+    }
+
+    /**
+     * Returns the time the frames were on the air
+     *
+     * @return round trip time in nanoseconds
+     */
+    public long getRoundTripNanos() {
+        return roundTripNanos;
+    }
+
+    public long getEncryptNanos() {
+        return encryptNanos;
+    }
+
+    public long getDecryptNanos() {
+        return decryptNanos;
+    }
+
+    /**
+     * Returns the time from the start of the transmission to the plain response
+     *
+     * @return total time in nanoseconds
+     */
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "ApduTiming{ins=" + String.format("0x%02x", ins) + ", sw=" + String.format("0x%04x", sw) + ", frames=" + frames + ", bytesSent="
+                + bytesSent + ", bytesReceived=" + bytesReceived + ", roundTripNanos=" + roundTripNanos + ", encryptNanos=" + encryptNanos
+                + ", decryptNanos=" + decryptNanos + ", totalNanos=" + totalNanos + "}";
+    }
+}
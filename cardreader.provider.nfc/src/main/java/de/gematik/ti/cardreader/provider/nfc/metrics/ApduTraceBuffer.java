@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.cardreader.provider.nfc.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Ring buffer with the last frames exchanged with a card, kept in binary form.
+ *
+ * Frames are copied as they were sent and received over the air, no strings are formatted. With secure messaging these are the encrypted frames, the
+ * session keys and the plain APDUs are never written. If the buffer is full the oldest frames are dropped, a frame larger than the buffer is truncated.
+ *
+ * Every frame is stored as a record of
+ * <ul>
+ * <li>8 bytes timestamp of {@link System#nanoTime()}</li>
+ * <li>1 byte direction, {@link #COMMAND} or {@link #RESPONSE}</li>
+ * <li>4 bytes length of the frame</li>
+ * <li>4 bytes number of stored bytes</li>
+ * <li>the stored bytes of the frame</li>
+ * </ul>
+ * with all numbers big endian. {@link #writeTo(OutputStream)} writes the records from the oldest to the newest.
+ */
+public class ApduTraceBuffer {
+
+    public static final int COMMAND = 0;
+    public static final int RESPONSE = 1;
+    public static final int HEADER_SIZE = 8 + 1 + 4 + 4;
+    private static final int STORED_LENGTH_OFFSET = 8 + 1 + 4;
+    private static final int BYTE_MASK = 0xFF;
+    private static final int BYTE_VALUE = 8;
+
+    private final byte[] buffer;
+    private int head = 0;
+    private int tail = 0;
+    private int used = 0;
+    private int records = 0;
+
+    /**
+     * Constructor
+     *
+     * @param capacity
+     *            size of the buffer in bytes
+     */
+    public ApduTraceBuffer(final int capacity) {
+        if (capacity <= HEADER_SIZE) {
+            throw new IllegalArgumentException("capacity must be larger than " + HEADER_SIZE);
+        }
+        buffer = new byte[capacity];
+    }
+
+    /**
+     * Appends a frame sent to the card
+     *
+     * @param frame
+     *            bytes sent
+     */
+    public void recordCommand(final byte[] frame) {
+        record(COMMAND, frame);
+    }
+
+    /**
+     * Appends a frame received from the card
+     *
+     * @param frame
+     *            bytes received
+     */
+    public void recordResponse(final byte[] frame) {
+        record(RESPONSE, frame);
+    }
+
+    private synchronized void record(final int direction, final byte[] frame) {
+        final int stored = Math.min(frame.length, buffer.length - HEADER_SIZE);
+        final int size = HEADER_SIZE + stored;
+        while (buffer.length - used < size) {
+            dropOldest();
+        }
+        putLong(System.nanoTime());
+        put(direction);
+        putInt(frame.length);
+        putInt(stored);
+        final int first = Math.min(stored, buffer.length - head);
+        System.arraycopy(frame, 0, buffer, head, first);
+        System.arraycopy(frame, first, buffer, 0, stored - first);
+        head = (head + stored) % buffer.length;
+        used += size;
+        records++;
+    }
+
+    private void dropOldest() {
+        int stored = 0;
+        for (int i = 0; i < 4; i++) {
+            stored = stored << BYTE_VALUE | buffer[(tail + STORED_LENGTH_OFFSET + i) % buffer.length] & BYTE_MASK;
+        }
+        final int size = HEADER_SIZE + stored;
+        tail = (tail + size) % buffer.length;
+        used -= size;
+        records--;
+    }
+
+    private void put(final int value) {
+        buffer[head] = (byte) value;
+        head = (head + 1) % buffer.length;
+    }
+
+    private void putInt(final int value) {
+        for (int shift = 24; shift >= 0; shift -= BYTE_VALUE) {
+            put(value >>> shift);
+        }
+    }
+
+    private void putLong(final long value) {
+        for (int shift = 56; shift >= 0; shift -= BYTE_VALUE) {
+            put((int) (value >>> shift));
+        }
+    }
+
+    /**
+     * Returns the number of frames in the buffer
+     *
+     * @return number of frames
+     */
+    public synchronized int getFrameCount() {
+        return records;
+    }
+
+    /**
+     * Removes all frames
+     */
+    public synchronized void clear() {
+        head = 0;
+        tail = 0;
+        used = 0;
+        records = 0;
+    }
+
+    /**
+     * Writes all records from the oldest to the newest
+     *
+     * @param out
+     *            stream to write to
+     * @throws IOException
+     *             if writing failed
+     */
+    public void writeTo(final OutputStream out) throws IOException {
+        final byte[] copy;
+        final int start;
+        final int length;
+        synchronized (this) {
+            copy = buffer.clone();
+            start = tail;
+            length = used;
+        }
+        final int first = Math.min(length, copy.length - start);
+        out.write(copy, start, first);
+        out.write(copy, 0, length - first);
+    }
+}
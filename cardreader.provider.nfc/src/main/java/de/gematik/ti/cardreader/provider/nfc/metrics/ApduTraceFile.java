@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.cardreader.provider.nfc.metrics;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * Ring file with the frames exchanged with a card, written through a memory mapping.
+ *
+ * Every append goes to the mapped pages, so the records survive a crash of the app without any flushing. If the file is full the oldest records are
+ * dropped. An existing file of the same capacity is continued.
+ *
+ * Frames with secure messaging are encrypted with AES-GCM under a device key, e.g. a key of the Android keystore. Without device key only their length
+ * is recorded. Session keys are never written.
+ *
+ * The file starts with a header of magic, version, capacity, head, tail, used bytes and record count, followed by the ring. Every record consists of
+ * timestamp, direction, channel number, flags, duration, frame length and stored length followed by the stored bytes, all numbers big endian. An
+ * encrypted record stores the 12 byte IV followed by the cipher text and the GCM tag.
+ */
+public class ApduTraceFile implements Closeable {
+
+    private static final int MAGIC = 0x41505452;
+    private static final int VERSION = 1;
+    private static final int FILE_HEADER_SIZE = 32;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int HEAD_OFFSET = 12;
+    private static final int TAIL_OFFSET = 16;
+    private static final int USED_OFFSET = 20;
+    private static final int COUNT_OFFSET = 24;
+    private static final int RECORD_HEADER_SIZE = 8 + 1 + 1 + 1 + 8 + 4 + 4;
+    private static final int STORED_LENGTH_OFFSET = RECORD_HEADER_SIZE - 4;
+    private static final int FLAG_ENCRYPTED = 0x01;
+    private static final int FLAG_OMITTED = 0x02;
+    private static final String AES_GCM_NO_PADDING = "AES/GCM/NoPadding";
+    private static final int IV_SIZE = 12;
+    private static final int TAG_BITS = 128;
+    private static final int TAG_SIZE = TAG_BITS / 8;
+    private static final int BYTE_MASK = 0xFF;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer map;
+    private final int capacity;
+    private final SecretKey deviceKey;
+    private final byte[] recordHeader = new byte[RECORD_HEADER_SIZE];
+    private final ByteBuffer recordHeaderBuffer = ByteBuffer.wrap(recordHeader);
+    private SecureRandom random;
+    private int head;
+    private int tail;
+    private int used;
+    private int count;
+
+    /**
+     * Opens or creates a trace file
+     *
+     * @param path
+     *            file to write to
+     * @param capacity
+     *            size of the ring in bytes
+     * @param deviceKey
+     *            AES key for frames with secure messaging, null to omit their content
+     * @throws IOException
+     *             if the file cannot be mapped
+     */
+    public ApduTraceFile(final File path, final int capacity, final SecretKey deviceKey) throws IOException {
+        if (capacity <= RECORD_HEADER_SIZE + IV_SIZE + TAG_SIZE) {
+            throw new IllegalArgumentException("capacity " + capacity + " too small");
+        }
+        this.capacity = capacity;
+        this.deviceKey = deviceKey;
+        file = new RandomAccessFile(path, "rw");
+        try {
+            map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, FILE_HEADER_SIZE + (long) capacity);
+        } catch (final IOException e) {
+            file.close();
+            throw e;
+        }
+        if (map.getInt(0) == MAGIC && map.getInt(4) == VERSION && map.getInt(CAPACITY_OFFSET) == capacity) {
+            head = map.getInt(HEAD_OFFSET);
+            tail = map.getInt(TAIL_OFFSET);
+            used = map.getInt(USED_OFFSET);
+            count = map.getInt(COUNT_OFFSET);
+        } else {
+            map.putInt(0, MAGIC);
+            map.putInt(4, VERSION);
+            map.putInt(CAPACITY_OFFSET, capacity);
+            clear();
+        }
+    }
+
+    /**
+     * Appends a frame
+     *
+     * @param direction
+     *            {@link ApduTraceBuffer#COMMAND} or {@link ApduTraceBuffer#RESPONSE}
+     * @param channelNo
+     *            logical channel of the frame
+     * @param secureMessaging
+     *            true if the frame is protected by secure messaging
+     * @param durationNanos
+     *            round trip time for a response, 0 for a command
+     * @param frame
+     *            bytes of the frame
+     */
+    public synchronized void append(final int direction, final int channelNo, final boolean secureMessaging, final long durationNanos,
+            final byte[] frame) {
+        final long timestamp = System.nanoTime();
+        int flags = 0;
+        byte[] stored = frame;
+        if (secureMessaging) {
+            stored = encryptQuietly(frame);
+            flags = stored != null ? FLAG_ENCRYPTED : FLAG_OMITTED;
+        }
+        int length = stored != null ? Math.min(stored.length, capacity - RECORD_HEADER_SIZE) : 0;
+        if (flags == FLAG_ENCRYPTED && length < stored.length) {
+            // a truncated cipher text cannot be decrypted
+            flags = FLAG_OMITTED;
+            length = 0;
+        }
+        final int size = RECORD_HEADER_SIZE + length;
+        while (capacity - used < size) {
+            dropOldest();
+        }
+        recordHeaderBuffer.clear();
+        recordHeaderBuffer.putLong(timestamp).put((byte) direction).put((byte) channelNo).put((byte) flags).putLong(durationNanos).putInt(frame.length)
+                .putInt(length);
+        write(recordHeader, 0, RECORD_HEADER_SIZE);
+        if (length > 0) {
+            write(stored, 0, length);
+        }
+        used += size;
+        count++;
+        storePositions();
+    }
+
+    /**
+     * Returns all records from the oldest to the newest. Encrypted frames are decrypted with the device key.
+     *
+     * @return records of this file
+     */
+    public synchronized List<ApduTraceRecord> readRecords() {
+        final List<ApduTraceRecord> records = new ArrayList<>(count);
+        final byte[] header = new byte[RECORD_HEADER_SIZE];
+        int position = tail;
+        for (int i = 0; i < count; i++) {
+            read(position, header, RECORD_HEADER_SIZE);
+            final ByteBuffer fields = ByteBuffer.wrap(header);
+            final long timestamp = fields.getLong();
+            final int direction = fields.get();
+            final int channelNo = fields.get() & BYTE_MASK;
+            final int flags = fields.get();
+            final long duration = fields.getLong();
+            final int frameLength = fields.getInt();
+            final int storedLength = fields.getInt();
+            byte[] data = new byte[storedLength];
+            read((position + RECORD_HEADER_SIZE) % capacity, data, storedLength);
+            if ((flags & FLAG_OMITTED) != 0) {
+                data = null;
+            } else if ((flags & FLAG_ENCRYPTED) != 0) {
+                data = decryptQuietly(data);
+            }
+            records.add(new ApduTraceRecord(timestamp, direction, channelNo, duration, frameLength, data));
+            position = (position + RECORD_HEADER_SIZE + storedLength) % capacity;
+        }
+        return records;
+    }
+
+    /**
+     * Returns the number of records in the file
+     *
+     * @return number of records
+     */
+    public synchronized int getRecordCount() {
+        return count;
+    }
+
+    /**
+     * Removes all records
+     */
+    public synchronized void clear() {
+        head = 0;
+        tail = 0;
+        used = 0;
+        count = 0;
+        storePositions();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        map.force();
+        file.close();
+    }
+
+    private byte[] encryptQuietly(final byte[] frame) {
+        if (deviceKey == null) {
+            return null;
+        }
+        if (random == null) {
+            random = new SecureRandom();
+        }
+        final byte[] output = new byte[IV_SIZE + frame.length + TAG_SIZE];
+        final byte[] iv = new byte[IV_SIZE];
+        random.nextBytes(iv);
+        System.arraycopy(iv, 0, output, 0, IV_SIZE);
+        try {
+            final Cipher cipher = Cipher.getInstance(AES_GCM_NO_PADDING);
+            cipher.init(Cipher.ENCRYPT_MODE, deviceKey, new GCMParameterSpec(TAG_BITS, iv));
+            cipher.doFinal(frame, 0, frame.length, output, IV_SIZE);
+        } catch (final GeneralSecurityException e) {
+            return null;
+        }
+        return output;
+    }
+
+    private byte[] decryptQuietly(final byte[] stored) {
+        if (deviceKey == null || stored.length < IV_SIZE + TAG_SIZE) {
+            return null;
+        }
+        try {
+            final Cipher cipher = Cipher.getInstance(AES_GCM_NO_PADDING);
+            cipher.init(Cipher.DECRYPT_MODE, deviceKey, new GCMParameterSpec(TAG_BITS, stored, 0, IV_SIZE));
+            return cipher.doFinal(stored, IV_SIZE, stored.length - IV_SIZE);
+        } catch (final GeneralSecurityException e) {
+            return null;
+        }
+    }
+
+    private void dropOldest() {
+        final byte[] storedLength = new byte[4];
+        read((tail + STORED_LENGTH_OFFSET) % capacity, storedLength, storedLength.length);
+        final int size = RECORD_HEADER_SIZE + ByteBuffer.wrap(storedLength).getInt();
+        tail = (tail + size) % capacity;
+        used -= size;
+        count--;
+    }
+
+    private void write(final byte[] source, final int offset, final int length) {
+        final int first = Math.min(length, capacity - head);
+        final ByteBuffer target = map.duplicate();
+        target.position(FILE_HEADER_SIZE + head);
+        target.put(source, offset, first);
+        target.position(FILE_HEADER_SIZE);
+        target.put(source, offset + first, length - first);
+        head = (head + length) % capacity;
+    }
+
+    private void read(final int position, final byte[] target, final int length) {
+        final int first = Math.min(length, capacity - position);
+        final ByteBuffer source = map.duplicate();
+        source.position(FILE_HEADER_SIZE + position);
+        source.get(target, 0, first);
+        source.position(FILE_HEADER_SIZE);
+        source.get(target, first, length - first);
+    }
+
+    private void storePositions() {
+        map.putInt(HEAD_OFFSET, head);
+        map.putInt(TAIL_OFFSET, tail);
+        map.putInt(USED_OFFSET, used);
+        map.putInt(COUNT_OFFSET, count);
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.cardreader.provider.nfc.metrics;
+
+/**
+ * One frame of an {@link ApduTraceFile}
+ */
+public class ApduTraceRecord {
+
+    private final long timestampNanos;
+    private final int direction;
+    private final int channelNo;
+    private final long durationNanos;
+    private final int frameLength;
+    private final byte[] data;
+
+    /**
+     * Constructor
+     *
+     * @param timestampNanos
+     *            {@link System#nanoTime()} when the frame was sent or received
+     * @param direction
+     *            {@link ApduTraceBuffer#COMMAND} or {@link ApduTraceBuffer#RESPONSE}
+     * @param channelNo
+     *            logical channel of the frame
+     * @param durationNanos
+     *            round trip time for a response, 0 for a command
+     * @param frameLength
+     *            length of the frame on the air
+     * @param data
+     *            bytes of the frame, null if they were not recorded or cannot be decrypted
+     */
+    public ApduTraceRecord(final long timestampNanos, final int direction, final int channelNo, final long durationNanos, final int frameLength,
+            final byte[] data) {
+        this.timestampNanos = timestampNanos;
+        this.direction = direction;
+        this.channelNo = channelNo;
+        this.durationNanos = durationNanos;
+        this.frameLength = frameLength;
+        this.data = data;
+    }
+
+    public long getTimestampNanos() {
+        return timestampNanos;
+    }
+
+    public int getDirection() {
+        return direction;
+    }
+
+    public int getChannelNo() {
+        return channelNo;
+    }
+
+    public long getDurationNanos() {
+        return durationNanos;
+    }
+
+    public int getFrameLength() {
+        return frameLength;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+}
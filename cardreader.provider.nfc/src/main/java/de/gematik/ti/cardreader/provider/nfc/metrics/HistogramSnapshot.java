@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.cardreader.provider.nfc.metrics;
+
+/**
+ * Immutable copy of a {@link LatencyHistogram}
+ */
+public class HistogramSnapshot {
+
+    private static final double PERCENT = 100.0;
+
+    private final long[] counts;
+    private final long count;
+    private final long sum;
+    private final long max;
+
+    HistogramSnapshot(final long[] counts, final long count, final long sum, final long max) {
+        this.counts = counts;
+        this.count = count;
+        this.sum = sum;
+        this.max = max;
+    }
+
+    /**
+     * Returns the number of recorded values
+     *
+     * @return number of values
+     */
+    public long getCount() {
+        return count;
+    }
+
+    long getCountOfBucket(final int index) {
+        return counts[index];
+    }
+
+    /**
+     * Returns the mean of the recorded values
+     *
+     * @return mean in nanoseconds, 0 if nothing was recorded
+     */
+    public double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * Returns the largest recorded value
+     *
+     * @return maximum in nanoseconds, 0 if nothing was recorded
+     */
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * Returns the value below or equal to which the given percentage of the recorded values fall. The result is the upper bound of the bucket the value was
+     * counted in, but never above the maximum.
+     *
+     * @param percentile
+     *            percentage between 0 and 100, e.g. 99.9
+     * @return value in nanoseconds, 0 if nothing was recorded
+     */
+    public long getValueAtPercentile(final double percentile) {
+        if (percentile < 0 || percentile > PERCENT) {
+            throw new IllegalArgumentException("percentile " + percentile + " out of range");
+        }
+        if (count == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(percentile / PERCENT * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(LatencyHistogram.getHighestValueOfBucket(i), max);
+            }
+        }
+        return max;
+    }
+}
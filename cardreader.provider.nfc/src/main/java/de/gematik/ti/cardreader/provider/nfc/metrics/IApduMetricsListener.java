@@ -0,0 +1,31 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.cardreader.provider.nfc.metrics;
+
+/**
+ * Receives the timing of every APDU exchanged with a card, e.g. to export it to telemetry
+ */
+public interface IApduMetricsListener {
+
+    /**
+     * Called on the card I/O thread after an APDU was exchanged. Implementations must return quickly, the next APDU waits for them.
+     *
+     * @param timing
+     *            timing of the APDU
+     */
+    void apduExchanged(ApduTiming timing);
+}
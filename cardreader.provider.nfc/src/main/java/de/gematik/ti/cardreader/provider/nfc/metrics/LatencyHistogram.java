@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.cardreader.provider.nfc.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations in nanoseconds.
+ *
+ * Values are counted in log-linear buckets: every power of two is split into 32 sub-buckets, so a recorded value is off by at most 1/32 of its magnitude.
+ * Recording is one atomic increment per value and does not allocate, it can be called from any thread. Values above about 36 minutes are counted in the
+ * last bucket.
+ */
+public class LatencyHistogram {
+
+    static final int SUB_BUCKET_BITS = 5;
+    static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_VALUE_BITS = 41;
+    static final long MAX_TRACKABLE_VALUE = (1L << MAX_VALUE_BITS) - 1;
+    static final int BUCKET_COUNT = (MAX_VALUE_BITS - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong totalSum = new AtomicLong();
+    private final AtomicLong maxValue = new AtomicLong();
+
+    /**
+     * Records one value
+     *
+     * @param nanos
+     *            duration in nanoseconds, negative values are counted as 0
+     */
+    public void record(final long nanos) {
+        final long value = Math.max(nanos, 0);
+        counts.incrementAndGet(getBucketIndex(value));
+        totalCount.incrementAndGet();
+        totalSum.addAndGet(value);
+        long max = maxValue.get();
+        while (value > max && !maxValue.compareAndSet(max, value)) {
+            max = maxValue.get();
+        }
+    }
+
+    /**
+     * Adds values to one bucket, e.g. when a histogram is restored from its snapshot. Sum and maximum are taken from the upper bound of the bucket.
+     *
+     * @param index
+     *            index of the bucket
+     * @param count
+     *            number of values
+     */
+    void recordBucket(final int index, final long count) {
+        if (count <= 0) {
+            return;
+        }
+        final long value = getHighestValueOfBucket(index);
+        counts.addAndGet(index, count);
+        totalCount.addAndGet(count);
+        totalSum.addAndGet(value * count);
+        long max = maxValue.get();
+        while (value > max && !maxValue.compareAndSet(max, value)) {
+            max = maxValue.get();
+        }
+    }
+
+    /**
+     * Returns a copy of the current counts. Values recorded concurrently may or may not be contained.
+     *
+     * @return snapshot of this histogram
+     */
+    public HistogramSnapshot getSnapshot() {
+        final long[] bucketCounts = new long[BUCKET_COUNT];
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            bucketCounts[i] = counts.get(i);
+            count += bucketCounts[i];
+        }
+        return new HistogramSnapshot(bucketCounts, count, totalSum.get(), maxValue.get());
+    }
+
+    /**
+     * Returns the number of recorded values
+     *
+     * @return number of values
+     */
+    public long getCount() {
+        return totalCount.get();
+    }
+
+    static int getBucketIndex(final long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        final long clamped = Math.min(value, MAX_TRACKABLE_VALUE);
+        final int exponent = 63 - Long.numberOfLeadingZeros(clamped);
+        final int shift = exponent - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKET_COUNT + (int) (clamped >>> shift) - SUB_BUCKET_COUNT;
+    }
+
+    static long getHighestValueOfBucket(final int index) {
+        final int group = index / SUB_BUCKET_COUNT;
+        if (group == 0) {
+            return index;
+        }
+        final int shift = group - 1;
+        final long lowest = (long) (SUB_BUCKET_COUNT + index % SUB_BUCKET_COUNT) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.cardreader.provider.nfc.security;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import de.gematik.ti.openhealthcard.events.response.entities.PaceKey;
+import de.gematik.ti.utils.codec.Hex;
+
+/**
+ * In-memory cache of secure messaging sessions for cards tapped again within a short time.
+ *
+ * A session consists of the PACE key and the send sequence counter when the card was released. It is stored under the identity of the card, its tag UID
+ * and historical bytes, and expires after a fixed time. A session is taken out of the cache when it is resumed, so it is used by one card at a time.
+ */
+public class PaceKeyCache {
+
+    private final long timeToLiveNanos;
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor
+     *
+     * @param timeToLive
+     *            time after which a session expires
+     * @param unit
+     *            unit of timeToLive
+     */
+    public PaceKeyCache(final long timeToLive, final TimeUnit unit) {
+        timeToLiveNanos = unit.toNanos(timeToLive);
+    }
+
+    /**
+     * Returns the identity of a card
+     *
+     * @param tagId
+     *            UID of the tag
+     * @param historicalBytes
+     *            historical bytes or higher layer response of the card, may be null
+     * @return identity for this cache
+     */
+    public static String getCardId(final byte[] tagId, final byte[] historicalBytes) {
+        return Hex.encodeHexString(tagId) + "/" + (historicalBytes != null ? Hex.encodeHexString(historicalBytes) : "");
+    }
+
+    /**
+     * Stores the session of a card
+     *
+     * @param cardId
+     *            identity of the card
+     * @param paceKey
+     *            session keys
+     * @param ssc
+     *            current send sequence counter, copied
+     */
+    public void put(final String cardId, final PaceKey paceKey, final byte[] ssc) {
+        sessions.put(cardId, new Session(paceKey, ssc.clone(), System.nanoTime() + timeToLiveNanos));
+    }
+
+    /**
+     * Removes the session of a card from the cache and returns it
+     *
+     * @param cardId
+     *            identity of the card
+     * @return session or null if there is none or it expired
+     */
+    public Session take(final String cardId) {
+        final Session session = sessions.remove(cardId);
+        if (session == null || System.nanoTime() - session.expiry > 0) {
+            return null;
+        }
+        return session;
+    }
+
+    /**
+     * Removes the session of a card, e.g. after a secure messaging error
+     *
+     * @param cardId
+     *            identity of the card
+     */
+    public void evict(final String cardId) {
+        sessions.remove(cardId);
+    }
+
+    /**
+     * Removes all sessions
+     */
+    public void clear() {
+        sessions.clear();
+    }
+
+    /**
+     * Cached secure messaging session
+     */
+    public static final class Session {
+        private final PaceKey paceKey;
+        private final byte[] ssc;
+        private final long expiry;
+
+        private Session(final PaceKey paceKey, final byte[] ssc, final long expiry) {
+            this.paceKey = paceKey;
+            this.ssc = ssc;
+            this.expiry = expiry;
+        }
+
+        public PaceKey getPaceKey() {
+            return paceKey;
+        }
+
+        /**
+         * Returns the send sequence counter when the session was stored
+         *
+         * @return copy of the send sequence counter
+         */
+        public byte[] getSendSequenceCounter() {
+            return ssc.clone();
+        }
+    }
+}
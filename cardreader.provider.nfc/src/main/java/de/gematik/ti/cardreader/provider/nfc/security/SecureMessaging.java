@@ -16,35 +16,18 @@
 
 package de.gematik.ti.cardreader.provider.nfc.security;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.math.BigInteger;
 import java.security.GeneralSecurityException;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
-import java.security.Key;
-import java.security.NoSuchAlgorithmException;
-import java.security.spec.AlgorithmParameterSpec;
-
-import javax.crypto.BadPaddingException;
-import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.spongycastle.asn1.DERTaggedObject;
 
 import de.gematik.ti.cardreader.provider.api.command.CommandApdu;
 import de.gematik.ti.cardreader.provider.api.command.ICommandApdu;
 import de.gematik.ti.cardreader.provider.api.command.ResponseApdu;
-import de.gematik.ti.cardreader.provider.nfc.security.tagobjects.DataObject;
 import de.gematik.ti.cardreader.provider.nfc.security.tagobjects.LengthObject;
 import de.gematik.ti.cardreader.provider.nfc.security.tagobjects.MacObject;
-import de.gematik.ti.cardreader.provider.nfc.security.tagobjects.StatusObject;
+import de.gematik.ti.cardreader.provider.nfc.security.tagobjects.TlvWriter;
 import de.gematik.ti.openhealthcard.events.response.entities.PaceKey;
 import de.gematik.ti.utils.codec.Hex;
 import de.gematik.ti.utils.primitives.Bytes;
@@ -59,15 +42,21 @@ public class SecureMessaging {
     private static final Logger LOG = LoggerFactory.getLogger(SecureMessaging.class);
 
     private static final byte SECURE_MESSAGING_COMMAND = (byte) 0x0C;
+    // logical channels 4 to 19 use the further interindustry class with a single secure messaging bit, see [ISO 7816-4#5.1.1]
+    private static final byte CLA_FURTHER_INTERINDUSTRY = (byte) 0x40;
+    private static final byte SECURE_MESSAGING_COMMAND_FURTHER_INTERINDUSTRY = (byte) 0x20;
     private static final byte[] PADDING_INDICATOR = new byte[] { (byte) 0x01 };
 
     private static final int BLOCK_SIZE = 16;
     private static final int MAC_SIZE = 8;
     private static final int STATUS_SIZE = (byte) 0x02;
     private static final int MIN_RESPONSE_SIZE = 12;
-    private static final int HEADER_SIZE = 4;
-    private static final int ENCRYPT_MODE = 1;
-    private static final int DECRYPT_MODE = 2;
+    private static final int MAC_OBJECT_LENGTH = TlvWriter.getEncodedLength(MAC_SIZE);
+    private static final int STATUS_OBJECT_LENGTH = TlvWriter.getEncodedLength(STATUS_SIZE);
+    // header, extended Lc, DO'97' with two byte Le, DO'8E', extended Le
+    private static final int COMMAND_OVERHEAD = 4 + 3 + TlvWriter.getEncodedLength(2) + MAC_OBJECT_LENGTH + 2;
+    private static final int RESPONSE_OVERHEAD = STATUS_OBJECT_LENGTH + MAC_OBJECT_LENGTH + STATUS_SIZE;
+    private static final int MAX_DATA_OBJECT_LENGTH = 0xFFFF;
     private static final int DO_81_TAG = 0x81;
     private static final int DO_87_TAG = 0x87;
     private static final int DO_99_TAG = 0x99;
@@ -75,19 +64,13 @@ public class SecureMessaging {
     private static final int LENGTH_TAG = 0x80;
     private static final int BYTE_MASK = 0x0F;
     private static final int BYTE_MASK_FF = 0xFF;
+    private static final int BYTE_VALUE = 8;
     private static final String MALFORMED_SECURE_MESSAGING_APDU = "Malformed Secure Messaging APDU";
 
     private final byte[] secureMessagingSSC;
     private final PaceKey paceKey;
-
-    private int le = -1;
-    private byte[] header;
-
-    private byte[] statusBytes;
-    private byte[] dataBytes;
-    private byte[] macBytes;
-    private MacObject commandMacObject;
-    private MacObject responseMacObject;
+    private final SessionCipher sessionCipher;
+    private final SessionMac sessionMac;
 
     /**
      * Constructor for a new secure messaging instance
@@ -98,6 +81,12 @@ public class SecureMessaging {
     public SecureMessaging(final PaceKey paceKey) { // NOCS(SAB): Zugriff auf SecureMessaging durch cardreader.provider.nfc
         this.paceKey = paceKey;
         secureMessagingSSC = new byte[BLOCK_SIZE];
+        try {
+            sessionCipher = new SessionCipher(paceKey.getEnc());
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Secure Messaging cipher could not be initialized", e);
+        }
+        sessionMac = new SessionMac(paceKey.getMac());
     }
 
     /**
@@ -110,36 +99,58 @@ public class SecureMessaging {
      *             if an error occurred
      */
     public CommandApdu encrypt(final ICommandApdu commandApdu) throws IOException {
-        ByteArrayOutputStream commandDataOutput = new ByteArrayOutputStream();
-        byte[] apduToEncrypt = commandApdu.getBytes();
-
-        LOG.debug("Plain Apdu vor dem Verschlüsseln: " + Hex.encodeHexString(apduToEncrypt));
+        incrementSSC(secureMessagingSSC);
+        return encrypt(commandApdu, secureMessagingSSC);
+    }
 
-        incrementSSC();
-        checkCommandApduSize(apduToEncrypt);
+    /**
+     * Encrypts a plain APDU with a given send sequence counter. The send sequence counter of this instance is not changed.
+     *
+     * @param commandApdu
+     *            plain Command APDU
+     * @param ssc
+     *            send sequence counter of this command
+     * @return encrypted Command APDU
+     * @throws IOException
+     *             if an error occurred
+     */
+    public CommandApdu encrypt(final ICommandApdu commandApdu, final byte[] ssc) throws IOException {
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("Plain Apdu vor dem Verschlüsseln: {}", Hex.encodeHexString(commandApdu.getBytes()));
+        }
 
-        header = Bytes.copyByteArray(apduToEncrypt, 0, HEADER_SIZE);
-        setSecureMessagingCommand();
+        final byte[] header = new byte[] { (byte) commandApdu.getCla(), (byte) commandApdu.getIns(), (byte) commandApdu.getP1(),
+                (byte) commandApdu.getP2() };
+        setSecureMessagingCommand(header);
 
         byte[] data = commandApdu.getData();
+        int paddedLength = data.length > 0 ? TlvWriter.getPaddedLength(data.length, BLOCK_SIZE) : 0;
+        int dataObjectLength = data.length > 0 ? TlvWriter.getEncodedLength(PADDING_INDICATOR.length + paddedLength) : 0;
 
-        if (data.length > 0) {
-            data = Bytes.padData(data, BLOCK_SIZE);
-            data = encryptData(data);
-            data = Bytes.concatNullables(PADDING_INDICATOR, data);
-            DataObject dataObject = new DataObject(data);
+        int le = -1;
+        LengthObject lengthObject = null;
+        if (commandApdu.getNe() != null) {
+            le = commandApdu.getNe();
+            lengthObject = new LengthObject(le);
+        }
+        int lengthObjectLength = lengthObject != null ? lengthObject.getEncodedLength() : 0;
 
-            commandDataOutput.write(dataObject.getTaggedObject().getEncoded());
+        TlvWriter writer = new TlvWriter(dataObjectLength + lengthObjectLength + MAC_OBJECT_LENGTH);
+        if (data.length > 0) {
+            writer.writeTag(DO_87_TAG);
+            writer.writeLength(PADDING_INDICATOR.length + paddedLength);
+            writer.write(PADDING_INDICATOR, 0, PADDING_INDICATOR.length);
+            int dataOffset = writer.writePadded(data, BLOCK_SIZE);
+            encryptData(ssc, writer.getBuffer(), dataOffset, paddedLength);
         }
 
-        if (commandApdu.getNe() != null) {
-            le = commandApdu.getNe();
-            LengthObject lengthObject = new LengthObject(le);
-            commandDataOutput.write(lengthObject.getTaggedObject().getEncoded());
+        if (lengthObject != null) {
+            lengthObject.encodeTo(writer);
         }
 
-        commandMacObject = new MacObject(header, commandDataOutput, paceKey.getMac(), secureMessagingSSC);
-        return createEncryptedCommand(commandDataOutput, commandMacObject.getTaggedObject(), header);
+        final MacObject commandMacObject = new MacObject(header, writer.getBuffer(), 0, writer.getPosition(), sessionMac, ssc);
+        commandMacObject.encodeTo(writer);
+        return createEncryptedCommand(writer.getBuffer(), header, le);
 
     }
 
@@ -156,66 +167,135 @@ public class SecureMessaging {
      */
     public ResponseApdu decrypt(final ResponseApdu responseApdu) throws IOException, GeneralSecurityException {
         byte[] responseApduBytes = responseApdu.getBytes();
-        statusBytes = new byte[2];
-        dataBytes = null;
-        macBytes = new byte[MAC_SIZE];
-
-        ByteArrayInputStream responseApduInput = new ByteArrayInputStream(responseApduBytes);
-        ByteArrayOutputStream responseDataOutput = new ByteArrayOutputStream();
 
         checkResponseApduSize(responseApduBytes);
-        incrementSSC();
+        incrementSSC(secureMessagingSSC);
+
+        return decrypt(responseApduBytes, secureMessagingSSC);
+    }
 
-        int dataTag = getResponseObjects(responseApduInput);
+    /**
+     * Decrypts an encrypted Response APDU with a given send sequence counter. The send sequence counter of this instance is not changed.
+     *
+     * @param responseApdu
+     *            encrypted Response APDU
+     * @param ssc
+     *            send sequence counter of this response
+     * @return plain Response APDU
+     * @throws IOException
+     *             if an error occurred
+     * @throws GeneralSecurityException
+     *             if an error occurred
+     */
+    public ResponseApdu decrypt(final ResponseApdu responseApdu, final byte[] ssc) throws IOException, GeneralSecurityException {
+        byte[] responseApduBytes = responseApdu.getBytes();
 
-        if (dataBytes != null) {
+        checkResponseApduSize(responseApduBytes);
+        return decrypt(responseApduBytes, ssc);
+    }
 
-            LOG.debug("DataBytes: + " + Hex.encodeHexString(dataBytes));
-            DataObject dataObject = new DataObject(dataBytes, dataTag);
+    private ResponseApdu decrypt(final byte[] responseApduBytes, final byte[] ssc) throws IOException, GeneralSecurityException {
+        final ResponseObjects objects = getResponseObjects(responseApduBytes);
 
-            responseDataOutput.write(dataObject.getTaggedObject().getEncoded());
+        final MacObject responseMacObject = new MacObject(null, responseApduBytes, 0, objects.macTagOffset, sessionMac, ssc);
+
+        if (!(verifyMac(responseMacObject.getMac(), responseApduBytes, objects.macTagOffset + 2))) {
+            throw new GeneralSecurityException("Secure Messaging MAC verification failed");
         }
 
-        StatusObject statusObject = new StatusObject(statusBytes);
-        responseDataOutput.write(statusObject.getTaggedObject().getEncoded());
+        return createDecryptedResponse(responseApduBytes, objects, ssc);
+    }
 
-        responseMacObject = new MacObject(responseDataOutput, paceKey.getMac(), secureMessagingSSC);
+    /**
+     * Returns a copy of the send sequence counter of the last command or response
+     *
+     * @return send sequence counter
+     */
+    public byte[] getSendSequenceCounter() {
+        return secureMessagingSSC.clone();
+    }
 
-        if (!(verifyMac(responseMacObject.getMac(), macBytes))) {
-            throw new GeneralSecurityException("Secure Messaging MAC verification failed");
+    /**
+     * Sets the send sequence counter, e.g. back to the last APDU exchanged with the card after commands were encrypted in advance
+     *
+     * @param ssc
+     *            send sequence counter of the last command or response
+     */
+    public void setSendSequenceCounter(final byte[] ssc) {
+        if (ssc.length != BLOCK_SIZE) {
+            throw new IllegalArgumentException("Send sequence counter must have " + BLOCK_SIZE + " bytes");
         }
+        System.arraycopy(ssc, 0, secureMessagingSSC, 0, BLOCK_SIZE);
+    }
 
-        return createDecryptedResponse(dataTag);
+    /**
+     * Returns the send sequence counter the given number of APDUs after ssc
+     *
+     * @param ssc
+     *            send sequence counter
+     * @param count
+     *            number of commands and responses
+     * @return new array with the incremented send sequence counter
+     */
+    public static byte[] getSendSequenceCounter(final byte[] ssc, final int count) {
+        byte[] result = ssc.clone();
+        for (int i = 0; i < count; i++) {
+            incrementSSC(result);
+        }
+        return result;
     }
 
-    private void incrementSSC() {
+    /**
+     * Returns the maximum length of the command data of a plain APDU whose encrypted APDU still fits into maxCommandLength bytes
+     *
+     * @param maxCommandLength
+     *            maximum length of the encrypted command APDU
+     * @return maximum length of the plain command data
+     */
+    public static int getMaxCommandDataLength(final int maxCommandLength) {
+        return getMaxDataLength(maxCommandLength - COMMAND_OVERHEAD);
+    }
 
-        for (int i = secureMessagingSSC.length - 1; i >= 0; i--) {
-            secureMessagingSSC[i]++;
-            if (secureMessagingSSC[i] != 0) {
-                break;
-            }
+    /**
+     * Returns the maximum length of the response data of a plain APDU whose encrypted APDU still fits into maxResponseLength bytes
+     *
+     * @param maxResponseLength
+     *            maximum length of the encrypted response APDU including the status word
+     * @return maximum length of the plain response data
+     */
+    public static int getMaxResponseDataLength(final int maxResponseLength) {
+        return getMaxDataLength(maxResponseLength - RESPONSE_OVERHEAD);
+    }
+
+    private static int getMaxDataLength(final int available) {
+        int paddedLength = Math.min(available, MAX_DATA_OBJECT_LENGTH) / BLOCK_SIZE * BLOCK_SIZE;
+        while (paddedLength > 0 && TlvWriter.getEncodedLength(PADDING_INDICATOR.length + paddedLength) > available) {
+            paddedLength -= BLOCK_SIZE;
         }
+        // the padding adds at least one byte
+        return Math.max(paddedLength - 1, 0);
     }
 
-    private void checkCommandApduSize(final byte[] apduToEncrypt) {
-        if (apduToEncrypt.length < HEADER_SIZE) {
-            throw new IllegalArgumentException("apdu must be at least 4 bytes long");
+    private static void incrementSSC(final byte[] ssc) {
+
+        for (int i = ssc.length - 1; i >= 0; i--) {
+            ssc[i]++;
+            if (ssc[i] != 0) {
+                break;
+            }
         }
     }
 
-    private void setSecureMessagingCommand() {
-        if (header[0] == (byte) (header[0] | SECURE_MESSAGING_COMMAND)) {
+    private static void setSecureMessagingCommand(final byte[] header) {
+        final byte indication = (header[0] & CLA_FURTHER_INTERINDUSTRY) != 0 ? SECURE_MESSAGING_COMMAND_FURTHER_INTERINDUSTRY : SECURE_MESSAGING_COMMAND;
+        if (header[0] == (byte) (header[0] | indication)) {
             throw new IllegalArgumentException("Malformed APDU.");
         } else {
-            header[0] = (byte) (header[0] | SECURE_MESSAGING_COMMAND);
+            header[0] = (byte) (header[0] | indication);
         }
     }
 
-    private CommandApdu createEncryptedCommand(final ByteArrayOutputStream outputStream, final DERTaggedObject do8E, final byte[] header) throws IOException {
-
-        byte[] secureData = Bytes.concatNullables(outputStream.toByteArray(), do8E.getEncoded());
-
+    private CommandApdu createEncryptedCommand(final byte[] secureData, final byte[] header, final int le) {
         int ne = 0;
 
         if (le > CommandApdu.EXPECTED_LENGTH_WILDCARD_SHORT) {
@@ -224,21 +304,12 @@ public class SecureMessaging {
         return new CommandApdu(header[0] & BYTE_MASK_FF, header[1] & BYTE_MASK_FF, header[2] & BYTE_MASK_FF, header[3] & BYTE_MASK_FF, secureData, ne);
     }
 
-    private byte[] encryptData(final byte[] paddedData) {
-        Cipher cipher;
-        byte[] encryptedData = new byte[0];
+    private void encryptData(final byte[] ssc, final byte[] buffer, final int offset, final int paddedLength) throws IOException {
         try {
-            cipher = getCipher(ENCRYPT_MODE);
-            if (cipher != null) {
-                encryptedData = cipher.doFinal(paddedData);
-            } else {
-                LOG.error("encrypt data failed, Cipher not found!");
-            }
-
-        } catch (BadPaddingException | IllegalBlockSizeException e) {
-            LOG.error("encrypt data failed " + e);
+            sessionCipher.encrypt(ssc, buffer, offset, paddedLength, buffer, offset);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("encrypt data failed", e);
         }
-        return encryptedData;
     }
 
     private void checkResponseApduSize(final byte[] responseApduBytes) {
@@ -247,122 +318,109 @@ public class SecureMessaging {
         }
     }
 
-    private int getResponseObjects(final ByteArrayInputStream inputStream) throws IOException {
-        byte tag = (byte) inputStream.read();
-        int i;
-        int dataTag = 0x00;
-
-        if (tag == (byte) DO_81_TAG || tag == (byte) DO_87_TAG) {
-            dataTag = tag;
-            int size = inputStream.read();
-            if (size > LENGTH_TAG) {
-                byte[] sizeBytes = new byte[size & BYTE_MASK];
-                i = inputStream.read(sizeBytes, 0, sizeBytes.length);
-                checkExpectedLength(i, sizeBytes.length);
-                size = new BigInteger(1, sizeBytes).intValue();
-            }
-
-            dataBytes = new byte[size];
+    private static ResponseObjects getResponseObjects(final byte[] response) throws IOException {
+        final ResponseObjects objects = new ResponseObjects();
+        int position = 0;
+
+        int tag = response[position] & BYTE_MASK_FF;
+        if (tag == DO_81_TAG || tag == DO_87_TAG) {
+            objects.dataTag = tag;
+            position = readLength(response, position + 1, objects);
+            objects.dataOffset = position;
+            position += objects.dataLength;
+            checkExpectedLength(response, position + 2 + STATUS_SIZE);
+            tag = response[position] & BYTE_MASK_FF;
+        }
 
-            i = inputStream.read(dataBytes, 0, dataBytes.length);
-            checkExpectedLength(i, dataBytes.length);
-            tag = (byte) inputStream.read();
+        if (tag != DO_99_TAG || response[position + 1] != STATUS_SIZE) {
+            throw new IOException(MALFORMED_SECURE_MESSAGING_APDU);
         }
+        objects.statusOffset = position + 2;
+        position = objects.statusOffset + STATUS_SIZE;
 
-        if (tag == (byte) DO_99_TAG) {
-            if (inputStream.read() == STATUS_SIZE) {
-                i = inputStream.read(statusBytes, 0, STATUS_SIZE);
-                checkExpectedLength(i, STATUS_SIZE);
-                tag = (byte) inputStream.read();
-            }
-        } else {
+        checkExpectedLength(response, position + 2);
+        if ((response[position] & BYTE_MASK_FF) != DO_8E_TAG || response[position + 1] != MAC_SIZE) {
             throw new IOException(MALFORMED_SECURE_MESSAGING_APDU);
         }
+        objects.macTagOffset = position;
+        position += 2 + MAC_SIZE;
 
-        if (tag == (byte) DO_8E_TAG) {
-            if (inputStream.read() == (byte) MAC_SIZE) {
-                i = inputStream.read(macBytes, 0, MAC_SIZE);
-                checkExpectedLength(i, MAC_SIZE);
-            }
-        } else {
+        if (response.length - position != STATUS_SIZE) {
             throw new IOException(MALFORMED_SECURE_MESSAGING_APDU);
         }
-        if (inputStream.available() != 2) {
+        return objects;
+    }
+
+    private static int readLength(final byte[] response, final int lengthOffset, final ResponseObjects objects) throws IOException {
+        checkExpectedLength(response, lengthOffset + 1);
+        int position = lengthOffset;
+        int size = response[position++] & BYTE_MASK_FF;
+        if (size > LENGTH_TAG) {
+            int sizeBytes = size & BYTE_MASK;
+            if (sizeBytes > 2) {
+                throw new IOException(MALFORMED_SECURE_MESSAGING_APDU);
+            }
+            checkExpectedLength(response, position + sizeBytes);
+            size = 0;
+            for (int i = 0; i < sizeBytes; i++) {
+                size = (size << BYTE_VALUE) | (response[position++] & BYTE_MASK_FF);
+            }
+        } else if (size == LENGTH_TAG) {
             throw new IOException(MALFORMED_SECURE_MESSAGING_APDU);
         }
-        return dataTag;
+        objects.dataLength = size;
+        return position;
     }
 
-    private boolean verifyMac(final byte[] mac, final byte[] macObject) throws GeneralSecurityException {
-        LOG.debug("calculated mac: " + Hex.encodeHexString(mac));
-        LOG.debug("extracted mac: " + Hex.encodeHexString(macObject));
+    private boolean verifyMac(final byte[] mac, final byte[] response, final int macOffset) throws GeneralSecurityException {
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("calculated mac: {}", Hex.encodeHexString(mac));
+            LOG.trace("extracted mac: {}", Hex.encodeHexString(Bytes.copyByteArray(response, macOffset, MAC_SIZE)));
+        }
 
-        if (mac == null || macObject == null || (mac.length != macObject.length)) {
+        if (mac == null || mac.length != MAC_SIZE) {
             throw new GeneralSecurityException("Secure Messaging MAC verification failed");
         }
-        return java.util.Arrays.equals(mac, macObject);
+        int difference = 0;
+        for (int i = 0; i < MAC_SIZE; i++) {
+            difference |= mac[i] ^ response[macOffset + i];
+        }
+        return difference == 0;
     }
 
-    private ResponseApdu createDecryptedResponse(final int dataTag) throws BadPaddingException, IllegalBlockSizeException, IOException {
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        if (dataBytes != null) {
-            if (dataTag == (byte) DO_87_TAG) {
-                dataBytes = removePaddingIndicator(dataBytes);
-                Cipher cipher = getCipher(DECRYPT_MODE);
-                if (cipher != null) {
-                    byte[] dataDecrypted = cipher.doFinal(dataBytes);
-                    outputStream.write(Bytes.unPadData(dataDecrypted));
-                    LOG.debug("data decrypted: " + Hex.encodeHexString(dataDecrypted));
-                } else {
-                    LOG.error("decrypt data response failed, Cipher not found!");
-                    // TODO send Error with EventBus
-                }
-            } else {
-                outputStream.write(dataBytes);
+    private ResponseApdu createDecryptedResponse(final byte[] response, final ResponseObjects objects, final byte[] ssc)
+            throws GeneralSecurityException, IOException {
+        byte[] plainResponse;
+        if (objects.dataTag == DO_87_TAG) {
+            if (objects.dataLength < 1 || response[objects.dataOffset] != PADDING_INDICATOR[0]) {
+                throw new IOException(MALFORMED_SECURE_MESSAGING_APDU);
             }
-
+            plainResponse = sessionCipher.decryptUnpadded(ssc, response, objects.dataOffset + 1, objects.dataLength - 1, STATUS_SIZE);
+        } else {
+            plainResponse = new byte[objects.dataLength + STATUS_SIZE];
+            System.arraycopy(response, objects.dataOffset, plainResponse, 0, objects.dataLength);
         }
-        outputStream.write(statusBytes);
-        return new ResponseApdu(outputStream.toByteArray());
-    }
-
-    private byte[] removePaddingIndicator(byte[] dataBytes) {
-        byte[] ret = new byte[dataBytes.length - 1];
-        System.arraycopy(dataBytes, 1, ret, 0, ret.length);
-        return ret;
-    }
-
-    private Cipher getCipher(final int mode) {
-        Cipher cipher = null;
-        try {
-            cipher = Cipher.getInstance("AES/CBC/NoPadding");
-            Key key = new SecretKeySpec(paceKey.getEnc(), "AES");
-            byte[] iv = getCipherIV();
-            AlgorithmParameterSpec aps = new IvParameterSpec(iv);
-            cipher.init(mode, key, aps);
-        } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidAlgorithmParameterException | InvalidKeyException e) {
-            LOG.error("encrypt or decrypt data failed " + e);
+        System.arraycopy(response, objects.statusOffset, plainResponse, plainResponse.length - STATUS_SIZE, STATUS_SIZE);
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("data decrypted: {}", Hex.encodeHexString(plainResponse));
         }
-        return cipher;
+        return new ResponseApdu(plainResponse);
     }
 
-    private byte[] getCipherIV() {
-        Cipher cipher;
-        byte[] iv = new byte[0];
-        try {
-            cipher = Cipher.getInstance("AES/ECB/NoPadding");
-            Key key = new SecretKeySpec(paceKey.getEnc(), "AES");
-            cipher.init(SecureMessaging.ENCRYPT_MODE, key);
-            iv = cipher.doFinal(secureMessagingSSC);
-        } catch (NoSuchAlgorithmException | NoSuchPaddingException | BadPaddingException | IllegalBlockSizeException | InvalidKeyException e) {
-            LOG.error("encrypt or decrypt data failed " + e);
+    private static void checkExpectedLength(final byte[] response, final int expected) throws IOException {
+        if (response.length < expected) {
+            throw new IOException(MALFORMED_SECURE_MESSAGING_APDU);
         }
-        return iv;
     }
 
-    private void checkExpectedLength(final int i, final int expected) throws IOException {
-        if (i < expected) {
-            throw new IOException(MALFORMED_SECURE_MESSAGING_APDU);
-        }
+    /**
+     * Positions of the data objects in an encrypted response APDU
+     */
+    private static final class ResponseObjects {
+        private int dataTag;
+        private int dataOffset;
+        private int dataLength;
+        private int statusOffset;
+        private int macTagOffset;
     }
 }
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.cardreader.provider.nfc.security;
+
+import java.security.GeneralSecurityException;
+import java.security.Key;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * AES cipher context of one secure messaging session.
+ *
+ * The session key and the AES-CBC and AES-ECB cipher instances are created once per session key K_enc. Per message only the IV is derived from the send
+ * sequence counter and the CBC cipher is re-initialised with it.
+ *
+ * Instances are not thread safe, a secure messaging session processes one APDU at a time.
+ */
+public class SessionCipher {
+
+    private static final String AES = "AES";
+    private static final String AES_CBC_NO_PADDING = "AES/CBC/NoPadding";
+    private static final String AES_ECB_NO_PADDING = "AES/ECB/NoPadding";
+    private static final int BLOCK_SIZE = 16;
+    private static final byte PADDING_START = (byte) 0x80;
+
+    private final Key key;
+    private final Cipher cbcCipher;
+    private final Cipher ecbCipher;
+    private final Cipher ecbDecryptCipher;
+    private final byte[] iv = new byte[BLOCK_SIZE];
+    private final byte[] lastBlock = new byte[BLOCK_SIZE];
+
+    /**
+     * Constructor
+     *
+     * @param kEnc
+     *            byte array with Session key for encoding
+     * @throws GeneralSecurityException
+     *             if AES is not available or the key is invalid
+     */
+    public SessionCipher(final byte[] kEnc) throws GeneralSecurityException {
+        key = new SecretKeySpec(kEnc, AES);
+        cbcCipher = Cipher.getInstance(AES_CBC_NO_PADDING);
+        ecbCipher = Cipher.getInstance(AES_ECB_NO_PADDING);
+        ecbCipher.init(Cipher.ENCRYPT_MODE, key);
+        ecbDecryptCipher = Cipher.getInstance(AES_ECB_NO_PADDING);
+        ecbDecryptCipher.init(Cipher.DECRYPT_MODE, key);
+    }
+
+    /**
+     * Encrypts padded data with the IV derived from the send sequence counter
+     *
+     * @param ssc
+     *            byte array with send sequence counter
+     * @param paddedData
+     *            data padded to the AES block size
+     * @return encrypted data
+     * @throws GeneralSecurityException
+     *             if an error occurred
+     */
+    public byte[] encrypt(final byte[] ssc, final byte[] paddedData) throws GeneralSecurityException {
+        initCbc(Cipher.ENCRYPT_MODE, ssc);
+        return cbcCipher.doFinal(paddedData);
+    }
+
+    /**
+     * Encrypts padded data with the IV derived from the send sequence counter into an output buffer. Input and output may be the same buffer region.
+     *
+     * @param ssc
+     *            byte array with send sequence counter
+     * @param input
+     *            buffer containing the padded data
+     * @param inputOffset
+     *            offset of the padded data in input
+     * @param length
+     *            length of the padded data, a multiple of the AES block size
+     * @param output
+     *            buffer for the encrypted data
+     * @param outputOffset
+     *            offset in output
+     * @return number of bytes written to output
+     * @throws GeneralSecurityException
+     *             if an error occurred
+     */
+    public int encrypt(final byte[] ssc, final byte[] input, final int inputOffset, final int length, final byte[] output, final int outputOffset)
+            throws GeneralSecurityException {
+        initCbc(Cipher.ENCRYPT_MODE, ssc);
+        return cbcCipher.doFinal(input, inputOffset, length, output, outputOffset);
+    }
+
+    /**
+     * Decrypts data with the IV derived from the send sequence counter
+     *
+     * @param ssc
+     *            byte array with send sequence counter
+     * @param encryptedData
+     *            encrypted data, a multiple of the AES block size
+     * @return decrypted data, still padded
+     * @throws GeneralSecurityException
+     *             if an error occurred
+     */
+    public byte[] decrypt(final byte[] ssc, final byte[] encryptedData) throws GeneralSecurityException {
+        initCbc(Cipher.DECRYPT_MODE, ssc);
+        return cbcCipher.doFinal(encryptedData);
+    }
+
+    /**
+     * Decrypts ISO/IEC 7816-4 padded data directly into a new array of the unpadded length. The last block is decrypted first to find the padding, so the
+     * plain data is written exactly once.
+     *
+     * @param ssc
+     *            byte array with send sequence counter
+     * @param input
+     *            buffer containing the encrypted data
+     * @param offset
+     *            offset of the encrypted data in input
+     * @param length
+     *            length of the encrypted data, a multiple of the AES block size
+     * @param trailingSpace
+     *            number of bytes to reserve behind the plain data, e.g. for the status word
+     * @return array with the unpadded plain data followed by trailingSpace zero bytes
+     * @throws GeneralSecurityException
+     *             if an error occurred or the padding is invalid
+     */
+    public byte[] decryptUnpadded(final byte[] ssc, final byte[] input, final int offset, final int length, final int trailingSpace)
+            throws GeneralSecurityException {
+        if (length == 0 || length % BLOCK_SIZE != 0) {
+            throw new IllegalBlockSizeException("Encrypted data must be a multiple of " + BLOCK_SIZE + " bytes");
+        }
+        initCbc(Cipher.DECRYPT_MODE, ssc);
+
+        int lastBlockOffset = offset + length - BLOCK_SIZE;
+        ecbDecryptCipher.doFinal(input, lastBlockOffset, BLOCK_SIZE, lastBlock, 0);
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            lastBlock[i] ^= length == BLOCK_SIZE ? iv[i] : input[lastBlockOffset - BLOCK_SIZE + i];
+        }
+        int paddingOffset = BLOCK_SIZE - 1;
+        while (paddingOffset > 0 && lastBlock[paddingOffset] == 0) {
+            paddingOffset--;
+        }
+        if (lastBlock[paddingOffset] != PADDING_START) {
+            throw new BadPaddingException("Invalid padding of decrypted data");
+        }
+
+        byte[] output = new byte[length - BLOCK_SIZE + paddingOffset + trailingSpace];
+        if (length > BLOCK_SIZE) {
+            cbcCipher.doFinal(input, offset, length - BLOCK_SIZE, output, 0);
+        }
+        System.arraycopy(lastBlock, 0, output, length - BLOCK_SIZE, paddingOffset);
+        return output;
+    }
+
+    private void initCbc(final int mode, final byte[] ssc) throws GeneralSecurityException {
+        ecbCipher.doFinal(ssc, 0, BLOCK_SIZE, iv, 0);
+        cbcCipher.init(mode, key, new IvParameterSpec(iv));
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.cardreader.provider.nfc.security;
+
+import org.spongycastle.crypto.engines.AESEngine;
+import org.spongycastle.crypto.macs.CMac;
+import org.spongycastle.crypto.params.KeyParameter;
+
+/**
+ * AES-CMAC engine of one secure messaging session.
+ *
+ * The AES key schedule and the CMAC subkeys are derived once from the session key K_mac. For each message the engine is reset and fed with the send
+ * sequence counter, the padded header and the padded data.
+ *
+ * Instances are not thread safe, a secure messaging session processes one APDU at a time.
+ */
+public class SessionMac {
+
+    private static final int BLOCK_SIZE = 16;
+    private static final int MAC_SIZE = 8;
+    private static final byte PADDING_START = (byte) 0x80;
+    private static final byte[] PADDING = new byte[BLOCK_SIZE];
+
+    static {
+        PADDING[0] = PADDING_START;
+    }
+
+    private final CMac cmac;
+    private final byte[] macBuffer = new byte[BLOCK_SIZE];
+
+    /**
+     * Constructor
+     *
+     * @param kMac
+     *            byte array with Session key for message authentication
+     */
+    public SessionMac(final byte[] kMac) {
+        cmac = new CMac(new AESEngine());
+        cmac.init(new KeyParameter(kMac));
+    }
+
+    /**
+     * Calculates the cryptographic checksum over send sequence counter, header and data
+     *
+     * @param ssc
+     *            byte array with send sequence counter
+     * @param header
+     *            byte array with header of the command or null for a response
+     * @param data
+     *            byte array with the data objects of the message
+     * @param offset
+     *            offset of the data objects in data
+     * @param length
+     *            length of the data objects, 0 if there are none
+     * @return 8 byte MAC
+     */
+    public byte[] calculateMac(final byte[] ssc, final byte[] header, final byte[] data, final int offset, final int length) {
+        cmac.reset();
+        cmac.update(ssc, 0, ssc.length);
+        if (header != null) {
+            updatePadded(header, 0, header.length);
+        }
+        if (length > 0) {
+            updatePadded(data, offset, length);
+        }
+        cmac.doFinal(macBuffer, 0);
+        byte[] mac = new byte[MAC_SIZE];
+        System.arraycopy(macBuffer, 0, mac, 0, MAC_SIZE);
+        return mac;
+    }
+
+    private void updatePadded(final byte[] data, final int offset, final int length) {
+        cmac.update(data, offset, length);
+        cmac.update(PADDING, 0, BLOCK_SIZE - length % BLOCK_SIZE);
+    }
+}
@@ -27,6 +27,7 @@ public class DataObject {
     private static final int DO_87_TAG = 0x07;
     private static final int DO_81_EXTRACTED_TAG = 0x81;
     private static final int DO_81_TAG = 0x01;
+    private static final int CONTEXT_SPECIFIC_TAG = 0x80;
     private int tag;
 
     private final byte[] dataBytes;
@@ -55,10 +56,29 @@ public class DataObject {
     }
 
     public DERTaggedObject getTaggedObject() {
-        if (tag == (byte) DO_81_EXTRACTED_TAG) {
-            return new DERTaggedObject(false, DO_81_TAG, new DEROctetString(dataBytes));
-        } else {
-            return new DERTaggedObject(false, DO_87_TAG, new DEROctetString(dataBytes));
-        }
+        return new DERTaggedObject(false, getTagNo(), new DEROctetString(dataBytes));
+    }
+
+    /**
+     * Returns the size of the encoded data object
+     *
+     * @return size of tag, length and value field
+     */
+    public int getEncodedLength() {
+        return TlvWriter.getEncodedLength(dataBytes.length);
+    }
+
+    /**
+     * Encodes the data object into the buffer of the writer
+     *
+     * @param writer
+     *            TlvWriter with enough remaining space
+     */
+    public void encodeTo(final TlvWriter writer) {
+        writer.write(CONTEXT_SPECIFIC_TAG | getTagNo(), dataBytes, 0, dataBytes.length);
+    }
+
+    private int getTagNo() {
+        return tag == (byte) DO_81_EXTRACTED_TAG ? DO_81_TAG : DO_87_TAG;
     }
 }
@@ -30,6 +30,7 @@ public class LengthObject {
     private static final int DO_97_TAG = 0x17;
     private static final int BYTE_MASK = 0xFF;
     private static final int BYTE_VALUE = 8;
+    private static final int CONTEXT_SPECIFIC_TAG = 0x80;
 
     private static final byte[] NULL = new byte[] { 0x00 };
 
@@ -57,4 +58,23 @@ public class LengthObject {
     public DERTaggedObject getTaggedObject() {
         return new DERTaggedObject(false, DO_97_TAG, new DEROctetString(leData));
     }
+
+    /**
+     * Returns the size of the encoded length object
+     *
+     * @return size of tag, length and value field
+     */
+    public int getEncodedLength() {
+        return TlvWriter.getEncodedLength(leData.length);
+    }
+
+    /**
+     * Encodes the length object into the buffer of the writer
+     *
+     * @param writer
+     *            TlvWriter with enough remaining space
+     */
+    public void encodeTo(final TlvWriter writer) {
+        writer.write(CONTEXT_SPECIFIC_TAG | DO_97_TAG, leData, 0, leData.length);
+    }
 }
@@ -24,7 +24,7 @@ import org.spongycastle.crypto.engines.AESEngine;
 import org.spongycastle.crypto.macs.CMac;
 import org.spongycastle.crypto.params.KeyParameter;
 
-import de.gematik.ti.utils.primitives.Bytes;
+import de.gematik.ti.cardreader.provider.nfc.security.SessionMac;
 
 /**
  * Mac object with TAG 8E (cryptographic checksum)
@@ -33,12 +33,14 @@ import de.gematik.ti.utils.primitives.Bytes;
 public class MacObject {
 
     private static final int DO_8E_TAG = 0x0E;
-    private static final int BLOCK_SIZE = 16;
+    private static final int CONTEXT_SPECIFIC_TAG = 0x80;
     private static final int MAC_SIZE = 8;
     private byte[] header = null;
-    private final byte[] kMac;
+    private final SessionMac sessionMac;
     private final byte[] ssc;
-    private final ByteArrayOutputStream dataOutput;
+    private final byte[] data;
+    private final int dataOffset;
+    private final int dataLength;
     private byte[] mac;
 
     /**
@@ -54,9 +56,48 @@ public class MacObject {
      *            byte array with send sequence counter
      */
     public MacObject(final byte[] header, final ByteArrayOutputStream commandDataOutput, final byte[] kMac, final byte[] ssc) {// NOCS(SAB): Zur Berechnung
+        this(header, commandDataOutput, new SessionMac(kMac), ssc);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param header
+     *            byte array with extracted header from plain CommandApdu
+     * @param commandDataOutput
+     *            ByteArrayOutputStream with extracted data and expected length from plain CommandApdu
+     * @param sessionMac
+     *            MAC engine keyed with the Session key for message authentication
+     * @param ssc
+     *            byte array with send sequence counter
+     */
+    public MacObject(final byte[] header, final ByteArrayOutputStream commandDataOutput, final SessionMac sessionMac, final byte[] ssc) {// NOCS(SAB): Zur Berechnung
+        this(header, commandDataOutput.toByteArray(), 0, commandDataOutput.size(), sessionMac, ssc);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param header
+     *            byte array with header of the secure messaging command, null for a response
+     * @param data
+     *            byte array containing the encoded data objects the MAC is calculated over
+     * @param dataOffset
+     *            offset of the data objects in data
+     * @param dataLength
+     *            length of the data objects
+     * @param sessionMac
+     *            MAC engine keyed with the Session key for message authentication
+     * @param ssc
+     *            byte array with send sequence counter
+     */
+    public MacObject(final byte[] header, final byte[] data, final int dataOffset, final int dataLength, final SessionMac sessionMac, // NOCS(SAB): Zur Berechnung
+            final byte[] ssc) {
         this.header = header;
-        this.dataOutput = commandDataOutput;
-        this.kMac = kMac;
+        this.data = data;
+        this.dataOffset = dataOffset;
+        this.dataLength = dataLength;
+        this.sessionMac = sessionMac;
         this.ssc = ssc;
 
         calculateMac();
@@ -73,38 +114,52 @@ public class MacObject {
      *            byte array with send sequence counter
      */
     public MacObject(final ByteArrayOutputStream responseDataOutput, final byte[] kMac, final byte[] ssc) {
-        this.dataOutput = responseDataOutput;
-        this.kMac = kMac;
-        this.ssc = ssc;
-        calculateMac();
+        this(responseDataOutput, new SessionMac(kMac), ssc);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param responseDataOutput
+     *            ByteArrayOutputStream with extracted data and response status from encrypted ResponseApdu
+     * @param sessionMac
+     *            MAC engine keyed with the Session key for message authentication
+     * @param ssc
+     *            byte array with send sequence counter
+     */
+    public MacObject(final ByteArrayOutputStream responseDataOutput, final SessionMac sessionMac, final byte[] ssc) {
+        this(null, responseDataOutput.toByteArray(), 0, responseDataOutput.size(), sessionMac, ssc);
     }
 
     public DERTaggedObject getTaggedObject() {
         return new DERTaggedObject(false, DO_8E_TAG, new DEROctetString(mac));
     }
 
+    /**
+     * Returns the size of the encoded mac object
+     *
+     * @return size of tag, length and value field
+     */
+    public int getEncodedLength() {
+        return TlvWriter.getEncodedLength(MAC_SIZE);
+    }
+
+    /**
+     * Encodes the mac object into the buffer of the writer
+     *
+     * @param writer
+     *            TlvWriter with enough remaining space
+     */
+    public void encodeTo(final TlvWriter writer) {
+        writer.write(CONTEXT_SPECIFIC_TAG | DO_8E_TAG, mac, 0, mac.length);
+    }
+
     public byte[] getMac() {
         return mac;
     }
 
     private void calculateMac() {
-        mac = new byte[BLOCK_SIZE];
-        CMac cbcMac = getCMac(ssc, kMac);
-
-        synchronized (cbcMac) {
-            if (header != null) {
-                byte[] paddedHeader = Bytes.padData(header, BLOCK_SIZE);
-                cbcMac.update(paddedHeader, 0, paddedHeader.length);
-            }
-
-            if (dataOutput.size() > 0) {
-                byte[] paddedData = Bytes.padData(dataOutput.toByteArray(), BLOCK_SIZE);
-                cbcMac.update(paddedData, 0, paddedData.length);
-            }
-
-            cbcMac.doFinal(mac, 0);
-            mac = Bytes.copyByteArray(mac, 0, MAC_SIZE);
-        }
+        mac = sessionMac.calculateMac(ssc, header, data, dataOffset, dataLength);
     }
 
     public static CMac getCMac(final byte[] secureMessagingSSC, final byte[] kMac) {
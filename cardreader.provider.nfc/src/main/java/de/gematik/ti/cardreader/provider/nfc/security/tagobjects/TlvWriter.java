@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.cardreader.provider.nfc.security.tagobjects;
+
+/**
+ * Writes secure messaging data objects (one byte tag, DER length, value) into one pre-sized buffer
+ *
+ */
+public class TlvWriter {
+
+    private static final int SHORT_LENGTH_LIMIT = 0x80;
+    private static final int ONE_BYTE_LENGTH_LIMIT = 0x100;
+    private static final int TWO_BYTE_LENGTH_LIMIT = 0x10000;
+    private static final int ONE_BYTE_LENGTH_TAG = 0x81;
+    private static final int TWO_BYTE_LENGTH_TAG = 0x82;
+    private static final int BYTE_MASK = 0xFF;
+    private static final int BYTE_VALUE = 8;
+    private static final byte PADDING_START = (byte) 0x80;
+
+    private final byte[] buffer;
+    private int position;
+
+    /**
+     * Constructor
+     *
+     * @param size
+     *            exact size of all data objects to be written
+     */
+    public TlvWriter(final int size) {
+        buffer = new byte[size];
+    }
+
+    /**
+     * Returns the size of a data object with a one byte tag
+     *
+     * @param valueLength
+     *            length of the value field
+     * @return size of tag, length and value field
+     */
+    public static int getEncodedLength(final int valueLength) {
+        return 1 + getLengthFieldSize(valueLength) + valueLength;
+    }
+
+    /**
+     * Returns the length of data padded according to ISO/IEC 7816-4, the padding always adds at least one byte
+     *
+     * @param length
+     *            length of the data
+     * @param blockSize
+     *            block size to pad to
+     * @return padded length
+     */
+    public static int getPaddedLength(final int length, final int blockSize) {
+        return (length / blockSize + 1) * blockSize;
+    }
+
+    private static int getLengthFieldSize(final int length) {
+        if (length < SHORT_LENGTH_LIMIT) {
+            return 1;
+        } else if (length < ONE_BYTE_LENGTH_LIMIT) {
+            return 2;
+        } else if (length < TWO_BYTE_LENGTH_LIMIT) {
+            return 3;
+        }
+        throw new IllegalArgumentException("Length " + length + " exceeds secure messaging data object limit");
+    }
+
+    /**
+     * Writes a complete data object
+     *
+     * @param tag
+     *            one byte tag
+     * @param value
+     *            source of the value field
+     * @param offset
+     *            offset of the value in source
+     * @param length
+     *            length of the value
+     */
+    public void write(final int tag, final byte[] value, final int offset, final int length) {
+        writeTag(tag);
+        writeLength(length);
+        write(value, offset, length);
+    }
+
+    /**
+     * Writes a one byte tag
+     *
+     * @param tag
+     *            tag to write
+     */
+    public void writeTag(final int tag) {
+        writeByte(tag);
+    }
+
+    /**
+     * Writes a DER encoded length field
+     *
+     * @param length
+     *            length to write
+     */
+    public void writeLength(final int length) {
+        int lengthFieldSize = getLengthFieldSize(length);
+        if (lengthFieldSize == 2) {
+            writeByte(ONE_BYTE_LENGTH_TAG);
+        } else if (lengthFieldSize == 3) {
+            writeByte(TWO_BYTE_LENGTH_TAG);
+            writeByte(length >> BYTE_VALUE);
+        }
+        writeByte(length);
+    }
+
+    /**
+     * Writes a single byte
+     *
+     * @param value
+     *            byte to write, only the lowest 8 bits are used
+     */
+    public void writeByte(final int value) {
+        buffer[position++] = (byte) (value & BYTE_MASK);
+    }
+
+    /**
+     * Writes raw bytes
+     *
+     * @param source
+     *            source array
+     * @param offset
+     *            offset in source
+     * @param length
+     *            number of bytes
+     */
+    public void write(final byte[] source, final int offset, final int length) {
+        System.arraycopy(source, offset, buffer, position, length);
+        position += length;
+    }
+
+    /**
+     * Writes data followed by its ISO/IEC 7816-4 padding. The buffer is zero-initialised, so only the padding start byte is written.
+     *
+     * @param source
+     *            data to write
+     * @param blockSize
+     *            block size to pad to
+     * @return offset of the written data in the buffer
+     */
+    public int writePadded(final byte[] source, final int blockSize) {
+        int start = position;
+        write(source, 0, source.length);
+        buffer[position] = PADDING_START;
+        position = start + getPaddedLength(source.length, blockSize);
+        return start;
+    }
+
+    /**
+     * Returns the current write position, which is the number of bytes written so far
+     *
+     * @return write position
+     */
+    public int getPosition() {
+        return position;
+    }
+
+    /**
+     * Returns the underlying buffer without copying
+     *
+     * @return buffer
+     */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.cardreader.provider.nfc.cache;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.gematik.ti.utils.codec.Hex;
+
+/**
+ * Test {@link EfCacheFile}
+ *
+ */
+public class EfCacheFileTest {
+
+    private static final SecretKey DEVICE_KEY = new SecretKeySpec(Hex.decode("000102030405060708090A0B0C0D0E0F"), "AES");
+    private static final SecretKey OTHER_DEVICE_KEY = new SecretKeySpec(Hex.decode("0F0E0D0C0B0A09080706050403020100"), "AES");
+    private static final String CARD_ID = "01020304/8031";
+    private static final String OTHER_CARD_ID = "05060708/8031";
+    private static final byte[] CERTIFICATE = Hex.decode("7F2181D87F4E8191");
+    private static final byte[] VERSION = Hex.decode("EF2BC003020000C103040302");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void filesShouldSurviveReopening() throws Exception {
+        File path = folder.newFile();
+        try (EfCacheFile cacheFile = new EfCacheFile(path, 4096, DEVICE_KEY)) {
+            cacheFile.put(CARD_ID, 0xC500, CERTIFICATE);
+            cacheFile.put(CARD_ID, EfCacheFile.EF_VERSION2, Hex.decode("00"));
+            cacheFile.put(CARD_ID, EfCacheFile.EF_VERSION2, VERSION);
+            cacheFile.put(OTHER_CARD_ID, 0xC500, VERSION);
+            cacheFile.remove(OTHER_CARD_ID, 0xC500);
+        }
+
+        try (EfCacheFile cacheFile = new EfCacheFile(path, 4096, DEVICE_KEY)) {
+            Assert.assertEquals(2, cacheFile.getFileCount());
+            Assert.assertArrayEquals(CERTIFICATE, cacheFile.get(CARD_ID, 0xC500));
+            Assert.assertArrayEquals(VERSION, cacheFile.get(CARD_ID, EfCacheFile.EF_VERSION2));
+            Assert.assertNull(cacheFile.get(OTHER_CARD_ID, 0xC500));
+        }
+    }
+
+    @Test
+    public void contentShouldBeEncrypted() throws Exception {
+        File path = folder.newFile();
+        try (EfCacheFile cacheFile = new EfCacheFile(path, 4096, DEVICE_KEY)) {
+            cacheFile.put(CARD_ID, 0xC500, CERTIFICATE);
+        }
+        String fileContent = Hex.encodeHexString(Files.readAllBytes(path.toPath())).toUpperCase();
+        Assert.assertFalse(fileContent.contains(Hex.encodeHexString(CERTIFICATE).toUpperCase()));
+
+        // without the device key the file is started over
+        try (EfCacheFile cacheFile = new EfCacheFile(path, 4096, OTHER_DEVICE_KEY)) {
+            Assert.assertEquals(0, cacheFile.getFileCount());
+            Assert.assertNull(cacheFile.get(CARD_ID, 0xC500));
+        }
+    }
+
+    @Test
+    public void leastRecentlyUsedFileShouldBeDroppedWhenFull() throws Exception {
+        try (EfCacheFile cacheFile = new EfCacheFile(folder.newFile(), 700, DEVICE_KEY)) {
+            byte[] content = new byte[100];
+            for (int i = 0; i < 4; i++) {
+                cacheFile.put(CARD_ID, i, content);
+            }
+            cacheFile.get(CARD_ID, 0);
+            cacheFile.put(CARD_ID, 4, content);
+
+            Assert.assertNotNull(cacheFile.get(CARD_ID, 0));
+            Assert.assertNull(cacheFile.get(CARD_ID, 1));
+            Assert.assertNotNull(cacheFile.get(CARD_ID, 4));
+        }
+    }
+
+    @Test
+    public void removedCardShouldHaveNoFiles() throws Exception {
+        try (EfCacheFile cacheFile = new EfCacheFile(folder.newFile(), 4096, DEVICE_KEY)) {
+            cacheFile.put(CARD_ID, 0xC500, CERTIFICATE);
+            cacheFile.put(CARD_ID, EfCacheFile.EF_VERSION2, VERSION);
+            cacheFile.put(OTHER_CARD_ID, 0xC500, CERTIFICATE);
+
+            cacheFile.removeCard(CARD_ID);
+            Assert.assertNull(cacheFile.get(CARD_ID, 0xC500));
+            Assert.assertNull(cacheFile.get(CARD_ID, EfCacheFile.EF_VERSION2));
+            Assert.assertArrayEquals(CERTIFICATE, cacheFile.get(OTHER_CARD_ID, 0xC500));
+        }
+    }
+}
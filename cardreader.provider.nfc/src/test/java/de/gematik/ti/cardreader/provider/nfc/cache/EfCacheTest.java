@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.cardreader.provider.nfc.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.gematik.ti.utils.codec.Hex;
+
+/**
+ * Test {@link EfCache}
+ *
+ */
+public class EfCacheTest {
+
+    private static final String CARD_ID = "01020304/8031";
+    private static final String OTHER_CARD_ID = "05060708/8031";
+    private static final String EF_ATR = "sfi29";
+    private static final String EF_DIR = "sfi30";
+
+    @Test
+    public void cachedResponseShouldBeReturnedForSameCard() {
+        EfCache cache = new EfCache(1024);
+        cache.changeCard(CARD_ID);
+        byte[] response = Hex.decode("01029000");
+        cache.put(CARD_ID, EF_ATR, 0, 2, response);
+        response[0] = 0;
+
+        Assert.assertArrayEquals(Hex.decode("01029000"), cache.get(CARD_ID, EF_ATR, 0, 2));
+        Assert.assertNull(cache.get(CARD_ID, EF_ATR, 0, 4));
+        Assert.assertNull(cache.get(OTHER_CARD_ID, EF_ATR, 0, 2));
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void leastRecentlyUsedResponseShouldBeEvicted() {
+        EfCache cache = new EfCache(10);
+        cache.changeCard(CARD_ID);
+        cache.put(CARD_ID, EF_ATR, 0, 2, Hex.decode("01029000"));
+        cache.put(CARD_ID, EF_DIR, 0, 2, Hex.decode("03049000"));
+        cache.get(CARD_ID, EF_ATR, 0, 2);
+        cache.put(CARD_ID, EF_DIR, 2, 2, Hex.decode("05069000"));
+
+        Assert.assertNotNull(cache.get(CARD_ID, EF_ATR, 0, 2));
+        Assert.assertNull(cache.get(CARD_ID, EF_DIR, 0, 2));
+        Assert.assertNotNull(cache.get(CARD_ID, EF_DIR, 2, 2));
+        Assert.assertEquals(8, cache.getSize());
+    }
+
+    @Test
+    public void updatedFileShouldBeEvicted() {
+        EfCache cache = new EfCache(1024);
+        cache.changeCard(CARD_ID);
+        cache.put(CARD_ID, EF_ATR, 0, 2, Hex.decode("01029000"));
+        cache.put(CARD_ID, EF_ATR, 2, 2, Hex.decode("03049000"));
+        cache.put(CARD_ID, EF_DIR, 0, 2, Hex.decode("05069000"));
+
+        cache.evictFile(EF_ATR);
+        Assert.assertNull(cache.get(CARD_ID, EF_ATR, 0, 2));
+        Assert.assertNull(cache.get(CARD_ID, EF_ATR, 2, 2));
+        Assert.assertNotNull(cache.get(CARD_ID, EF_DIR, 0, 2));
+
+        cache.flush();
+        Assert.assertNull(cache.get(CARD_ID, EF_DIR, 0, 2));
+        Assert.assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void otherCardShouldEvictAllFiles() {
+        EfCache cache = new EfCache(1024);
+        cache.changeCard(CARD_ID);
+        cache.put(CARD_ID, EF_ATR, 0, 2, Hex.decode("01029000"));
+
+        cache.changeCard(CARD_ID);
+        Assert.assertNotNull(cache.get(CARD_ID, EF_ATR, 0, 2));
+        cache.changeCard(OTHER_CARD_ID);
+        cache.changeCard(CARD_ID);
+        Assert.assertNull(cache.get(CARD_ID, EF_ATR, 0, 2));
+    }
+}
@@ -25,6 +25,7 @@ import org.slf4j.LoggerFactory;
 
 import de.gematik.ti.cardreader.provider.api.ICardReader;
 import de.gematik.ti.cardreader.provider.api.card.CardException;
+import de.gematik.ti.cardreader.provider.nfc.entities.NfcCard;
 import de.gematik.ti.cardreader.provider.nfc.entities.NfcCardReader;
 
 /**
@@ -61,4 +62,21 @@ public class NfcCardCheckerTest {
         nfcCardChecker.shutdown();
     }
 
+    @Test
+    public void absentCardShouldBeRemoved() {
+        NfcCardReader reader = Mockito.mock(NfcCardReader.class);
+        NfcCardChecker checker = new NfcCardChecker(reader);
+        Mockito.verify(reader).addCardPresenceListener(checker);
+
+        NfcCard card = Mockito.mock(NfcCard.class);
+        Mockito.when(reader.removeCard(card)).thenReturn(true);
+        checker.cardPresenceChanged(true, card);
+        Mockito.verify(reader, Mockito.never()).removeCard(card);
+        checker.cardPresenceChanged(false, card);
+        Mockito.verify(reader).removeCard(card);
+
+        checker.shutdown();
+        Mockito.verify(reader).removeCardPresenceListener(checker);
+    }
+
 }
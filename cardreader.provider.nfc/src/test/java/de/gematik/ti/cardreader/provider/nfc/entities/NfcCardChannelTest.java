@@ -69,7 +69,7 @@ public class NfcCardChannelTest {
     @Before
     public void setupBefore() throws CardException, IOException {
         nfcBasicChannel = new NfcCardChannel(nfcCard);
-        Whitebox.setInternalState(nfcCard, "isoDep", isoDep);
+        Whitebox.setInternalState(nfcCard, "transceiver", new IsoDepTransceiver(isoDep));
         Mockito.when(isoDep.isConnected()).thenReturn(true);
         Mockito.when(isoDep.getMaxTransceiveLength()).thenReturn(0);
         Mockito.when(isoDep.getTimeout()).thenReturn(0);
@@ -117,6 +117,22 @@ public class NfcCardChannelTest {
         Assert.assertEquals(261, nfcLogicalChannel.getMaxResponseLength());
     }
 
+    @Test
+    public void maxLengthsShouldFollowIsoDep() {
+        Mockito.when(isoDep.getMaxTransceiveLength()).thenReturn(65279);
+        Mockito.when(isoDep.isExtendedLengthApduSupported()).thenReturn(true);
+        Assert.assertEquals(65279, nfcBasicChannel.getMaxMessageLength());
+        Assert.assertEquals(65279, nfcBasicChannel.getMaxResponseLength());
+
+        Mockito.when(isoDep.isExtendedLengthApduSupported()).thenReturn(false);
+        Assert.assertEquals(261, nfcBasicChannel.getMaxMessageLength());
+        Assert.assertEquals(258, nfcBasicChannel.getMaxResponseLength());
+
+        nfcBasicChannel.setTrustedChannelEstablished(true);
+        Assert.assertEquals(232, nfcBasicChannel.getMaxMessageLength());
+        Assert.assertEquals(225, nfcBasicChannel.getMaxResponseLength());
+    }
+
     @Test
     public void testTransmitCommand() throws CardException, IOException {
         // basicChannel without trusted channel
@@ -125,7 +141,7 @@ public class NfcCardChannelTest {
         Assert.assertEquals(expectedResponseApdu, responseApdu);
 
         // logical channel without trusted channel
-        final CommandApdu logicalChannelCommand = new CommandApdu(0x01, 0x70, 0x00, 0x00);
+        final CommandApdu logicalChannelCommand = new CommandApdu(0x01, 0x70, 0x00, 0x00, 1);
         Mockito.when(isoDep.transceive(logicalChannelCommand.getBytes())).thenReturn(expectedResponseApdu.getBytes());
 
         responseApdu = nfcLogicalChannel.transmit(MANAGE_CHANNEL_COMMAND_OPEN);
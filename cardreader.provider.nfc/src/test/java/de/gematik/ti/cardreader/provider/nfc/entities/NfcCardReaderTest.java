@@ -16,6 +16,12 @@
 
 package de.gematik.ti.cardreader.provider.nfc.entities;
 
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import org.hamcrest.core.IsNull;
 import org.junit.AfterClass;
 import org.junit.Assert;
@@ -32,9 +38,13 @@ import android.nfc.tech.IsoDep;
 import de.gematik.ti.cardreader.provider.api.card.CardException;
 import de.gematik.ti.cardreader.provider.api.card.ICard;
 import de.gematik.ti.cardreader.provider.api.command.CommandApdu;
+import de.gematik.ti.cardreader.provider.api.command.IResponseApdu;
 import de.gematik.ti.cardreader.provider.api.command.ResponseApdu;
 import de.gematik.ti.cardreader.provider.nfc.Whitebox;
 import de.gematik.ti.cardreader.provider.nfc.control.MockContext;
+import de.gematik.ti.cardreader.provider.nfc.control.NfcCardChecker;
+import de.gematik.ti.openhealthcard.events.response.entities.PaceKey;
+import de.gematik.ti.utils.codec.Hex;
 
 /**
  * Test {@link NfcCardReader}
@@ -43,6 +53,7 @@ import de.gematik.ti.cardreader.provider.nfc.control.MockContext;
 public class NfcCardReaderTest {
 
     private static final CommandApdu MANAGE_CHANNEL_COMMAND_CLOSE = new CommandApdu(0x00, 0x70, 0x80, 0x00);
+    private static final PaceKey PACE_KEY = new PaceKey(Hex.decode("68406B4162100563D9C901A6154D2901"), Hex.decode("73FF268784F72AF833FDC9464049AFC9"));
 
     private static NfcCardReader nfcCardReader;
     private static Context context;
@@ -90,15 +101,6 @@ public class NfcCardReaderTest {
         Assert.assertThat(Whitebox.getInternalState(nfcCardReader, "nfcCard"), IsNull.notNullValue());
     }
 
-    @Test
-    public void testOnTagRemovedShouldRemoveCard() {
-        Whitebox.setInternalState(nfcCardReader, "nfcCard", card);
-        Assert.assertThat(Whitebox.getInternalState(nfcCardReader, "nfcCard"), IsNull.notNullValue());
-
-        nfcCardReader.onTagRemoved();
-        Assert.assertThat(Whitebox.getInternalState(nfcCardReader, "nfcCard"), IsNull.nullValue());
-    }
-
     @Test
     public void testUpdateActivityWithEnabledAdapter() {
         Mockito.when(nfcAdapter.isEnabled()).thenReturn(true);
@@ -178,4 +180,216 @@ public class NfcCardReaderTest {
         Assert.assertThat(Whitebox.getInternalState(nfcCardReader, "nfcCard"), IsNull.nullValue());
     }
 
+    @Test
+    public void waitForCardPresentShouldReturnWhenTagIsDiscovered() throws InterruptedException {
+        Whitebox.setInternalState(nfcCardReader, "nfcCard", null);
+        NfcCard presentCard = Mockito.mock(NfcCard.class);
+        Mockito.when(presentCard.isCardPresent()).thenReturn(true);
+        Mockito.when(presentCard.onTagDiscovered(tag)).thenReturn(true);
+        Thread discovery = new Thread(() -> {
+            Whitebox.setInternalState(nfcCardReader, "nfcCard", presentCard);
+            nfcCardReader.onTagDiscovered(tag);
+        });
+
+        long start = System.nanoTime();
+        discovery.start();
+        Assert.assertTrue(nfcCardReader.waitForCardPresent(5000));
+        Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+        discovery.join();
+        Whitebox.setInternalState(nfcCardReader, "nfcCard", null);
+    }
+
+    @Test
+    public void lostCardShouldBeReportedAfterDebounce() throws InterruptedException {
+        NfcCardReader reader = new NfcCardReader(nfcAdapter, context);
+        CountDownLatch present = new CountDownLatch(1);
+        CountDownLatch absent = new CountDownLatch(1);
+        reader.addCardPresenceListener((isPresent, presentCard) -> (isPresent ? present : absent).countDown());
+        AtomicBoolean cardPresent = new AtomicBoolean(true);
+        NfcCard presentCard = Mockito.mock(NfcCard.class);
+        Mockito.when(presentCard.isCardPresent()).thenAnswer(invocation -> cardPresent.get());
+        Mockito.when(presentCard.onTagDiscovered(tag)).thenReturn(true);
+        Whitebox.setInternalState(reader, "nfcCard", presentCard);
+
+        reader.onTagDiscovered(tag);
+        Assert.assertTrue(present.await(1, TimeUnit.SECONDS));
+
+        cardPresent.set(false);
+        Assert.assertTrue(absent.await(2, TimeUnit.SECONDS));
+        Assert.assertTrue(reader.waitForCardAbsent(0));
+    }
+
+    @Test
+    public void sameTagShouldKeepConnectedCard() throws CardException {
+        NfcCardReader reader = new NfcCardReader(nfcAdapter, context);
+        Tag sameTag = Mockito.mock(Tag.class);
+        Mockito.when(sameTag.getId()).thenReturn(new byte[] { 1, 2, 3, 4 });
+        Mockito.when(sameTag.getTechList()).thenReturn(new String[] { IsoDep.class.getName() });
+        NfcCard connectedCard = Mockito.mock(NfcCard.class);
+        Mockito.when(connectedCard.onTagDiscovered(sameTag)).thenReturn(true);
+        Whitebox.setInternalState(reader, "nfcCard", connectedCard);
+        Whitebox.setInternalState(reader, "currentTagId", new byte[] { 1, 2, 3, 4 });
+
+        reader.onTagDiscovered(sameTag);
+        Assert.assertSame(connectedCard, Whitebox.getInternalState(reader, "nfcCard"));
+        Mockito.verify(connectedCard).onTagDiscovered(sameTag);
+        Mockito.verify(connectedCard, Mockito.never()).disconnect(Mockito.anyBoolean());
+        Mockito.verify(connectedCard, Mockito.never()).release();
+    }
+
+    @Test
+    public void sameTagShouldBeConnectedThroughNewTagObject() throws Exception {
+        NfcCardReader reader = new NfcCardReader(nfcAdapter, context);
+        SimulatedCardTransceiver transceiver = new SimulatedCardTransceiver(PACE_KEY, 256);
+        NfcCard connectedCard = new NfcCard(transceiver, () -> {
+        }, new byte[] { 1, 2, 3, 4 }, null);
+        connectedCard.bringUp();
+        connectedCard.onPaceKey(PACE_KEY);
+        NfcCardChannel channel = (NfcCardChannel) connectedCard.openBasicChannel();
+        Assert.assertEquals(0x9000, channel.transmit(new CommandApdu(0x00, 0xB0, 0x00, 0x00, 16)).getSW());
+        Whitebox.setInternalState(reader, "nfcCard", connectedCard);
+        Whitebox.setInternalState(reader, "currentTagId", new byte[] { 1, 2, 3, 4 });
+
+        // Android passes a new Tag object for every discovery
+        Tag newTag = Mockito.mock(Tag.class);
+        Mockito.when(newTag.getId()).thenReturn(new byte[] { 1, 2, 3, 4 });
+        Mockito.when(newTag.getTechList()).thenReturn(new String[] { IsoDep.class.getName() });
+        reader.onTagDiscovered(newTag);
+
+        Assert.assertSame(connectedCard, Whitebox.getInternalState(reader, "nfcCard"));
+        IResponseApdu response = channel.transmit(new CommandApdu(0x00, 0xB0, 0x00, 0x10, 16));
+        Assert.assertSame(newTag, transceiver.getTag());
+        // the send sequence counter of the session continues
+        Assert.assertArrayEquals(Arrays.copyOfRange(transceiver.getFile(), 0x10, 0x20), response.getData());
+        Assert.assertSame(PACE_KEY, connectedCard.getPaceKey());
+        Assert.assertEquals(NfcCard.State.READY, connectedCard.getState());
+    }
+
+    @Test
+    public void readBinaryShouldBeRetriedAfterTagIsDiscoveredAgain() throws Exception {
+        NfcCardReader reader = new NfcCardReader(nfcAdapter, context);
+        NfcCardChecker checker = new NfcCardChecker(reader);
+        SimulatedCardTransceiver transceiver = new SimulatedCardTransceiver(PACE_KEY, 256);
+        NfcCard lostCard = reader.createCard(transceiver, new byte[] { 1, 2, 3, 4 });
+        lostCard.setStateListener((card, state, phaseNanos) -> {
+            if (state == NfcCard.State.PACE) {
+                // the application establishes a new PACE key with the card
+                new Thread(() -> card.onPaceKey(PACE_KEY)).start();
+            }
+        });
+        Whitebox.setInternalState(reader, "nfcCard", lostCard);
+        Whitebox.setInternalState(reader, "currentTagId", new byte[] { 1, 2, 3, 4 });
+        lostCard.bringUp();
+        reader.onTagDiscovered(createTag(new byte[] { 1, 2, 3, 4 }));
+        NfcCardChannel channel = (NfcCardChannel) lostCard.openBasicChannel();
+        Assert.assertEquals(0x9000, channel.transmit(new CommandApdu(0x00, 0xA4, 0x04, 0x0C, Hex.decode("D27600000102"))).getSW());
+        Assert.assertTrue(reader.waitForCardPresent(1000));
+
+        transceiver.setTagLostCall(1);
+        CompletableFuture<IResponseApdu> response = channel.transmitAsync(new CommandApdu(0x00, 0xB0, 0x00, 0x10, 16));
+        // longer than the debounce time and the presence check interval
+        Thread.sleep(600);
+        Assert.assertFalse(response.isDone());
+        Assert.assertSame(lostCard, Whitebox.getInternalState(reader, "nfcCard"));
+        Assert.assertTrue(reader.isCardPresent());
+
+        Tag newTag = createTag(new byte[] { 1, 2, 3, 4 });
+        reader.onTagDiscovered(newTag);
+        Assert.assertEquals(0x9000, response.get(5, TimeUnit.SECONDS).getSW());
+        Assert.assertArrayEquals(Arrays.copyOfRange(transceiver.getFile(), 0x10, 0x20), response.get().getData());
+        Assert.assertSame(newTag, transceiver.getTag());
+        Assert.assertSame(lostCard, Whitebox.getInternalState(reader, "nfcCard"));
+        Assert.assertEquals(NfcCard.State.READY, lostCard.getState());
+        checker.shutdown();
+    }
+
+    @Test
+    public void cardShouldBeRemovedIfTagIsNotDiscoveredAgain() throws Exception {
+        NfcCardReader reader = new NfcCardReader(nfcAdapter, context);
+        NfcCardChecker checker = new NfcCardChecker(reader);
+        SimulatedCardTransceiver transceiver = new SimulatedCardTransceiver(PACE_KEY, 256);
+        NfcCard lostCard = reader.createCard(transceiver, new byte[] { 1, 2, 3, 4 });
+        lostCard.setRetryPolicy(new RetryPolicy(1, 300, TimeUnit.MILLISECONDS, 0xB0));
+        CountDownLatch absent = new CountDownLatch(1);
+        // called after the checker
+        reader.addCardPresenceListener((isPresent, card) -> {
+            if (!isPresent) {
+                absent.countDown();
+            }
+        });
+        Whitebox.setInternalState(reader, "nfcCard", lostCard);
+        Whitebox.setInternalState(reader, "currentTagId", new byte[] { 1, 2, 3, 4 });
+        lostCard.bringUp();
+        reader.onTagDiscovered(createTag(new byte[] { 1, 2, 3, 4 }));
+        lostCard.onPaceKey(PACE_KEY);
+        Assert.assertTrue(reader.waitForCardPresent(1000));
+
+        transceiver.setTagLostCall(1);
+        try {
+            lostCard.openBasicChannel().transmit(new CommandApdu(0x00, 0xB0, 0x00, 0x00, 16));
+            Assert.fail("Exception erwartet, aber nicht bekommen.");
+        } catch (CardException e) {
+            // expected
+        }
+        Assert.assertTrue(absent.await(2, TimeUnit.SECONDS));
+        Assert.assertNull(Whitebox.getInternalState(reader, "nfcCard"));
+        Assert.assertEquals(NfcCard.State.RELEASED, lostCard.getState());
+        checker.shutdown();
+    }
+
+    @Test
+    public void absenceOfReplacedCardShouldNotRemoveNewCard() {
+        NfcCardReader reader = new NfcCardReader(nfcAdapter, context);
+        NfcCard lostCard = Mockito.mock(NfcCard.class);
+        NfcCard newCard = Mockito.mock(NfcCard.class);
+        // the new card was discovered after the absence of the lost one was confirmed
+        Whitebox.setInternalState(reader, "nfcCard", newCard);
+
+        Assert.assertFalse(reader.removeCard(lostCard));
+        Assert.assertSame(newCard, Whitebox.getInternalState(reader, "nfcCard"));
+        Mockito.verify(newCard, Mockito.never()).release();
+        Assert.assertTrue(reader.removeCard(newCard));
+        Assert.assertNull(Whitebox.getInternalState(reader, "nfcCard"));
+        Mockito.verify(newCard).release();
+    }
+
+    private static Tag createTag(final byte[] id) {
+        Tag newTag = Mockito.mock(Tag.class);
+        Mockito.when(newTag.getId()).thenReturn(id);
+        Mockito.when(newTag.getTechList()).thenReturn(new String[] { IsoDep.class.getName() });
+        return newTag;
+    }
+
+    @Test
+    public void otherTagShouldReplaceCard() {
+        NfcCardReader reader = new NfcCardReader(nfcAdapter, context);
+        Tag otherTag = Mockito.mock(Tag.class);
+        Mockito.when(otherTag.getId()).thenReturn(new byte[] { 5, 6, 7, 8 });
+        Mockito.when(otherTag.getTechList()).thenReturn(new String[] { IsoDep.class.getName() });
+        NfcCard connectedCard = Mockito.mock(NfcCard.class);
+        Mockito.when(connectedCard.isCardPresent()).thenReturn(true);
+        Whitebox.setInternalState(reader, "nfcCard", connectedCard);
+        Whitebox.setInternalState(reader, "currentTagId", new byte[] { 1, 2, 3, 4 });
+
+        reader.onTagDiscovered(otherTag);
+        Assert.assertNotSame(connectedCard, Whitebox.getInternalState(reader, "nfcCard"));
+        Assert.assertArrayEquals(new byte[] { 5, 6, 7, 8 }, (byte[]) Whitebox.getInternalState(reader, "currentTagId"));
+        Mockito.verify(connectedCard).release();
+    }
+
+    @Test
+    public void sameTagOfFailedCardShouldReplaceCard() {
+        NfcCardReader reader = new NfcCardReader(nfcAdapter, context);
+        Tag sameTag = Mockito.mock(Tag.class);
+        Mockito.when(sameTag.getId()).thenReturn(new byte[] { 1, 2, 3, 4 });
+        Mockito.when(sameTag.getTechList()).thenReturn(new String[] { IsoDep.class.getName() });
+        NfcCard lostCard = Mockito.mock(NfcCard.class);
+        Mockito.when(lostCard.onTagDiscovered(sameTag)).thenReturn(false);
+        Whitebox.setInternalState(reader, "nfcCard", lostCard);
+        Whitebox.setInternalState(reader, "currentTagId", new byte[] { 1, 2, 3, 4 });
+
+        reader.onTagDiscovered(sameTag);
+        Assert.assertNotSame(lostCard, Whitebox.getInternalState(reader, "nfcCard"));
+        Mockito.verify(lostCard).release();
+    }
 }
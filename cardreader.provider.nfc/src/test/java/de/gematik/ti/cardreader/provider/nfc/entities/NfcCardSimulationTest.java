@@ -0,0 +1,884 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.cardreader.provider.nfc.entities;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.gematik.ti.cardreader.provider.api.card.CardException;
+import de.gematik.ti.cardreader.provider.api.command.CommandApdu;
+import de.gematik.ti.cardreader.provider.api.command.IResponseApdu;
+import de.gematik.ti.cardreader.provider.nfc.Whitebox;
+import de.gematik.ti.cardreader.provider.nfc.cache.EfCache;
+import de.gematik.ti.cardreader.provider.nfc.cache.EfCacheFile;
+import de.gematik.ti.cardreader.provider.nfc.metrics.AdaptiveTimeout;
+import de.gematik.ti.cardreader.provider.nfc.metrics.ApduMetrics;
+import de.gematik.ti.cardreader.provider.nfc.metrics.ApduTiming;
+import de.gematik.ti.cardreader.provider.nfc.metrics.ApduTraceBuffer;
+import de.gematik.ti.cardreader.provider.nfc.metrics.ApduTraceFile;
+import de.gematik.ti.cardreader.provider.nfc.metrics.ApduTraceRecord;
+import de.gematik.ti.cardreader.provider.nfc.security.PaceKeyCache;
+import de.gematik.ti.openhealthcard.events.response.entities.PaceKey;
+import de.gematik.ti.utils.codec.Hex;
+
+/**
+ * Test {@link NfcCardChannel#transmit} with secure messaging against {@link SimulatedCardTransceiver}
+ *
+ */
+public class NfcCardSimulationTest {
+
+    private static final PaceKey PACE_KEY = new PaceKey(Hex.decode("68406B4162100563D9C901A6154D2901"), Hex.decode("73FF268784F72AF833FDC9464049AFC9"));
+    private static final int FILE_SIZE = 70000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SimulatedCardTransceiver transceiver;
+    private NfcCard nfcCard;
+    private NfcCardChannel channel;
+
+    @Before
+    public void setupBefore() throws Exception {
+        createChannel(FILE_SIZE);
+    }
+
+    private void createChannel(final int fileSize) throws Exception {
+        transceiver = new SimulatedCardTransceiver(PACE_KEY, fileSize);
+        nfcCard = new NfcCard(transceiver, () -> {
+        });
+        Whitebox.setInternalState(nfcCard, "paceKey", PACE_KEY);
+        channel = (NfcCardChannel) nfcCard.openBasicChannel();
+        channel.setTrustedChannelEstablished(true);
+    }
+
+    @Test
+    public void readBinaryShouldReturnPlainFileContent() throws CardException {
+        IResponseApdu response = channel.transmit(new CommandApdu(0x00, 0xB0, 0x00, 0x10, 200));
+        Assert.assertEquals(0x9000, response.getSW());
+        Assert.assertArrayEquals(Arrays.copyOfRange(transceiver.getFile(), 0x10, 0x10 + 200), response.getData());
+    }
+
+    @Test
+    public void extendedReadBinaryShouldReturnPlainFileContent() throws CardException {
+        IResponseApdu response = channel.transmit(new CommandApdu(0x00, 0xB0, 0x00, 0x00, 65000));
+        Assert.assertEquals(0x9000, response.getSW());
+        Assert.assertArrayEquals(Arrays.copyOfRange(transceiver.getFile(), 0, 65000), response.getData());
+    }
+
+    @Test
+    public void updateBinaryShouldBeReadBack() throws CardException {
+        byte[] data = Hex.decode("0102030405060708090A0B0C0D0E0F10111213");
+        Assert.assertEquals(0x9000, channel.transmit(new CommandApdu(0x00, 0xD6, 0x00, 0x20, data)).getSW());
+
+        IResponseApdu response = channel.transmit(new CommandApdu(0x00, 0xB0, 0x00, 0x20, data.length));
+        Assert.assertArrayEquals(data, response.getData());
+    }
+
+    @Test
+    public void commandWithoutResponseDataShouldReturnStatus() throws CardException {
+        Assert.assertEquals(0x9000, channel.transmit(new CommandApdu(0x00, 0xA4, 0x04, 0x0C)).getSW());
+        Assert.assertEquals(0x6D00, channel.transmit(new CommandApdu(0x00, 0xCA, 0x00, 0x00)).getSW());
+    }
+
+    @Test
+    public void readBinaryShouldUseOneCommandForLargeTransceiveLength() throws CardException {
+        byte[] data = channel.readBinary(0, 3000);
+        Assert.assertArrayEquals(Arrays.copyOfRange(transceiver.getFile(), 0, 3000), data);
+        Assert.assertEquals(1, transceiver.getFrames());
+    }
+
+    @Test
+    public void readBinaryShouldStopAtEndOfFile() throws Exception {
+        createChannel(1000);
+        byte[] data = channel.readBinary(100, 2000);
+        Assert.assertArrayEquals(Arrays.copyOfRange(transceiver.getFile(), 100, 1000), data);
+        Assert.assertEquals(0, channel.readBinary(1000, 100).length);
+    }
+
+    @Test
+    public void readBinaryShouldReduceChunkSizeAfterWrongLength() throws CardException {
+        transceiver.setMaxResponseDataLength(1000);
+        Assert.assertArrayEquals(Arrays.copyOfRange(transceiver.getFile(), 0, 1500), channel.readBinary(0, 1500));
+        Assert.assertEquals(3, transceiver.getFrames());
+
+        Assert.assertArrayEquals(Arrays.copyOfRange(transceiver.getFile(), 1500, 3000), channel.readBinary(1500, 1500));
+        Assert.assertEquals(5, transceiver.getFrames());
+    }
+
+    @Test
+    public void readBinaryShouldStopAfterWrongLeAtEndOfFile() throws Exception {
+        createChannel(1003);
+        transceiver.setMaxTransceiveLength(261);
+        transceiver.setWrongLeAtEndOfFile(true);
+        Assert.assertEquals(225, channel.getMaxResponseLength());
+
+        Assert.assertArrayEquals(transceiver.getFile(), channel.readBinary(0, 2000));
+        // 4 chunks of 223 bytes, the last chunk is sent again with the 111 bytes left and ends the file
+        Assert.assertEquals(6, transceiver.getFrames());
+        Assert.assertEquals(1, channel.getResponseRoundTrips());
+
+        // the chunk size is not reduced to the end of the file
+        Assert.assertArrayEquals(Arrays.copyOf(transceiver.getFile(), 446), channel.readBinary(0, 446));
+        Assert.assertEquals(6 + 2, transceiver.getFrames());
+        // read on the card I/O thread as well
+        Assert.assertArrayEquals(Arrays.copyOfRange(transceiver.getFile(), 892, 1003), nfcCard.execute(() -> channel.readBinary(892, 200)));
+    }
+
+    @Test
+    public void channelLimitsShouldFollowTransceiverMinusSecureMessagingOverhead() {
+        transceiver.setMaxTransceiveLength(65279);
+        Assert.assertEquals(65247 + 9, channel.getMaxMessageLength());
+        Assert.assertEquals(65247 + 2, channel.getMaxResponseLength());
+
+        channel.setTrustedChannelEstablished(false);
+        Assert.assertEquals(65279, channel.getMaxMessageLength());
+        Assert.assertEquals(65279, channel.getMaxResponseLength());
+    }
+
+    @Test
+    public void batchTransmitShouldReturnResponsesInOrder() throws CardException {
+        List<CommandApdu> commands = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            commands.add(new CommandApdu(0x00, 0xB0, i, 0x00, 0x100 + i));
+        }
+        commands.add(new CommandApdu(0x00, 0xD6, 0x00, 0x00, Hex.decode("CAFE")));
+        commands.add(new CommandApdu(0x00, 0xB0, 0x00, 0x00, 2));
+
+        byte[] file = transceiver.getFile().clone();
+        List<IResponseApdu> responses = channel.transmit(commands);
+
+        Assert.assertEquals(commands.size(), responses.size());
+        for (int i = 0; i < 8; i++) {
+            Assert.assertArrayEquals(Arrays.copyOfRange(file, i << 8, (i << 8) + 0x100 + i), responses.get(i).getData());
+        }
+        Assert.assertEquals(0x9000, responses.get(8).getSW());
+        Assert.assertArrayEquals(Hex.decode("CAFE"), responses.get(9).getData());
+        // send sequence counter continues after the batch
+        Assert.assertEquals(0x9000, channel.transmit(new CommandApdu(0x00, 0xB0, 0x00, 0x00, 16)).getSW());
+    }
+
+    @Test
+    public void batchTransmitShouldResetSendSequenceCounterAfterLostFrame() throws CardException {
+        List<CommandApdu> commands = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            commands.add(new CommandApdu(0x00, 0xB0, 0x00, i, 16));
+        }
+        transceiver.setFailingCall(3);
+        try {
+            channel.transmit(commands);
+            Assert.fail("Exception erwartet, aber nicht bekommen.");
+        } catch (CardException e) {
+            // expected
+        }
+        Assert.assertEquals(2, transceiver.getFrames());
+
+        IResponseApdu response = channel.transmit(new CommandApdu(0x00, 0xB0, 0x00, 0x00, 16));
+        Assert.assertEquals(0x9000, response.getSW());
+        Assert.assertArrayEquals(Arrays.copyOfRange(transceiver.getFile(), 0, 16), response.getData());
+    }
+
+    @Test
+    public void batchTransmitShouldCompleteAndChainCommands() throws CardException {
+        transceiver.setMaxTransceiveLength(261);
+        transceiver.setResponseFragmentLength(100);
+        byte[] data = new byte[500];
+        Arrays.fill(data, (byte) 0x5A);
+        CommandApdu select = new CommandApdu(0x00, 0xA4, 0x04, 0x0C, Hex.decode("D27600000102"));
+        List<CommandApdu> commands = Arrays.asList(select, new CommandApdu(0x00, 0xD6, 0x00, 0x00, data), select,
+                new CommandApdu(0x00, 0xB0, 0x00, 0x00, 200), new CommandApdu(0x00, 0xB0, 0x00, 0xC8, 16));
+
+        List<IResponseApdu> responses = channel.transmit(commands);
+
+        Assert.assertEquals(0x9000, responses.get(0).getSW());
+        Assert.assertEquals(0x9000, responses.get(1).getSW());
+        Assert.assertEquals(0x9000, responses.get(2).getSW());
+        Assert.assertArrayEquals(Arrays.copyOf(data, 200), responses.get(3).getData());
+        Assert.assertArrayEquals(Arrays.copyOfRange(data, 200, 216), responses.get(4).getData());
+        // the update is chained, the second SELECT is answered without the card and the first READ BINARY is completed with GET RESPONSE
+        Assert.assertEquals(Arrays.asList(0xA4, 0xD6, 0xD6, 0xD6, 0xB0, 0xC0, 0xB0), transceiver.getInstructions());
+        Assert.assertEquals(0x9000, channel.transmit(new CommandApdu(0x00, 0xB0, 0x00, 0x00, 16)).getSW());
+    }
+
+    @Test
+    public void frameDelayShouldFollowLatencyAndThroughput() throws CardException {
+        transceiver.setFrameLatency(1, TimeUnit.MILLISECONDS);
+        transceiver.setThroughput(106000 / 8);
+
+        for (int i = 0; i < 10; i++) {
+            channel.transmit(new CommandApdu(0x00, 0xB0, 0x00, 0x00, 0xDF));
+        }
+
+        Assert.assertEquals(10, transceiver.getFrames());
+        // 19 byte command and 244 byte response at 106 kbit/s
+        long frameBytes = 19 + 244;
+        long expected = 10 * (TimeUnit.MILLISECONDS.toNanos(1) + TimeUnit.SECONDS.toNanos(frameBytes) / (106000 / 8));
+        Assert.assertEquals(expected, transceiver.getSimulatedNanos());
+    }
+
+    @Test
+    public void transmitAsyncShouldKeepOrderOfSubmission() throws Exception {
+        byte[] data = Hex.decode("A1A2A3A4");
+        CompletableFuture<IResponseApdu> update = channel.transmitAsync(new CommandApdu(0x00, 0xD6, 0x00, 0x40, data));
+        CompletableFuture<IResponseApdu> read = channel.transmitAsync(new CommandApdu(0x00, 0xB0, 0x00, 0x40, data.length));
+
+        Assert.assertArrayEquals(data, read.get(5, TimeUnit.SECONDS).getData());
+        Assert.assertTrue(update.isDone());
+        Assert.assertEquals(0x9000, update.get().getSW());
+    }
+
+    @Test
+    public void cancelledQueuedTransmitShouldNotBeSent() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<Object> blocker = nfcCard.submit(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return null;
+        });
+        CompletableFuture<IResponseApdu> queued = channel.transmitAsync(new CommandApdu(0x00, 0xB0, 0x00, 0x00, 16));
+        Assert.assertTrue(queued.cancel(true));
+        release.countDown();
+        blocker.get(5, TimeUnit.SECONDS);
+
+        Assert.assertEquals(0x9000, channel.transmit(new CommandApdu(0x00, 0xB0, 0x00, 0x00, 16)).getSW());
+        Assert.assertEquals(1, transceiver.getFrames());
+        Assert.assertTrue(nfcCard.isCardPresent());
+    }
+
+    @Test
+    public void transmitOnIoThreadShouldRunDirectly() throws Exception {
+        byte[] data = nfcCard.submit(() -> channel.readBinary(0, 100)).get(5, TimeUnit.SECONDS);
+        Assert.assertArrayEquals(Arrays.copyOfRange(transceiver.getFile(), 0, 100), data);
+    }
+
+    @Test
+    public void metricsShouldRecordSecureMessagingApdu() throws CardException {
+        List<ApduTiming> timings = new ArrayList<>();
+        ApduMetrics metrics = nfcCard.getMetrics();
+        metrics.addListener(timings::add);
+
+        channel.transmit(new CommandApdu(0x00, 0xB0, 0x00, 0x00, 0xDF));
+
+        Assert.assertEquals(1, timings.size());
+        ApduTiming timing = timings.get(0);
+        Assert.assertEquals(0xB0, timing.getIns());
+        Assert.assertEquals(0x9000, timing.getSw());
+        Assert.assertEquals(1, timing.getFrames());
+        Assert.assertEquals(19, timing.getBytesSent());
+        Assert.assertEquals(244, timing.getBytesReceived());
+        Assert.assertTrue(timing.getEncryptNanos() > 0);
+        Assert.assertTrue(timing.getDecryptNanos() > 0);
+        Assert.assertTrue(timing.getTotalNanos() >= timing.getRoundTripNanos() + timing.getEncryptNanos() + timing.getDecryptNanos());
+        Assert.assertEquals(1, metrics.getApduCount());
+        Assert.assertEquals(1, metrics.getRoundTripSnapshot().getCount());
+        Assert.assertEquals(1, metrics.getEncryptSnapshot().getCount());
+        Assert.assertEquals(244, metrics.getBytesReceived());
+    }
+
+    @Test
+    public void metricsShouldCountBatchFramesAndFailures() throws CardException {
+        List<CommandApdu> commands = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            commands.add(new CommandApdu(0x00, 0xB0, 0x00, 16 * i, 16));
+        }
+        commands.add(new CommandApdu(0x00, 0xCA, 0x00, 0x00));
+        channel.transmit(commands);
+
+        ApduMetrics metrics = nfcCard.getMetrics();
+        Assert.assertEquals(5, metrics.getApduCount());
+        Assert.assertEquals(1, metrics.getUnsuccessfulApduCount());
+        Assert.assertEquals(5, metrics.getRoundTripSnapshot().getCount());
+        Assert.assertEquals(5, metrics.getEncryptSnapshot().getCount());
+        Assert.assertEquals(5, metrics.getDecryptSnapshot().getCount());
+    }
+
+    @Test
+    public void apduTraceShouldContainEncryptedFramesOnly() throws Exception {
+        ApduTraceBuffer trace = new ApduTraceBuffer(4096);
+        nfcCard.setApduTrace(trace);
+
+        channel.transmit(new CommandApdu(0x00, 0xB0, 0x00, 0x00, 16));
+
+        Assert.assertEquals(2, trace.getFrameCount());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        trace.writeTo(out);
+        byte[] records = out.toByteArray();
+        // 19 byte command and 51 byte response
+        Assert.assertEquals(2 * ApduTraceBuffer.HEADER_SIZE + 19 + 51, records.length);
+        Assert.assertEquals(0x0C, records[ApduTraceBuffer.HEADER_SIZE]);
+        String hex = Hex.encodeHexString(records).toUpperCase();
+        Assert.assertFalse(hex.contains(Hex.encodeHexString(PACE_KEY.getEnc()).toUpperCase()));
+        Assert.assertFalse(hex.contains(Hex.encodeHexString(PACE_KEY.getMac()).toUpperCase()));
+    }
+
+    @Test
+    public void recordedSessionShouldBeReplayed() throws Exception {
+        SecretKey deviceKey = new SecretKeySpec(Hex.decode("000102030405060708090A0B0C0D0E0F"), "AES");
+        File path = folder.newFile();
+        List<byte[]> recordedResponses = new ArrayList<>();
+        try (ApduTraceFile traceFile = new ApduTraceFile(path, 1 << 20, deviceKey)) {
+            NfcCardChannel recordingChannel = openChannel(new RecordingTransceiver(new SimulatedCardTransceiver(PACE_KEY, FILE_SIZE), traceFile));
+            recordedResponses.add(recordingChannel.transmit(new CommandApdu(0x00, 0xA4, 0x04, 0x0C)).getBytes());
+            recordedResponses.add(recordingChannel.readBinary(0, 3000));
+        }
+
+        List<ApduTraceRecord> records;
+        try (ApduTraceFile traceFile = new ApduTraceFile(path, 1 << 20, deviceKey)) {
+            records = traceFile.readRecords();
+        }
+        Assert.assertEquals(4, records.size());
+        ReplayTransceiver replay = new ReplayTransceiver(records);
+        NfcCardChannel replayChannel = openChannel(replay);
+        Assert.assertArrayEquals(recordedResponses.get(0), replayChannel.transmit(new CommandApdu(0x00, 0xA4, 0x04, 0x0C)).getBytes());
+        Assert.assertArrayEquals(recordedResponses.get(1), replayChannel.readBinary(0, 3000));
+        Assert.assertEquals(0, replay.getRemainingFrames());
+    }
+
+    @Test(expected = CardException.class)
+    public void replayShouldFailOnDifferentCommand() throws Exception {
+        List<ApduTraceRecord> records = new ArrayList<>();
+        records.add(new ApduTraceRecord(0, ApduTraceBuffer.COMMAND, 0, 0, 4, Hex.decode("00A4040C")));
+        records.add(new ApduTraceRecord(0, ApduTraceBuffer.RESPONSE, 0, 0, 2, Hex.decode("9000")));
+        NfcCard replayCard = new NfcCard(new ReplayTransceiver(records), () -> {
+        });
+
+        replayCard.openBasicChannel().transmit(new CommandApdu(0x00, 0xB0, 0x00, 0x00, 16));
+        Assert.fail("Exception erwartet, aber nicht bekommen.");
+    }
+
+    private static NfcCardChannel openChannel(final ITransceiver cardTransceiver) throws CardException {
+        NfcCard card = new NfcCard(cardTransceiver, () -> {
+        });
+        Whitebox.setInternalState(card, "paceKey", PACE_KEY);
+        NfcCardChannel basicChannel = (NfcCardChannel) card.openBasicChannel();
+        basicChannel.setTrustedChannelEstablished(true);
+        return basicChannel;
+    }
+
+    @Test
+    public void cachedSessionShouldBeResumed() throws Exception {
+        PaceKeyCache cache = new PaceKeyCache(30, TimeUnit.SECONDS);
+        NfcCard firstTap = createCachingCard(cache);
+        Whitebox.setInternalState(firstTap, "paceKey", PACE_KEY);
+        ((NfcCardChannel) firstTap.openBasicChannel()).setTrustedChannelEstablished(true);
+        firstTap.openBasicChannel().transmit(new CommandApdu(0x00, 0xB0, 0x00, 0x00, 16));
+        release(firstTap);
+
+        NfcCard secondTap = createCachingCard(cache);
+        IResponseApdu response = secondTap.openBasicChannel().transmit(new CommandApdu(0x00, 0xB0, 0x00, 0x10, 16));
+        Assert.assertSame(PACE_KEY, secondTap.getPaceKey());
+        Assert.assertEquals(0x9000, response.getSW());
+        Assert.assertArrayEquals(Arrays.copyOfRange(transceiver.getFile(), 0x10, 0x20), response.getData());
+    }
+
+    @Test
+    public void rejectedSessionShouldFallBackToPace() throws Exception {
+        PaceKeyCache cache = new PaceKeyCache(30, TimeUnit.SECONDS);
+        NfcCard firstTap = createCachingCard(cache);
+        Whitebox.setInternalState(firstTap, "paceKey", PACE_KEY);
+        ((NfcCardChannel) firstTap.openBasicChannel()).setTrustedChannelEstablished(true);
+        firstTap.openBasicChannel().transmit(new CommandApdu(0x00, 0xB0, 0x00, 0x00, 16));
+        release(firstTap);
+        // the card lost power and its secure messaging session
+        transceiver.reconnect();
+
+        NfcCard secondTap = createCachingCard(cache);
+        List<NfcCard.State> states = Collections.synchronizedList(new ArrayList<>());
+        secondTap.setStateListener((card, state, phaseNanos) -> {
+            states.add(state);
+            if (state == NfcCard.State.PACE) {
+                // the application establishes a new PACE key with the card
+                new Thread(() -> card.onPaceKey(PACE_KEY)).start();
+            }
+        });
+        IResponseApdu response = secondTap.openBasicChannel().transmit(new CommandApdu(0x00, 0xB0, 0x00, 0x00, 16));
+
+        Assert.assertEquals(0x9000, response.getSW());
+        Assert.assertArrayEquals(Arrays.copyOfRange(transceiver.getFile(), 0, 16), response.getData());
+        Assert.assertTrue(states.contains(NfcCard.State.PACE));
+        Assert.assertEquals(NfcCard.State.READY, secondTap.getState());
+        release(secondTap);
+    }
+
+    @Test
+    public void secureMessagingErrorShouldFailWithCardException() throws Exception {
+        nfcCard.onPaceKey(PACE_KEY);
+        channel.transmit(new CommandApdu(0x00, 0xB0, 0x00, 0x00, 16));
+        // the card lost its secure messaging session and answers in plain
+        transceiver.reconnect();
+        try {
+            channel.transmit(new CommandApdu(0x00, 0xB0, 0x00, 0x00, 16));
+            Assert.fail("Exception erwartet, aber nicht bekommen.");
+        } catch (CardException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void sessionShouldNotBeCachedAfterLostTag() throws Exception {
+        PaceKeyCache cache = new PaceKeyCache(30, TimeUnit.SECONDS);
+        NfcCard card = createCachingCard(cache);
+        Whitebox.setInternalState(card, "paceKey", PACE_KEY);
+        ((NfcCardChannel) card.openBasicChannel()).setTrustedChannelEstablished(true);
+        card.openBasicChannel().transmit(new CommandApdu(0x00, 0xB0, 0x00, 0x00, 16));
+        transceiver.setTagLostCall(1);
+        try {
+            card.openBasicChannel().transmit(new CommandApdu(0x00, 0xB0, 0x00, 0x00, 16));
+            Assert.fail("Exception erwartet, aber nicht bekommen.");
+        } catch (CardException e) {
+            // expected
+        }
+        release(card);
+        Assert.assertNull(cache.take((String) Whitebox.getInternalState(card, "cardId")));
+    }
+
+    private NfcCard createCachingCard(final PaceKeyCache cache) {
+        NfcCard card = new NfcCard(transceiver, () -> {
+        }, new byte[] { 1, 2, 3, 4 }, cache);
+        card.bringUp();
+        return card;
+    }
+
+    private static void release(final NfcCard card) throws InterruptedException {
+        card.release();
+        Assert.assertTrue(((ThreadPoolExecutor) Whitebox.getInternalState(card, "ioExecutor")).awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void bringUpShouldConnectOnIoThreadAndReportStates() throws Exception {
+        List<NfcCard.State> states = Collections.synchronizedList(new ArrayList<>());
+        List<String> threads = Collections.synchronizedList(new ArrayList<>());
+        List<String> paceKeyRequestThreads = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch pace = new CountDownLatch(1);
+        NfcCard card = new NfcCard(transceiver, () -> {
+        }, new byte[] { 1, 2, 3, 4 }, new PaceKeyCache(30, TimeUnit.SECONDS)) {
+            @Override
+            void requestPaceKey() {
+                paceKeyRequestThreads.add(Thread.currentThread().getName());
+            }
+        };
+        card.setStateListener((changedCard, state, phaseNanos) -> {
+            states.add(state);
+            threads.add(Thread.currentThread().getName());
+            if (state == NfcCard.State.PACE) {
+                pace.countDown();
+            }
+        });
+        card.bringUp();
+        Assert.assertTrue(pace.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals("nfc-card-io", threads.get(0));
+        Assert.assertTrue(card.getPhaseNanos(NfcCard.State.CONNECTING) > 0);
+        // the PACE key is requested by the task that connected the tag
+        card.execute(() -> null);
+        Assert.assertEquals(Collections.singletonList("nfc-card-io"), paceKeyRequestThreads);
+
+        card.onPaceKey(PACE_KEY);
+        Assert.assertEquals(Arrays.asList(NfcCard.State.PACE, NfcCard.State.READY), states);
+        Assert.assertEquals(NfcCard.State.READY, card.getState());
+        IResponseApdu response = card.openBasicChannel().transmit(new CommandApdu(0x00, 0xB0, 0x00, 0x00, 16));
+        Assert.assertArrayEquals(Arrays.copyOfRange(transceiver.getFile(), 0, 16), response.getData());
+    }
+
+    @Test
+    public void cardWithoutPresentCallBackShouldBecomeReady() throws Exception {
+        PaceKeyCache cache = new PaceKeyCache(30, TimeUnit.SECONDS);
+        NfcCard card = new NfcCard(transceiver, null, new byte[] { 1, 2, 3, 4 }, cache);
+        CountDownLatch pace = new CountDownLatch(1);
+        card.setStateListener((changedCard, state, phaseNanos) -> {
+            if (state == NfcCard.State.PACE) {
+                pace.countDown();
+            }
+        });
+        card.bringUp();
+        Assert.assertTrue(pace.await(5, TimeUnit.SECONDS));
+        // the PACE key arrives after the connect and reports the card ready on the calling thread
+        card.onPaceKey(PACE_KEY);
+        IResponseApdu response = card.openBasicChannel().transmit(new CommandApdu(0x00, 0xB0, 0x00, 0x00, 16));
+        Assert.assertArrayEquals(Arrays.copyOfRange(transceiver.getFile(), 0, 16), response.getData());
+        Assert.assertEquals(NfcCard.State.READY, card.getState());
+        release(card);
+
+        // the cached session is resumed without a callback as well
+        NfcCard resumedCard = new NfcCard(transceiver, null, new byte[] { 1, 2, 3, 4 }, cache);
+        resumedCard.bringUp();
+        response = resumedCard.openBasicChannel().transmit(new CommandApdu(0x00, 0xB0, 0x00, 0x00, 16));
+        Assert.assertArrayEquals(Arrays.copyOfRange(transceiver.getFile(), 0, 16), response.getData());
+        Assert.assertEquals(NfcCard.State.READY, resumedCard.getState());
+        release(resumedCard);
+    }
+
+    @Test
+    public void commandsShouldWaitForSlowConnect() throws Exception {
+        CountDownLatch connectReleased = new CountDownLatch(1);
+        SimulatedCardTransceiver slowTransceiver = new SimulatedCardTransceiver(PACE_KEY, 256) {
+            @Override
+            public void connect() {
+                try {
+                    connectReleased.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.connect();
+            }
+        };
+        NfcCard card = new NfcCard(slowTransceiver, () -> {
+        }, new byte[] { 1, 2, 3, 4 }, new PaceKeyCache(30, TimeUnit.SECONDS));
+        card.bringUp();
+        Assert.assertEquals(NfcCard.State.CONNECTING, card.getState());
+        Assert.assertTrue(card.isCardPresent());
+
+        // the PACE key arrives while the tag is still connecting
+        card.onPaceKey(PACE_KEY);
+        Assert.assertEquals(NfcCard.State.CONNECTING, card.getState());
+        CompletableFuture<IResponseApdu> response = ((NfcCardChannel) card.openBasicChannel())
+                .transmitAsync(new CommandApdu(0x00, 0xB0, 0x00, 0x00, 16));
+        Assert.assertFalse(response.isDone());
+
+        connectReleased.countDown();
+        Assert.assertArrayEquals(Arrays.copyOfRange(slowTransceiver.getFile(), 0, 16), response.get(5, TimeUnit.SECONDS).getData());
+        Assert.assertEquals(NfcCard.State.READY, card.getState());
+    }
+
+    @Test
+    public void logicalChannelShouldShareSecureMessagingSession() throws CardException {
+        NfcCardChannel basicChannel = (NfcCardChannel) nfcCard.openBasicChannel();
+        NfcCardChannel logicalChannel = (NfcCardChannel) nfcCard.openLogicalChannel();
+        logicalChannel.setPriority(ApduPriority.BACKGROUND);
+        for (int offset = 0; offset < 64; offset += 16) {
+            IResponseApdu logicalResponse = logicalChannel.transmit(new CommandApdu(0x00, 0xB0, 0x00, offset, 16));
+            Assert.assertArrayEquals(Arrays.copyOfRange(transceiver.getFile(), offset, offset + 16), logicalResponse.getData());
+            IResponseApdu basicResponse = basicChannel.transmit(new CommandApdu(0x00, 0xB0, 0x00, offset, 16));
+            Assert.assertArrayEquals(Arrays.copyOfRange(transceiver.getFile(), offset, offset + 16), basicResponse.getData());
+        }
+        Assert.assertEquals(basicChannel.getMaxResponseLength(), logicalChannel.getMaxResponseLength());
+    }
+
+    @Test
+    public void learnedTimeoutShouldBeSetOnTransceiver() throws CardException {
+        nfcCard.setAdaptiveTimeout(new AdaptiveTimeout(5000));
+        NfcCardChannel channel = (NfcCardChannel) nfcCard.openBasicChannel();
+        channel.transmit(new CommandApdu(0x00, 0xB0, 0x00, 0x00, 16));
+        Assert.assertEquals(5000, transceiver.getTimeout());
+        for (int i = 0; i < 1000; i++) {
+            channel.transmit(new CommandApdu(0x00, 0xB0, 0x00, 0x00, 16));
+        }
+        Assert.assertEquals(500, transceiver.getTimeout());
+    }
+
+    @Test
+    public void responseAfterLearnedTimeoutShouldRestartSessionInsteadOfLosingTag() throws Exception {
+        AtomicInteger tagLost = new AtomicInteger();
+        NfcCard card = new NfcCard(transceiver, new NfcCard.ICardPresentCallBack() {
+            @Override
+            public void inform() {
+            }
+
+            @Override
+            public void tagLost() {
+                tagLost.incrementAndGet();
+            }
+        });
+        card.onPaceKey(PACE_KEY);
+        NfcCardChannel cardChannel = (NfcCardChannel) card.openBasicChannel();
+        card.setRetryPolicy(RetryPolicy.DEFAULT);
+        card.setAdaptiveTimeout(new AdaptiveTimeout(5000));
+        for (int i = 0; i <= 1000; i++) {
+            cardChannel.transmit(new CommandApdu(0x00, 0xB0, 0x00, 0x00, 16));
+        }
+        Assert.assertEquals(500, transceiver.getTimeout());
+        List<NfcCard.State> states = Collections.synchronizedList(new ArrayList<>());
+        card.setStateListener((changedCard, state, phaseNanos) -> {
+            states.add(state);
+            if (state == NfcCard.State.PACE) {
+                new Thread(() -> changedCard.onPaceKey(PACE_KEY)).start();
+            }
+        });
+
+        // the card answers just after the learned timeout, it has executed the command and rejects the repeated frame
+        transceiver.setFrameLatency(600, TimeUnit.MILLISECONDS);
+        IResponseApdu response = cardChannel.transmit(new CommandApdu(0x00, 0xB0, 0x00, 0x10, 16));
+
+        Assert.assertEquals(0x9000, response.getSW());
+        Assert.assertArrayEquals(Arrays.copyOfRange(transceiver.getFile(), 0x10, 0x20), response.getData());
+        Assert.assertTrue(transceiver.isConnected());
+        Assert.assertEquals(0, tagLost.get());
+        Assert.assertFalse(card.isRecovering());
+        Assert.assertTrue(states.contains(NfcCard.State.PACE));
+        Assert.assertEquals(NfcCard.State.READY, card.getState());
+        // the timeout of the slow command stays backed off
+        Assert.assertEquals(1000, transceiver.getTimeout());
+        Assert.assertEquals(0x9000, cardChannel.transmit(new CommandApdu(0x00, 0xB0, 0x00, 0x00, 16)).getSW());
+    }
+
+    @Test
+    public void updateBinaryShouldNotBeRetriedAfterLostTag() throws Exception {
+        nfcCard.setRetryPolicy(RetryPolicy.DEFAULT);
+        transceiver.setTagLostCall(1);
+        try {
+            channel.transmit(new CommandApdu(0x00, 0xD6, 0x00, 0x00, Hex.decode("CAFE")));
+            Assert.fail("Exception erwartet, aber nicht bekommen.");
+        } catch (CardException e) {
+            // expected
+        }
+        Assert.assertFalse(transceiver.isConnected());
+        Assert.assertTrue(transceiver.getInstructions().isEmpty());
+    }
+
+    @Test
+    public void bytesRemainingShouldBeFetchedWithGetResponse() throws CardException {
+        transceiver.setResponseFragmentLength(100);
+        IResponseApdu response = channel.transmit(new CommandApdu(0x00, 0xB0, 0x00, 0x00, 300));
+        Assert.assertEquals(0x9000, response.getSW());
+        Assert.assertArrayEquals(Arrays.copyOfRange(transceiver.getFile(), 0, 300), response.getData());
+        Assert.assertEquals(2, channel.getResponseRoundTrips());
+
+        channel.setTrustedChannelEstablished(false);
+        response = channel.transmit(new CommandApdu(0x00, 0xB0, 0x00, 0x00, 250));
+        Assert.assertEquals(0x9000, response.getSW());
+        Assert.assertArrayEquals(Arrays.copyOfRange(transceiver.getFile(), 0, 250), response.getData());
+        Assert.assertEquals(4, channel.getResponseRoundTrips());
+        Assert.assertEquals(Arrays.asList(0xB0, 0xC0, 0xC0, 0xB0, 0xC0, 0xC0), transceiver.getInstructions());
+    }
+
+    @Test
+    public void wrongLeShouldBeSentAgainWithLengthOfferedByCard() throws CardException {
+        transceiver.setMaxResponseDataLength(200);
+        IResponseApdu response = channel.transmit(new CommandApdu(0x00, 0xB0, 0x00, 0x00, 300));
+        Assert.assertEquals(0x9000, response.getSW());
+        Assert.assertArrayEquals(Arrays.copyOfRange(transceiver.getFile(), 0, 200), response.getData());
+        Assert.assertEquals(2, transceiver.getFrames());
+        Assert.assertEquals(1, channel.getResponseRoundTrips());
+    }
+
+    @Test
+    public void plainTransmissionStatusShouldBeAcceptedWithSecureMessaging() throws CardException {
+        transceiver.setPlainTransmissionStatus(true);
+        transceiver.setResponseFragmentLength(100);
+        IResponseApdu response = channel.transmit(new CommandApdu(0x00, 0xB0, 0x00, 0x00, 300));
+        Assert.assertEquals(0x9000, response.getSW());
+        Assert.assertArrayEquals(Arrays.copyOfRange(transceiver.getFile(), 0, 300), response.getData());
+
+        transceiver.setResponseFragmentLength(0);
+        transceiver.setMaxResponseDataLength(200);
+        response = channel.transmit(new CommandApdu(0x00, 0xB0, 0x00, 0x10, 250));
+        Assert.assertEquals(0x9000, response.getSW());
+        Assert.assertArrayEquals(Arrays.copyOfRange(transceiver.getFile(), 0x10, 0x10 + 200), response.getData());
+        Assert.assertEquals(3, channel.getResponseRoundTrips());
+        // the send sequence counter is still in step with the card
+        Assert.assertEquals(0x9000, channel.transmit(new CommandApdu(0x00, 0xB0, 0x00, 0x00, 16)).getSW());
+    }
+
+    @Test
+    public void wrongLeAfterChainShouldSendLastSegmentAgain() throws CardException {
+        transceiver.setMaxTransceiveLength(261);
+        transceiver.setMaxResponseDataLength(200);
+        byte[] data = new byte[500];
+        Arrays.fill(data, (byte) 0x3C);
+        IResponseApdu response = channel.transmit(new CommandApdu(0x00, 0x88, 0x00, 0x00, data, 256));
+        Assert.assertEquals(0x9000, response.getSW());
+        Assert.assertArrayEquals(Arrays.copyOf(data, 200), response.getData());
+        // 3 segments and the last one again with the Le of the card
+        Assert.assertEquals(4, transceiver.getFrames());
+        Assert.assertEquals(1, channel.getResponseRoundTrips());
+    }
+
+    @Test
+    public void largeUpdateBinaryShouldBeChainedInShortFrames() throws CardException {
+        transceiver.setMaxTransceiveLength(261);
+        byte[] data = new byte[1000];
+        Arrays.fill(data, (byte) 0x5A);
+        Assert.assertEquals(0x9000, channel.transmit(new CommandApdu(0x00, 0xD6, 0x00, 0x00, data)).getSW());
+        // 223 bytes of plain data fit into one short frame with secure messaging
+        Assert.assertEquals(5, transceiver.getFrames());
+        Assert.assertArrayEquals(data, Arrays.copyOf(transceiver.getFile(), 1000));
+
+        channel.setTrustedChannelEstablished(false);
+        Arrays.fill(data, (byte) 0xA5);
+        Assert.assertEquals(0x9000, channel.transmit(new CommandApdu(0x00, 0xD6, 0x00, 0x00, data)).getSW());
+        Assert.assertEquals(5 + 4, transceiver.getFrames());
+        Assert.assertArrayEquals(data, Arrays.copyOf(transceiver.getFile(), 1000));
+    }
+
+    @Test
+    public void chainedSegmentsShouldUseTransceiveLength() throws CardException {
+        transceiver.setMaxTransceiveLength(1000);
+        byte[] data = new byte[3000];
+        Arrays.fill(data, (byte) 0x3C);
+        Assert.assertEquals(0x9000, channel.transmit(new CommandApdu(0x00, 0xD6, 0x00, 0x10, data)).getSW());
+        Assert.assertEquals(4, transceiver.getFrames());
+        Assert.assertArrayEquals(data, Arrays.copyOfRange(transceiver.getFile(), 0x10, 0x10 + 3000));
+        Assert.assertArrayEquals(Arrays.copyOfRange(data, 0, 200), channel.transmit(new CommandApdu(0x00, 0xB0, 0x00, 0x10, 200)).getData());
+    }
+
+    @Test
+    public void repeatedSelectShouldBeAnsweredWithoutCard() throws Exception {
+        createChannel(1000);
+        CommandApdu select = new CommandApdu(0x00, 0xA4, 0x02, 0x0C, Hex.decode("2F11"));
+        Assert.assertEquals(0x9000, channel.transmit(select).getSW());
+        int frames = transceiver.getFrames();
+        Assert.assertEquals(0x9000, channel.transmit(select).getSW());
+        Assert.assertEquals(frames, transceiver.getFrames());
+
+        // an error status word may have changed the selection
+        Assert.assertEquals(0x6B00, channel.transmit(new CommandApdu(0x00, 0xB0, 0x7F, 0x00, 16)).getSW());
+        channel.transmit(select);
+        Assert.assertEquals(frames + 2, transceiver.getFrames());
+        channel.transmit(new CommandApdu(0x00, 0x70, 0x80, 0x01));
+        channel.transmit(select);
+        Assert.assertEquals(frames + 4, transceiver.getFrames());
+        channel.transmit(select);
+        Assert.assertEquals(frames + 4, transceiver.getFrames());
+    }
+
+    @Test
+    public void newSessionShouldForgetSelectResponseAndFcp() throws Exception {
+        createChannel(1000);
+        CommandApdu select = new CommandApdu(0x00, 0xA4, 0x08, 0x04, Hex.decode("2F11"), 256);
+        Assert.assertEquals(0x9000, channel.transmit(select).getSW());
+        Assert.assertEquals(1000, channel.getSelectedFileSize());
+
+        // a new PACE starts a new session with a new send sequence counter
+        transceiver.reconnect();
+        channel.setTrustedChannelEstablished(true);
+        Assert.assertEquals(-1, channel.getSelectedFileSize());
+        int frames = transceiver.getFrames();
+        Assert.assertEquals(0x9000, channel.transmit(select).getSW());
+        Assert.assertEquals(frames + 1, transceiver.getFrames());
+        Assert.assertEquals(1000, channel.getSelectedFileSize());
+    }
+
+    @Test
+    public void readBinaryShouldRequestFileSizeFromFcp() throws Exception {
+        createChannel(1000);
+        transceiver.setMaxResponseDataLength(1000);
+        CommandApdu select = new CommandApdu(0x00, 0xA4, 0x08, 0x04, Hex.decode("2F11"), 256);
+        Assert.assertEquals(0x9000, channel.transmit(select).getSW());
+        Assert.assertEquals(1000, channel.getSelectedFileSize());
+        int frames = transceiver.getFrames();
+        Assert.assertArrayEquals(transceiver.getFile(), channel.readBinary(0, 5000));
+        Assert.assertEquals(frames + 1, transceiver.getFrames());
+        Assert.assertEquals(0, channel.readBinary(1000, 16).length);
+        Assert.assertEquals(frames + 1, transceiver.getFrames());
+
+        // the FCP is kept for a SELECT without response data
+        channel.transmit(new CommandApdu(0x00, 0xA4, 0x08, 0x0C, Hex.decode("2F12")));
+        Assert.assertEquals(-1, channel.getSelectedFileSize());
+        channel.transmit(new CommandApdu(0x00, 0xA4, 0x08, 0x0C, Hex.decode("2F11")));
+        Assert.assertEquals(1000, channel.getSelectedFileSize());
+    }
+
+    @Test
+    public void immutableFileShouldBeReadFromCache() throws Exception {
+        EfCache efCache = new EfCache(4096);
+        efCache.addImmutableFile(0x2F01, 0x1D);
+        efCache.addImmutableFile(0x2F11);
+        NfcCard card = new NfcCard(transceiver, () -> {
+        }, new byte[] { 1, 2, 3, 4 }, null);
+        card.setEfCache(efCache);
+        card.bringUp();
+        card.onPaceKey(PACE_KEY);
+        NfcCardChannel basicChannel = (NfcCardChannel) card.openBasicChannel();
+
+        CommandApdu readAtr = new CommandApdu(0x00, 0xB0, 0x9D, 0x00, 16);
+        byte[] atr = basicChannel.transmit(readAtr).getData();
+        int frames = transceiver.getFrames();
+        Assert.assertArrayEquals(atr, basicChannel.transmit(readAtr).getData());
+        Assert.assertEquals(frames, transceiver.getFrames());
+
+        CommandApdu readSelected = new CommandApdu(0x00, 0xB0, 0x00, 0x00, 16);
+        basicChannel.transmit(new CommandApdu(0x00, 0xA4, 0x02, 0x0C, Hex.decode("2F11")));
+        basicChannel.transmit(readSelected);
+        basicChannel.transmit(readSelected);
+        Assert.assertEquals(frames + 2, transceiver.getFrames());
+        // a file that is not immutable is always read from the card
+        basicChannel.transmit(new CommandApdu(0x00, 0xA4, 0x02, 0x0C, Hex.decode("2F12")));
+        basicChannel.transmit(readSelected);
+        Assert.assertEquals(frames + 4, transceiver.getFrames());
+        Assert.assertEquals(2, efCache.getHitCount());
+
+        Assert.assertEquals(0x9000, basicChannel.transmit(new CommandApdu(0x00, 0xD6, 0x9D, 0x00, Hex.decode("CAFE"))).getSW());
+        Assert.assertArrayEquals(Hex.decode("CAFE"), Arrays.copyOf(basicChannel.transmit(readAtr).getData(), 2));
+    }
+
+    @Test
+    public void immutableFileShouldBeAvailableInNextSession() throws Exception {
+        createChannel(256);
+        SecretKey deviceKey = new SecretKeySpec(Hex.decode("000102030405060708090A0B0C0D0E0F"), "AES");
+        EfCache efCache = new EfCache(4096);
+        efCache.addImmutableFile(0xC500);
+        try (EfCacheFile cacheFile = new EfCacheFile(folder.newFile(), 4096, deviceKey)) {
+            NfcCard card = createCachingCard(null);
+            card.setEfCache(efCache);
+            card.setEfCacheFile(cacheFile);
+            card.onPaceKey(PACE_KEY);
+            NfcCardChannel basicChannel = (NfcCardChannel) card.openBasicChannel();
+            basicChannel.transmit(new CommandApdu(0x00, 0xA4, 0x02, 0x0C, Hex.decode("C500")));
+            byte[] certificate = basicChannel.readBinary(0, 1000);
+            release(card);
+
+            NfcCard nextTap = new NfcCard(transceiver, () -> {
+            }, new byte[] { 1, 2, 3, 4 }, null);
+            nextTap.setEfCacheFile(cacheFile);
+            Assert.assertArrayEquals(certificate, nextTap.getCachedFile(0xC500));
+            Assert.assertNull(nextTap.getCachedFile(0xC501));
+        }
+    }
+
+    @Test
+    public void changedVersionShouldRemoveCachedFiles() throws Exception {
+        createChannel(0x1200);
+        SecretKey deviceKey = new SecretKeySpec(Hex.decode("000102030405060708090A0B0C0D0E0F"), "AES");
+        try (EfCacheFile cacheFile = new EfCacheFile(folder.newFile(), 16384, deviceKey)) {
+            NfcCard card = createCachingCard(null);
+            card.setEfCacheFile(cacheFile);
+            String cardId = (String) Whitebox.getInternalState(card, "cardId");
+            cacheFile.put(cardId, EfCacheFile.EF_VERSION2, Hex.decode("EF2BC003020000"));
+            cacheFile.put(cardId, 0xC500, Hex.decode("7F21"));
+            card.onPaceKey(PACE_KEY);
+            NfcCardChannel basicChannel = (NfcCardChannel) card.openBasicChannel();
+            Assert.assertArrayEquals(Hex.decode("7F21"), card.getCachedFile(0xC500));
+
+            // EF.Version2 of the card is read with its short file identifier
+            basicChannel.transmit(new CommandApdu(0x00, 0xB0, 0x91, 0x00, 1));
+            byte[] version = basicChannel.readBinary(0, 0x2000);
+
+            Assert.assertNull(card.getCachedFile(0xC500));
+            Assert.assertArrayEquals(version, card.getCachedFile(EfCacheFile.EF_VERSION2));
+            release(card);
+        }
+    }
+}
@@ -17,6 +17,14 @@
 package de.gematik.ti.cardreader.provider.nfc.entities;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.junit.AfterClass;
 import org.junit.Assert;
@@ -72,7 +80,7 @@ public class NfcCardTest {
     @Before
     public void setupBefore() {
         basicChannel = new NfcCardChannel(nfcCard);
-        Whitebox.setInternalState(nfcCard, "isoDep", isoDep);
+        Whitebox.setInternalState(nfcCard, "transceiver", new IsoDepTransceiver(isoDep));
         Whitebox.setInternalState(nfcCard, "basicChannel", basicChannel);
         Mockito.when(isoDep.isConnected()).thenReturn(true);
         Mockito.when(isoDep.getMaxTransceiveLength()).thenReturn(0);
@@ -149,4 +157,138 @@ public class NfcCardTest {
         Assert.assertFalse(nfcCard.isExtendedLengthApduSupported());
     }
 
+
+    @Test
+    public void cancelShouldCloseTransceiverOfRunningTransmit() throws Exception {
+        ITransceiver transceiver = Mockito.mock(ITransceiver.class);
+        CountDownLatch transceiveStarted = new CountDownLatch(1);
+        CountDownLatch closed = new CountDownLatch(1);
+        AtomicBoolean connected = new AtomicBoolean(true);
+        Mockito.when(transceiver.isConnected()).thenAnswer(invocation -> connected.get());
+        Mockito.when(transceiver.transceive(Mockito.any())).thenAnswer(invocation -> {
+            transceiveStarted.countDown();
+            closed.await();
+            throw new IOException("Tag was lost.");
+        });
+        Mockito.doAnswer(invocation -> {
+            connected.set(false);
+            closed.countDown();
+            return null;
+        }).when(transceiver).close();
+        NfcCard card = new NfcCard(transceiver, () -> {
+        });
+        NfcCardChannel channel = (NfcCardChannel) card.openBasicChannel();
+
+        CompletableFuture<IResponseApdu> future = channel.transmitAsync(MANAGE_CHANNEL_COMMAND_OPEN);
+        Assert.assertTrue(transceiveStarted.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(future.cancel(true));
+        Assert.assertTrue(closed.await(5, TimeUnit.SECONDS));
+        Assert.assertFalse(card.isCardPresent());
+    }
+
+    @Test
+    public void failedConnectShouldReportLostTag() throws Exception {
+        ITransceiver transceiver = Mockito.mock(ITransceiver.class);
+        Mockito.doThrow(new IOException("Tag was lost.")).when(transceiver).connect();
+        CountDownLatch lost = new CountDownLatch(1);
+        NfcCard card = new NfcCard(transceiver, new NfcCard.ICardPresentCallBack() {
+            @Override
+            public void inform() {
+            }
+
+            @Override
+            public void tagLost() {
+                lost.countDown();
+            }
+        }, new byte[] { 1, 2, 3, 4 }, null);
+
+        card.bringUp();
+        Assert.assertTrue(lost.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(NfcCard.State.FAILED, card.getState());
+        Assert.assertFalse(card.isCardPresent());
+    }
+
+    @Test
+    public void higherPriorityShouldBeTransmittedFirst() throws Exception {
+        NfcCard card = new NfcCard((ITransceiver) null, () -> {
+        });
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch blocked = new CountDownLatch(1);
+        blockIoThread(card, blocked);
+        card.submit(() -> order.add("prefetch"), 1, ApduPriority.BACKGROUND);
+        card.submit(() -> order.add("read"), 2, ApduPriority.NORMAL);
+        CompletableFuture<Boolean> last = card.submit(() -> order.add("sign"), 0, ApduPriority.INTERACTIVE);
+        blocked.countDown();
+
+        last.get(5, TimeUnit.SECONDS);
+        card.submit(() -> null, 1, ApduPriority.BACKGROUND).get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(Arrays.asList("sign", "read", "prefetch"), order);
+    }
+
+    @Test
+    public void channelsShouldTakeTurns() throws Exception {
+        NfcCard card = new NfcCard((ITransceiver) null, () -> {
+        });
+        List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch blocked = new CountDownLatch(1);
+        blockIoThread(card, blocked);
+        for (int i = 0; i < 3; i++) {
+            card.submit(() -> order.add(1), 1, ApduPriority.NORMAL);
+        }
+        CompletableFuture<Boolean> last = null;
+        for (int i = 0; i < 3; i++) {
+            last = card.submit(() -> order.add(2), 2, ApduPriority.NORMAL);
+        }
+        blocked.countDown();
+
+        last.get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(Arrays.asList(1, 2, 1, 2, 1, 2), order);
+    }
+
+    @Test
+    public void earliestDeadlineShouldBeTransmittedFirst() throws Exception {
+        NfcCard card = new NfcCard((ITransceiver) null, () -> {
+        });
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch blocked = new CountDownLatch(1);
+        blockIoThread(card, blocked);
+        card.submit(() -> order.add("bulk"), 1, ApduPriority.NORMAL);
+        card.submit(() -> order.add("late"), 0, ApduPriority.NORMAL, TimeUnit.SECONDS.toNanos(10));
+        card.submit(() -> order.add("verify"), 0, ApduPriority.NORMAL, TimeUnit.SECONDS.toNanos(1));
+        CompletableFuture<Object> last = card.submit(() -> null, 1, ApduPriority.BACKGROUND);
+        Assert.assertEquals(4, card.getQueueDepth());
+        blocked.countDown();
+
+        last.get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(Arrays.asList("verify", "late", "bulk"), order);
+        Assert.assertEquals(0, card.getQueueDepth());
+        Assert.assertEquals(4, card.getMetrics().getMaxQueueDepth());
+        Assert.assertEquals(5, card.getMetrics().getQueueWaitSnapshot().getCount());
+    }
+
+    @Test
+    public void missedDeadlineShouldBeCounted() throws Exception {
+        NfcCard card = new NfcCard((ITransceiver) null, () -> {
+        });
+        CountDownLatch blocked = new CountDownLatch(1);
+        blockIoThread(card, blocked);
+        CompletableFuture<Object> late = card.submit(() -> null, 0, ApduPriority.INTERACTIVE, TimeUnit.MILLISECONDS.toNanos(1));
+        Thread.sleep(10);
+        blocked.countDown();
+
+        late.get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(1, card.getMetrics().getMissedDeadlineCount());
+        Assert.assertTrue(card.getMetrics().getQueueWaitSnapshot().getMax() >= TimeUnit.MILLISECONDS.toNanos(10));
+    }
+
+    private static void blockIoThread(final NfcCard card, final CountDownLatch blocked) {
+        card.submit(() -> {
+            try {
+                blocked.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return null;
+        });
+    }
 }
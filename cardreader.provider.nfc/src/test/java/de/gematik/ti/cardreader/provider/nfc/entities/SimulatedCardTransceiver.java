@@ -0,0 +1,626 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.cardreader.provider.nfc.entities;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import android.nfc.Tag;
+
+import de.gematik.ti.cardreader.provider.nfc.security.SessionCipher;
+import de.gematik.ti.cardreader.provider.nfc.security.SessionMac;
+import de.gematik.ti.cardreader.provider.nfc.security.tagobjects.TlvWriter;
+import de.gematik.ti.openhealthcard.events.response.entities.PaceKey;
+
+/**
+ * In-memory card behind the {@link ITransceiver} interface. It holds one transparent EF, answers SELECT, READ BINARY, UPDATE BINARY and MANAGE CHANNEL and
+ * unwraps and wraps secure messaging APDUs with a known {@link PaceKey}, like a card after PACE.
+ *
+ * Every frame is delayed by a fixed latency plus the time the command and response bytes need at the configured throughput. A frame that takes longer
+ * than the timeout fails after the timeout, but the card stays in the field and has executed the command.
+ *
+ */
+public class SimulatedCardTransceiver implements ITransceiver {
+
+    private static final int BLOCK_SIZE = 16;
+    private static final int MAC_SIZE = 8;
+    private static final int SECURE_MESSAGING_COMMAND = 0x0C;
+    private static final int SHORT_LENGTH = 256;
+    private static final int EXTENDED_LENGTH = 65536;
+    private static final int DO_87_TAG = 0x87;
+    private static final int DO_97_TAG = 0x97;
+    private static final int DO_99_TAG = 0x99;
+    private static final int DO_8E_TAG = 0x8E;
+    private static final int INS_SELECT = 0xA4;
+    private static final int INS_READ_BINARY = 0xB0;
+    private static final int INS_UPDATE_BINARY = 0xD6;
+    private static final int INS_INTERNAL_AUTHENTICATE = 0x88;
+    private static final int INS_MANAGE_CHANNEL = 0x70;
+    private static final int SELECT_RETURN_FCP = 0x04;
+    private static final int INS_GET_RESPONSE = 0xC0;
+    private static final int SW_BYTES_REMAINING = 0x6100;
+    private static final int CLA_COMMAND_CHAINING = 0x10;
+    private static final int SW_SUCCESS = 0x9000;
+    private static final int SW_END_OF_FILE = 0x6282;
+    private static final int SW_WRONG_LENGTH = 0x6700;
+    private static final int SW_WRONG_LE = 0x6C00;
+    private static final int SW_SM_DATA_OBJECTS_INCORRECT = 0x6988;
+    private static final int SW_OFFSET_OUT_OF_RANGE = 0x6B00;
+    private static final int SW_INS_NOT_SUPPORTED = 0x6D00;
+
+    private final SessionCipher sessionCipher;
+    private final SessionMac sessionMac;
+    private final byte[] ssc = new byte[BLOCK_SIZE];
+    private final byte[] file;
+
+    private volatile boolean connected = false;
+    private volatile Tag tag;
+    private int timeout;
+    private int maxTransceiveLength = EXTENDED_LENGTH + 9;
+    private int maxResponseDataLength = EXTENDED_LENGTH;
+    private long frameLatencyNanos;
+    private long bytesPerSecond;
+    private long simulatedNanos;
+    private int frames;
+    private int transceiveCalls;
+    private int failingCall;
+    private int tagLostCall;
+    private final List<Integer> instructions = Collections.synchronizedList(new ArrayList<>());
+    private int responseFragmentLength;
+    private boolean plainTransmissionStatus;
+    private boolean wrongLeAtEndOfFile;
+    private byte[] pendingResponse;
+    private final ByteArrayOutputStream chainedData = new ByteArrayOutputStream();
+
+    /**
+     * Constructor
+     *
+     * @param paceKey
+     *            session keys the card uses for secure messaging
+     * @param fileSize
+     *            size of the transparent EF
+     * @throws GeneralSecurityException
+     *             if the keys are invalid
+     */
+    public SimulatedCardTransceiver(final PaceKey paceKey, final int fileSize) throws GeneralSecurityException {
+        sessionCipher = new SessionCipher(paceKey.getEnc());
+        sessionMac = new SessionMac(paceKey.getMac());
+        file = new byte[fileSize];
+        for (int i = 0; i < fileSize; i++) {
+            file[i] = (byte) i;
+        }
+    }
+
+    /**
+     * Sets the fixed delay of every frame
+     *
+     * @param latency
+     *            delay per frame
+     * @param unit
+     *            unit of latency
+     */
+    public void setFrameLatency(final long latency, final TimeUnit unit) {
+        frameLatencyNanos = unit.toNanos(latency);
+    }
+
+    /**
+     * Sets the throughput of the RF link, 0 for unlimited
+     *
+     * @param bytesPerSecond
+     *            bytes per second
+     */
+    public void setThroughput(final long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Sets the value returned by {@link #getMaxTransceiveLength()}. Longer frames are rejected with an IOException.
+     *
+     * @param maxTransceiveLength
+     *            maximum frame length
+     */
+    public void setMaxTransceiveLength(final int maxTransceiveLength) {
+        this.maxTransceiveLength = maxTransceiveLength;
+    }
+
+    /**
+     * Sets the maximum response data length before the card answers with 61xx and returns the rest with GET RESPONSE, 0 to return all data at once
+     *
+     * @param responseFragmentLength
+     *            maximum data length per response
+     */
+    public void setResponseFragmentLength(final int responseFragmentLength) {
+        this.responseFragmentLength = responseFragmentLength;
+    }
+
+    /**
+     * Lets the card answer 61xx and 6Cxx without secure messaging, like cards that handle them in the transmission layer. The send sequence counter
+     * counts the response all the same.
+     *
+     * @param plainTransmissionStatus
+     *            true for plain 61xx and 6Cxx
+     */
+    public void setPlainTransmissionStatus(final boolean plainTransmissionStatus) {
+        this.plainTransmissionStatus = plainTransmissionStatus;
+    }
+
+    /**
+     * Lets the card answer a READ BINARY beyond the end of the file with 6Cxx and the number of bytes left instead of a short response with 6282
+     *
+     * @param wrongLeAtEndOfFile
+     *            true for 6Cxx at the end of the file
+     */
+    public void setWrongLeAtEndOfFile(final boolean wrongLeAtEndOfFile) {
+        this.wrongLeAtEndOfFile = wrongLeAtEndOfFile;
+    }
+
+    /**
+     * Sets the maximum Ne of READ BINARY. Larger values are answered with 6Cxx if the maximum fits into one byte, otherwise with 6700.
+     *
+     * @param maxResponseDataLength
+     *            maximum response data length
+     */
+    public void setMaxResponseDataLength(final int maxResponseDataLength) {
+        this.maxResponseDataLength = maxResponseDataLength;
+    }
+
+    /**
+     * Lets the given call of {@link #transceive(byte[])} fail with an IOException before the card sees the command
+     *
+     * @param failingCall
+     *            number of the failing call starting with 1, 0 for none
+     */
+    public void setFailingCall(final int failingCall) {
+        this.failingCall = failingCall;
+        transceiveCalls = 0;
+    }
+
+    /**
+     * Lets the given call of {@link #transceive(byte[])} fail with an IOException as if the card left the field. The card loses power, so it has to be
+     * connected again and its secure messaging session starts over.
+     *
+     * @param tagLostCall
+     *            number of the failing call starting with 1, 0 for none
+     */
+    public void setTagLostCall(final int tagLostCall) {
+        this.tagLostCall = tagLostCall;
+        transceiveCalls = 0;
+    }
+
+    /**
+     * Returns the instructions of the plain commands the card executed
+     *
+     * @return copy of the instruction bytes in the order of execution
+     */
+    public List<Integer> getInstructions() {
+        synchronized (instructions) {
+            return new ArrayList<>(instructions);
+        }
+    }
+
+    /**
+     * Returns the content of the transparent EF
+     *
+     * @return file content, not a copy
+     */
+    public byte[] getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the sum of all frame delays
+     *
+     * @return delay in nanoseconds
+     */
+    public long getSimulatedNanos() {
+        return simulatedNanos;
+    }
+
+    /**
+     * Returns the number of frames exchanged
+     *
+     * @return number of frames
+     */
+    public int getFrames() {
+        return frames;
+    }
+
+    @Override
+    public void connect() {
+        connected = true;
+    }
+
+    @Override
+    public void reconnect() {
+        connected = true;
+        Arrays.fill(ssc, (byte) 0);
+    }
+
+    /**
+     * Connects through the tag of a new discovery. A card that has left the field has lost power and its secure messaging session, a card that was
+     * discovered again while it stayed in the field keeps them.
+     */
+    @Override
+    public void reconnect(final Tag newTag) {
+        if (!connected) {
+            Arrays.fill(ssc, (byte) 0);
+        }
+        tag = newTag;
+        connected = true;
+    }
+
+    /**
+     * Returns the tag of the last discovery passed to {@link #reconnect(Tag)}
+     *
+     * @return tag or null
+     */
+    public Tag getTag() {
+        return tag;
+    }
+
+    @Override
+    public void close() {
+        connected = false;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected;
+    }
+
+    @Override
+    public byte[] transceive(final byte[] command) throws IOException {
+        if (!connected) {
+            throw new IOException("Tag was lost.");
+        }
+        if (++transceiveCalls == failingCall) {
+            throw new IOException("Tag was lost.");
+        }
+        if (transceiveCalls == tagLostCall) {
+            connected = false;
+            throw new IOException("Tag was lost.");
+        }
+        if (command.length > maxTransceiveLength) {
+            throw new IOException("Transceive length exceeds supported maximum");
+        }
+        final byte[] response = process(command);
+        delay(command.length + response.length);
+        return response;
+    }
+
+    @Override
+    public int getMaxTransceiveLength() {
+        return maxTransceiveLength;
+    }
+
+    @Override
+    public boolean isExtendedLengthApduSupported() {
+        return maxTransceiveLength > SHORT_LENGTH + 5;
+    }
+
+    @Override
+    public void setTimeout(final int timeout) {
+        this.timeout = timeout;
+    }
+
+    @Override
+    public int getTimeout() {
+        return timeout;
+    }
+
+    @Override
+    public byte[] getHistoricalBytes() {
+        return new byte[0];
+    }
+
+    @Override
+    public byte[] getHiLayerResponse() {
+        return null;
+    }
+
+    private void delay(final int frameBytes) throws IOException {
+        long nanos = frameLatencyNanos;
+        if (bytesPerSecond > 0) {
+            nanos += TimeUnit.SECONDS.toNanos(frameBytes) / bytesPerSecond;
+        }
+        frames++;
+        final long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+        if (timeout > 0 && nanos > timeoutNanos) {
+            // the response comes after the reader gave up
+            simulatedNanos += timeoutNanos;
+            sleep(timeoutNanos);
+            throw new IOException("Transceive timed out");
+        }
+        simulatedNanos += nanos;
+        sleep(nanos);
+    }
+
+    private static void sleep(final long nanos) throws IOException {
+        if (nanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(nanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Transceive interrupted", e);
+            }
+        }
+    }
+
+    private byte[] process(final byte[] commandBytes) {
+        final Command command = Command.parse(commandBytes);
+        if (command == null) {
+            return status(SW_WRONG_LENGTH);
+        }
+        if ((command.cla & SECURE_MESSAGING_COMMAND) != SECURE_MESSAGING_COMMAND) {
+            return execute(command);
+        }
+        try {
+            final Command plainCommand = unwrap(command);
+            if (plainCommand == null) {
+                return endSession();
+            }
+            final byte[] plainResponse = execute(plainCommand);
+            final int sw = ((plainResponse[plainResponse.length - 2] & 0xFF) << 8) & 0xFF00;
+            if (plainTransmissionStatus && plainResponse.length == 2 && (sw == SW_BYTES_REMAINING || sw == SW_WRONG_LE)) {
+                incrementSSC();
+                return plainResponse;
+            }
+            return wrap(plainResponse);
+        } catch (GeneralSecurityException e) {
+            return endSession();
+        }
+    }
+
+    private byte[] execute(final Command command) {
+        if ((command.cla & CLA_COMMAND_CHAINING) != 0) {
+            instructions.add(command.ins);
+            chainedData.write(command.data, 0, command.data.length);
+            return status(SW_SUCCESS);
+        }
+        final byte[] response;
+        if (command.ins == INS_GET_RESPONSE && pendingResponse != null) {
+            instructions.add(command.ins);
+            response = pendingResponse;
+        } else if (chainedData.size() > 0) {
+            // last command of a chain
+            final byte[] previousSegments = chainedData.toByteArray();
+            chainedData.write(command.data, 0, command.data.length);
+            response = executeCommand(new Command(command.cla, command.ins, command.p1, command.p2, chainedData.toByteArray(), command.ne));
+            chainedData.reset();
+            if (response.length == 2 && (response[0] & 0xFF) == SW_WRONG_LE >> 8) {
+                // the chain is kept until its last command is sent again with the right Le
+                chainedData.write(previousSegments, 0, previousSegments.length);
+            }
+        } else {
+            response = executeCommand(command);
+        }
+        pendingResponse = null;
+        final int dataLength = response.length - 2;
+        if (responseFragmentLength == 0 || dataLength <= responseFragmentLength) {
+            return response;
+        }
+        pendingResponse = Arrays.copyOfRange(response, responseFragmentLength, response.length);
+        final byte[] fragment = Arrays.copyOf(response, responseFragmentLength + 2);
+        final int remaining = Math.min(dataLength - responseFragmentLength, SHORT_LENGTH) & 0xFF;
+        fragment[responseFragmentLength] = (byte) (SW_BYTES_REMAINING >> 8);
+        fragment[responseFragmentLength + 1] = (byte) remaining;
+        return fragment;
+    }
+
+    private byte[] executeCommand(final Command command) {
+        final int offset = ((command.p1 & 0x7F) << 8) | command.p2;
+        instructions.add(command.ins);
+        switch (command.ins) {
+            case INS_SELECT:
+                if (command.p2 == SELECT_RETURN_FCP) {
+                    // FCP template with the file size
+                    return new byte[] { 0x62, 0x04, (byte) 0x80, 0x02, (byte) (file.length >> 8), (byte) file.length, (byte) 0x90, 0x00 };
+                }
+                return status(SW_SUCCESS);
+            case INS_MANAGE_CHANNEL:
+                return command.p1 == 0 ? new byte[] { 0x01, (byte) 0x90, 0x00 } : status(SW_SUCCESS);
+            case INS_READ_BINARY:
+                if (command.ne < 0) {
+                    return status(SW_WRONG_LENGTH);
+                }
+                if (command.ne > maxResponseDataLength) {
+                    return maxResponseDataLength < SHORT_LENGTH ? status(SW_WRONG_LE | maxResponseDataLength) : status(SW_WRONG_LENGTH);
+                }
+                if (offset > file.length) {
+                    return status(SW_OFFSET_OUT_OF_RANGE);
+                }
+                final int length = Math.min(command.ne, file.length - offset);
+                if (wrongLeAtEndOfFile && length > 0 && length < command.ne && length < SHORT_LENGTH) {
+                    return status(SW_WRONG_LE | length);
+                }
+                final byte[] response = new byte[length + 2];
+                System.arraycopy(file, offset, response, 0, length);
+                final int sw = length < command.ne ? SW_END_OF_FILE : SW_SUCCESS;
+                response[length] = (byte) (sw >> 8);
+                response[length + 1] = (byte) sw;
+                return response;
+            case INS_INTERNAL_AUTHENTICATE:
+                // answers with the command data
+                if (command.ne > maxResponseDataLength && maxResponseDataLength < SHORT_LENGTH) {
+                    return status(SW_WRONG_LE | maxResponseDataLength);
+                }
+                final int authenticationLength = Math.min(Math.max(command.ne, 0), command.data.length);
+                final byte[] authentication = Arrays.copyOf(command.data, authenticationLength + 2);
+                authentication[authenticationLength] = (byte) (SW_SUCCESS >> 8);
+                authentication[authenticationLength + 1] = (byte) SW_SUCCESS;
+                return authentication;
+            case INS_UPDATE_BINARY:
+                if (offset + command.data.length > file.length) {
+                    return status(SW_OFFSET_OUT_OF_RANGE);
+                }
+                System.arraycopy(command.data, 0, file, offset, command.data.length);
+                return status(SW_SUCCESS);
+            default:
+                return status(SW_INS_NOT_SUPPORTED);
+        }
+    }
+
+    /**
+     * The card ends its secure messaging session after a failed check, the next PACE starts with a new send sequence counter
+     */
+    private byte[] endSession() {
+        Arrays.fill(ssc, (byte) 0);
+        return status(SW_SM_DATA_OBJECTS_INCORRECT);
+    }
+
+    private Command unwrap(final Command command) throws GeneralSecurityException {
+        incrementSSC();
+        final byte[] body = command.data;
+        byte[] data = new byte[0];
+        int ne = -1;
+        int position = 0;
+        while (position < body.length && (body[position] & 0xFF) != DO_8E_TAG) {
+            final int tag = body[position] & 0xFF;
+            int length = body[position + 1] & 0xFF;
+            int valueOffset = position + 2;
+            if (length > 0x80) {
+                final int sizeBytes = length & 0x7F;
+                length = 0;
+                for (int i = 0; i < sizeBytes; i++) {
+                    length = (length << 8) | (body[valueOffset++] & 0xFF);
+                }
+            }
+            if (tag == DO_87_TAG) {
+                data = sessionCipher.decryptUnpadded(ssc, body, valueOffset + 1, length - 1, 0);
+            } else if (tag == DO_97_TAG) {
+                ne = 0;
+                for (int i = 0; i < length; i++) {
+                    ne = (ne << 8) | (body[valueOffset + i] & 0xFF);
+                }
+                if (ne == 0) {
+                    ne = length == 1 ? SHORT_LENGTH : EXTENDED_LENGTH;
+                }
+            }
+            position = valueOffset + length;
+        }
+        if (position + 2 + MAC_SIZE != body.length) {
+            return null;
+        }
+        final byte[] header = new byte[] { (byte) command.cla, (byte) command.ins, (byte) command.p1, (byte) command.p2 };
+        final byte[] mac = sessionMac.calculateMac(ssc, header, body, 0, position);
+        for (int i = 0; i < MAC_SIZE; i++) {
+            if (mac[i] != body[position + 2 + i]) {
+                return null;
+            }
+        }
+        return new Command(command.cla & ~SECURE_MESSAGING_COMMAND, command.ins, command.p1, command.p2, data, ne);
+    }
+
+    private byte[] wrap(final byte[] plainResponse) throws GeneralSecurityException {
+        incrementSSC();
+        final int dataLength = plainResponse.length - 2;
+        final int paddedLength = dataLength > 0 ? TlvWriter.getPaddedLength(dataLength, BLOCK_SIZE) : 0;
+        final int dataObjectLength = dataLength > 0 ? TlvWriter.getEncodedLength(1 + paddedLength) : 0;
+        final TlvWriter writer = new TlvWriter(dataObjectLength + TlvWriter.getEncodedLength(2) + TlvWriter.getEncodedLength(MAC_SIZE) + 2);
+        if (dataLength > 0) {
+            writer.writeTag(DO_87_TAG);
+            writer.writeLength(1 + paddedLength);
+            writer.writeByte(1);
+            final byte[] data = new byte[dataLength];
+            System.arraycopy(plainResponse, 0, data, 0, dataLength);
+            final int offset = writer.writePadded(data, BLOCK_SIZE);
+            sessionCipher.encrypt(ssc, writer.getBuffer(), offset, paddedLength, writer.getBuffer(), offset);
+        }
+        writer.write(DO_99_TAG, plainResponse, dataLength, 2);
+        final byte[] mac = sessionMac.calculateMac(ssc, null, writer.getBuffer(), 0, writer.getPosition());
+        writer.write(DO_8E_TAG, mac, 0, MAC_SIZE);
+        writer.write(plainResponse, dataLength, 2);
+        return writer.getBuffer();
+    }
+
+    private void incrementSSC() {
+        for (int i = ssc.length - 1; i >= 0; i--) {
+            ssc[i]++;
+            if (ssc[i] != 0) {
+                break;
+            }
+        }
+    }
+
+    private static byte[] status(final int sw) {
+        return new byte[] { (byte) (sw >> 8), (byte) sw };
+    }
+
+    /**
+     * Decoded command APDU, ne is -1 if the command has no Le field
+     */
+    private static final class Command {
+        private final int cla;
+        private final int ins;
+        private final int p1;
+        private final int p2;
+        private final byte[] data;
+        private final int ne;
+
+        private Command(final int cla, final int ins, final int p1, final int p2, final byte[] data, final int ne) {
+            this.cla = cla;
+            this.ins = ins;
+            this.p1 = p1;
+            this.p2 = p2;
+            this.data = data;
+            this.ne = ne;
+        }
+
+        private static Command parse(final byte[] apdu) {
+            if (apdu.length < 4) {
+                return null;
+            }
+            int lc = 0;
+            int dataOffset = 4;
+            int ne = -1;
+            if (apdu.length == 5) {
+                ne = apdu[4] == 0 ? SHORT_LENGTH : apdu[4] & 0xFF;
+            } else if (apdu.length > 5 && apdu[4] != 0) {
+                lc = apdu[4] & 0xFF;
+                dataOffset = 5;
+                if (apdu.length == dataOffset + lc + 1) {
+                    ne = apdu[apdu.length - 1] == 0 ? SHORT_LENGTH : apdu[apdu.length - 1] & 0xFF;
+                } else if (apdu.length != dataOffset + lc) {
+                    return null;
+                }
+            } else if (apdu.length == 7) {
+                ne = ((apdu[5] & 0xFF) << 8) | (apdu[6] & 0xFF);
+                ne = ne == 0 ? EXTENDED_LENGTH : ne;
+            } else if (apdu.length > 7) {
+                lc = ((apdu[5] & 0xFF) << 8) | (apdu[6] & 0xFF);
+                dataOffset = 7;
+                if (apdu.length == dataOffset + lc + 2) {
+                    ne = ((apdu[apdu.length - 2] & 0xFF) << 8) | (apdu[apdu.length - 1] & 0xFF);
+                    ne = ne == 0 ? EXTENDED_LENGTH : ne;
+                } else if (apdu.length != dataOffset + lc) {
+                    return null;
+                }
+            } else if (apdu.length != 4) {
+                return null;
+            }
+            final byte[] data = new byte[lc];
+            System.arraycopy(apdu, dataOffset, data, 0, lc);
+            return new Command(apdu[0] & 0xFF, apdu[1] & 0xFF, apdu[2] & 0xFF, apdu[3] & 0xFF, data, ne);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.cardreader.provider.nfc.metrics;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test {@link AdaptiveTimeout}
+ *
+ */
+public class AdaptiveTimeoutTest {
+
+    private static final String CARD_TYPE = "8031b052020364";
+    private static final int INS_READ_BINARY = 0xB0;
+    private static final int INS_PSO = 0x2A;
+    private static final int SHORT_FRAME = 40;
+    private static final int LONG_FRAME = 4200;
+
+    @Test
+    public void fallbackShouldBeUsedUntilEnoughRoundTrips() {
+        AdaptiveTimeout timeout = new AdaptiveTimeout(5000);
+        Assert.assertEquals(5000, timeout.getTimeoutMillis(CARD_TYPE, INS_READ_BINARY, SHORT_FRAME));
+        record(timeout, INS_READ_BINARY, 999, 40);
+        Assert.assertEquals(5000, timeout.getTimeoutMillis(CARD_TYPE, INS_READ_BINARY, SHORT_FRAME));
+        record(timeout, INS_READ_BINARY, 1, 40);
+        Assert.assertEquals(500, timeout.getTimeoutMillis(CARD_TYPE, INS_READ_BINARY, SHORT_FRAME));
+        Assert.assertEquals(5000, timeout.getTimeoutMillis("other", INS_READ_BINARY, SHORT_FRAME));
+    }
+
+    @Test
+    public void slowInstructionShouldGetLongerTimeout() {
+        AdaptiveTimeout timeout = new AdaptiveTimeout(5000);
+        record(timeout, INS_READ_BINARY, 1000, 40);
+        record(timeout, INS_PSO, 1000, 4000);
+        Assert.assertEquals(500, timeout.getTimeoutMillis(CARD_TYPE, INS_READ_BINARY, SHORT_FRAME));
+        int psoTimeout = timeout.getTimeoutMillis(CARD_TYPE, INS_PSO, SHORT_FRAME);
+        Assert.assertTrue(psoTimeout > 6000);
+        Assert.assertTrue(psoTimeout < 6600);
+    }
+
+    @Test
+    public void longFrameShouldGetOwnTimeout() {
+        AdaptiveTimeout timeout = new AdaptiveTimeout(5000);
+        record(timeout, INS_READ_BINARY, 1000, 40);
+        Assert.assertEquals(5000, timeout.getTimeoutMillis(CARD_TYPE, INS_READ_BINARY, LONG_FRAME));
+        record(timeout, INS_READ_BINARY, LONG_FRAME, 1000, 600);
+        Assert.assertEquals(500, timeout.getTimeoutMillis(CARD_TYPE, INS_READ_BINARY, SHORT_FRAME));
+        int longTimeout = timeout.getTimeoutMillis(CARD_TYPE, INS_READ_BINARY, LONG_FRAME);
+        Assert.assertTrue(longTimeout > 1050);
+        Assert.assertTrue(longTimeout < 1250);
+        // frames of the same size class share the timeout
+        Assert.assertEquals(longTimeout, timeout.getTimeoutMillis(CARD_TYPE, INS_READ_BINARY, LONG_FRAME + 100));
+    }
+
+    @Test
+    public void failureShouldDoubleTimeout() {
+        AdaptiveTimeout timeout = new AdaptiveTimeout(5000);
+        record(timeout, INS_READ_BINARY, 1000, 40);
+        timeout.recordFailure(CARD_TYPE, INS_READ_BINARY, SHORT_FRAME);
+        Assert.assertEquals(1000, timeout.getTimeoutMillis(CARD_TYPE, INS_READ_BINARY, SHORT_FRAME));
+        timeout.recordFailure(CARD_TYPE, INS_READ_BINARY, SHORT_FRAME);
+        Assert.assertEquals(2000, timeout.getTimeoutMillis(CARD_TYPE, INS_READ_BINARY, SHORT_FRAME));
+        record(timeout, INS_READ_BINARY, 1, 40);
+        Assert.assertEquals(1000, timeout.getTimeoutMillis(CARD_TYPE, INS_READ_BINARY, SHORT_FRAME));
+        // a round trip longer than the learned timeout keeps the backed-off one
+        record(timeout, INS_READ_BINARY, 1, 800);
+        Assert.assertEquals(1000, timeout.getTimeoutMillis(CARD_TYPE, INS_READ_BINARY, SHORT_FRAME));
+    }
+
+    @Test
+    public void savedStatisticsShouldBeLoaded() throws IOException {
+        AdaptiveTimeout timeout = new AdaptiveTimeout(5000);
+        record(timeout, INS_PSO, 1000, 1000);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        timeout.writeTo(out);
+
+        AdaptiveTimeout loaded = new AdaptiveTimeout(5000);
+        loaded.readFrom(new ByteArrayInputStream(out.toByteArray()));
+        // the restored round trips are known with the precision of their bucket
+        int expected = timeout.getTimeoutMillis(CARD_TYPE, INS_PSO, SHORT_FRAME);
+        Assert.assertEquals(expected, loaded.getTimeoutMillis(CARD_TYPE, INS_PSO, SHORT_FRAME), expected / 32.0);
+        Assert.assertEquals(5000, loaded.getTimeoutMillis(CARD_TYPE, INS_READ_BINARY, SHORT_FRAME));
+    }
+
+    @Test(expected = IOException.class)
+    public void invalidDataShouldNotBeLoaded() throws IOException {
+        new AdaptiveTimeout(5000).readFrom(new ByteArrayInputStream(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 }));
+        Assert.fail("Exception erwartet, aber nicht bekommen.");
+    }
+
+    private static void record(final AdaptiveTimeout timeout, final int ins, final int count, final long millis) {
+        record(timeout, ins, SHORT_FRAME, count, millis);
+    }
+
+    private static void record(final AdaptiveTimeout timeout, final int ins, final int frameLength, final int count, final long millis) {
+        for (int i = 0; i < count; i++) {
+            timeout.recordRoundTrip(CARD_TYPE, ins, frameLength, TimeUnit.MILLISECONDS.toNanos(millis));
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.cardreader.provider.nfc.metrics;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test {@link ApduTraceBuffer}
+ *
+ */
+public class ApduTraceBufferTest {
+
+    @Test
+    public void framesShouldBeWrittenInOrder() throws IOException {
+        ApduTraceBuffer trace = new ApduTraceBuffer(1024);
+        trace.recordCommand(new byte[] { 0x00, (byte) 0xB0, 0x00, 0x00, 0x10 });
+        trace.recordResponse(new byte[] { (byte) 0x90, 0x00 });
+
+        List<byte[]> frames = readFrames(trace, ApduTraceBuffer.COMMAND, ApduTraceBuffer.RESPONSE);
+        Assert.assertEquals(2, trace.getFrameCount());
+        Assert.assertArrayEquals(new byte[] { 0x00, (byte) 0xB0, 0x00, 0x00, 0x10 }, frames.get(0));
+        Assert.assertArrayEquals(new byte[] { (byte) 0x90, 0x00 }, frames.get(1));
+    }
+
+    @Test
+    public void oldestFramesShouldBeDroppedWhenFull() throws IOException {
+        ApduTraceBuffer trace = new ApduTraceBuffer(3 * (ApduTraceBuffer.HEADER_SIZE + 10) + 5);
+        for (int i = 0; i < 10; i++) {
+            byte[] frame = new byte[10];
+            frame[0] = (byte) i;
+            trace.recordCommand(frame);
+        }
+
+        List<byte[]> frames = readFrames(trace, ApduTraceBuffer.COMMAND, ApduTraceBuffer.COMMAND, ApduTraceBuffer.COMMAND);
+        Assert.assertEquals(3, trace.getFrameCount());
+        Assert.assertEquals(7, frames.get(0)[0]);
+        Assert.assertEquals(8, frames.get(1)[0]);
+        Assert.assertEquals(9, frames.get(2)[0]);
+    }
+
+    @Test
+    public void largeFrameShouldBeTruncated() throws IOException {
+        ApduTraceBuffer trace = new ApduTraceBuffer(ApduTraceBuffer.HEADER_SIZE + 100);
+        trace.recordResponse(new byte[500]);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        trace.writeTo(out);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+        in.readLong();
+        Assert.assertEquals(ApduTraceBuffer.RESPONSE, in.readByte());
+        Assert.assertEquals(500, in.readInt());
+        Assert.assertEquals(100, in.readInt());
+        Assert.assertEquals(100, in.available());
+    }
+
+    @Test
+    public void clearShouldRemoveFrames() throws IOException {
+        ApduTraceBuffer trace = new ApduTraceBuffer(256);
+        trace.recordCommand(new byte[4]);
+        trace.clear();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        trace.writeTo(out);
+        Assert.assertEquals(0, trace.getFrameCount());
+        Assert.assertEquals(0, out.size());
+    }
+
+    private static List<byte[]> readFrames(final ApduTraceBuffer trace, final int... directions) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        trace.writeTo(out);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+        List<byte[]> frames = new ArrayList<>();
+        for (int direction : directions) {
+            in.readLong();
+            Assert.assertEquals(direction, in.readByte());
+            int length = in.readInt();
+            Assert.assertEquals(length, in.readInt());
+            byte[] frame = new byte[length];
+            in.readFully(frame);
+            frames.add(frame);
+        }
+        Assert.assertEquals(0, in.available());
+        return frames;
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.cardreader.provider.nfc.metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.gematik.ti.utils.codec.Hex;
+
+/**
+ * Test {@link ApduTraceFile}
+ *
+ */
+public class ApduTraceFileTest {
+
+    private static final SecretKey DEVICE_KEY = new SecretKeySpec(Hex.decode("000102030405060708090A0B0C0D0E0F"), "AES");
+    private static final byte[] PLAIN_COMMAND = Hex.decode("00A4040C07D2760001448000");
+    private static final byte[] SM_COMMAND = Hex.decode("0CB000000D970200008E08A1A2A3A4A5A6A7A800");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void recordsShouldSurviveReopening() throws IOException {
+        File path = folder.newFile();
+        try (ApduTraceFile traceFile = new ApduTraceFile(path, 4096, DEVICE_KEY)) {
+            traceFile.append(ApduTraceBuffer.COMMAND, 0, false, 0, PLAIN_COMMAND);
+            traceFile.append(ApduTraceBuffer.RESPONSE, 0, false, 1234, Hex.decode("9000"));
+        }
+
+        try (ApduTraceFile traceFile = new ApduTraceFile(path, 4096, DEVICE_KEY)) {
+            List<ApduTraceRecord> records = traceFile.readRecords();
+            Assert.assertEquals(2, records.size());
+            Assert.assertArrayEquals(PLAIN_COMMAND, records.get(0).getData());
+            Assert.assertEquals(ApduTraceBuffer.RESPONSE, records.get(1).getDirection());
+            Assert.assertEquals(1234, records.get(1).getDurationNanos());
+            Assert.assertArrayEquals(Hex.decode("9000"), records.get(1).getData());
+        }
+    }
+
+    @Test
+    public void secureMessagingFramesShouldBeEncrypted() throws IOException {
+        File path = folder.newFile();
+        try (ApduTraceFile traceFile = new ApduTraceFile(path, 4096, DEVICE_KEY)) {
+            traceFile.append(ApduTraceBuffer.COMMAND, 1, true, 0, SM_COMMAND);
+            Assert.assertArrayEquals(SM_COMMAND, traceFile.readRecords().get(0).getData());
+            Assert.assertEquals(1, traceFile.readRecords().get(0).getChannelNo());
+        }
+
+        try (ApduTraceFile traceFile = new ApduTraceFile(path, 4096, null)) {
+            ApduTraceRecord record = traceFile.readRecords().get(0);
+            Assert.assertNull(record.getData());
+            Assert.assertEquals(SM_COMMAND.length, record.getFrameLength());
+        }
+    }
+
+    @Test
+    public void secureMessagingFramesShouldBeOmittedWithoutDeviceKey() throws IOException {
+        try (ApduTraceFile traceFile = new ApduTraceFile(folder.newFile(), 4096, null)) {
+            traceFile.append(ApduTraceBuffer.COMMAND, 0, true, 0, SM_COMMAND);
+            ApduTraceRecord record = traceFile.readRecords().get(0);
+            Assert.assertNull(record.getData());
+            Assert.assertEquals(SM_COMMAND.length, record.getFrameLength());
+        }
+    }
+
+    @Test
+    public void oldestRecordsShouldBeDroppedWhenFull() throws IOException {
+        try (ApduTraceFile traceFile = new ApduTraceFile(folder.newFile(), 200, null)) {
+            for (int i = 0; i < 20; i++) {
+                byte[] frame = new byte[30];
+                frame[0] = (byte) i;
+                traceFile.append(ApduTraceBuffer.COMMAND, 0, false, 0, frame);
+            }
+            List<ApduTraceRecord> records = traceFile.readRecords();
+            Assert.assertEquals(3, records.size());
+            Assert.assertEquals(17, records.get(0).getData()[0]);
+            Assert.assertEquals(19, records.get(2).getData()[0]);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.cardreader.provider.nfc.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test {@link LatencyHistogram}
+ *
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketShouldContainValue() {
+        for (long value = 0; value < 1_000_000; value += 7) {
+            int index = LatencyHistogram.getBucketIndex(value);
+            Assert.assertTrue(value <= LatencyHistogram.getHighestValueOfBucket(index));
+            Assert.assertTrue(index == 0 || value > LatencyHistogram.getHighestValueOfBucket(index - 1));
+        }
+    }
+
+    @Test
+    public void bucketShouldBeWithinPrecision() {
+        long value = 123_456_789L;
+        long highest = LatencyHistogram.getHighestValueOfBucket(LatencyHistogram.getBucketIndex(value));
+        Assert.assertTrue(highest - value <= value / LatencyHistogram.SUB_BUCKET_COUNT);
+    }
+
+    @Test
+    public void largeValuesShouldUseLastBucket() {
+        Assert.assertEquals(LatencyHistogram.BUCKET_COUNT - 1, LatencyHistogram.getBucketIndex(Long.MAX_VALUE));
+        Assert.assertEquals(LatencyHistogram.BUCKET_COUNT - 1, LatencyHistogram.getBucketIndex(LatencyHistogram.MAX_TRACKABLE_VALUE));
+    }
+
+    @Test
+    public void snapshotShouldReturnPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(i));
+        }
+
+        HistogramSnapshot snapshot = histogram.getSnapshot();
+        Assert.assertEquals(1000, snapshot.getCount());
+        Assert.assertEquals(TimeUnit.MICROSECONDS.toNanos(1000), snapshot.getMax());
+        Assert.assertEquals(500_500.0, snapshot.getMean(), 0.001);
+        assertWithinPrecision(TimeUnit.MICROSECONDS.toNanos(500), snapshot.getValueAtPercentile(50));
+        assertWithinPrecision(TimeUnit.MICROSECONDS.toNanos(990), snapshot.getValueAtPercentile(99));
+        Assert.assertEquals(snapshot.getMax(), snapshot.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void emptySnapshotShouldReturnZero() {
+        HistogramSnapshot snapshot = new LatencyHistogram().getSnapshot();
+        Assert.assertEquals(0, snapshot.getCount());
+        Assert.assertEquals(0, snapshot.getValueAtPercentile(99.9));
+        Assert.assertEquals(0.0, snapshot.getMean(), 0.0);
+    }
+
+    @Test
+    public void concurrentRecordingShouldNotLoseValues() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            futures.add(executor.submit(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    histogram.record(i);
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get(10, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+
+        Assert.assertEquals(40_000, histogram.getCount());
+        Assert.assertEquals(40_000, histogram.getSnapshot().getCount());
+        Assert.assertEquals(9_999, histogram.getSnapshot().getMax());
+    }
+
+    private static void assertWithinPrecision(final long expected, final long actual) {
+        Assert.assertTrue("expected " + expected + " but was " + actual, Math.abs(actual - expected) <= expected / LatencyHistogram.SUB_BUCKET_COUNT);
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.cardreader.provider.nfc.security;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.gematik.ti.openhealthcard.events.response.entities.PaceKey;
+import de.gematik.ti.utils.codec.Hex;
+
+/**
+ * Test {@link PaceKeyCache}
+ *
+ */
+public class PaceKeyCacheTest {
+
+    private static final PaceKey PACE_KEY = new PaceKey(Hex.decode("68406B4162100563D9C901A6154D2901"), Hex.decode("73FF268784F72AF833FDC9464049AFC9"));
+    private static final String CARD_ID = PaceKeyCache.getCardId(Hex.decode("01020304"), Hex.decode("8031"));
+
+    @Test
+    public void sessionShouldBeTakenOnce() {
+        PaceKeyCache cache = new PaceKeyCache(30, TimeUnit.SECONDS);
+        byte[] ssc = new byte[16];
+        ssc[15] = 6;
+        cache.put(CARD_ID, PACE_KEY, ssc);
+        ssc[15] = 0;
+
+        PaceKeyCache.Session session = cache.take(CARD_ID);
+        Assert.assertSame(PACE_KEY, session.getPaceKey());
+        Assert.assertEquals(6, session.getSendSequenceCounter()[15]);
+        Assert.assertNull(cache.take(CARD_ID));
+    }
+
+    @Test
+    public void expiredSessionShouldNotBeReturned() throws InterruptedException {
+        PaceKeyCache cache = new PaceKeyCache(1, TimeUnit.MILLISECONDS);
+        cache.put(CARD_ID, PACE_KEY, new byte[16]);
+        Thread.sleep(5);
+        Assert.assertNull(cache.take(CARD_ID));
+    }
+
+    @Test
+    public void evictedSessionShouldNotBeReturned() {
+        PaceKeyCache cache = new PaceKeyCache(30, TimeUnit.SECONDS);
+        cache.put(CARD_ID, PACE_KEY, new byte[16]);
+        cache.evict(CARD_ID);
+        Assert.assertNull(cache.take(CARD_ID));
+    }
+
+    @Test
+    public void otherCardShouldNotGetSession() {
+        PaceKeyCache cache = new PaceKeyCache(30, TimeUnit.SECONDS);
+        cache.put(CARD_ID, PACE_KEY, new byte[16]);
+        Assert.assertNull(cache.take(PaceKeyCache.getCardId(Hex.decode("01020305"), Hex.decode("8031"))));
+        Assert.assertNull(cache.take(PaceKeyCache.getCardId(Hex.decode("01020304"), null)));
+    }
+}
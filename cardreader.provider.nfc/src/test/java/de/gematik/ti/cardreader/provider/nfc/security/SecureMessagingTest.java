@@ -121,6 +121,19 @@ public class SecureMessagingTest {
         Assert.assertEquals(Hex.encodeHexString(expectedEncryptedApdu), Hex.encodeHexString(encryptedCommandApdu.getBytes()));
     }
 
+    @Test
+    public void expectedLengthShouldNotLeakIntoNextCommand() throws IOException {
+        SecureMessaging secureMessaging = new SecureMessaging(paceKey);
+        secureMessaging.encrypt(new CommandApdu(0x01, 0x02, 0x03, 0x04, 257));
+
+        byte[] cmdData = new byte[] { 0x05, 0x06, 0x07, 0x08, 0x09, 0x0a };
+        encryptedCommandApdu = secureMessaging.encrypt(new CommandApdu(0x01, 0x02, 0x03, 0x04, cmdData));
+        byte[] encryptedBytes = encryptedCommandApdu.getBytes();
+        Assert.assertNotEquals("short APDU expected", 0, encryptedBytes[4]);
+        Assert.assertEquals(0, encryptedBytes[encryptedBytes.length - 1]);
+        Assert.assertEquals(encryptedBytes[4] + 6, encryptedBytes.length);
+    }
+
     // test Case 1: DO99|DO8E|SW1SW2
     @Test
     public void shouldDecryptDo99Apdu() throws IOException, GeneralSecurityException {
@@ -141,6 +154,28 @@ public class SecureMessagingTest {
         Assert.assertEquals(Hex.encodeHexString(expectedDecryptedApdu.getBytes()), Hex.encodeHexString(decryptedApdu.getBytes()));
     }
 
+    // test Case 3: DO81|DO99|DO8E|SW1SW2
+    @Test
+    public void shouldDecryptDo81Apdu() throws IOException, GeneralSecurityException {
+        SecureMessaging secureMessaging = new SecureMessaging(paceKey);
+        ResponseApdu apduToDecrypt = new ResponseApdu(Hex.decode("81050102030405990262828E08C1A9DBBC4D3016146282"));
+        ResponseApdu decryptedApdu = secureMessaging.decrypt(apduToDecrypt);
+        ResponseApdu expectedDecryptedApdu = new ResponseApdu(Hex.decode("01020304056282"));
+        Assert.assertEquals(Hex.encodeHexString(expectedDecryptedApdu.getBytes()), Hex.encodeHexString(decryptedApdu.getBytes()));
+    }
+
+    @Test
+    public void decryptShouldFailWithTruncatedDataObject() {
+        SecureMessaging secureMessaging = new SecureMessaging(paceKey);
+        ResponseApdu apduToDecrypt = new ResponseApdu(Hex.decode("8781FF01496c26d36306679609665a385c54db37990290008E08B7E9ED2A0C89FB3A9000"));
+        try {
+            secureMessaging.decrypt(apduToDecrypt);
+            Assert.fail("Decrypting an APDU with a data object exceeding the response should fail.");
+        } catch (Exception e) {
+            // expected
+        }
+    }
+
     @Test
     public void decryptShouldFailWithMissingStatusBytes() {
         SecureMessaging secureMessaging = new SecureMessaging(paceKey);
@@ -210,4 +245,21 @@ public class SecureMessagingTest {
         byte[] expectedDecryptedAPDU = new byte[] { (byte) 0x90, 0x00 };
         Assert.assertEquals(Hex.encodeHexString(expectedDecryptedAPDU), Hex.encodeHexString(decryptedAPDU.getBytes()));
     }
+    @Test
+    public void maxDataLengthShouldLeaveRoomForSecureMessaging() {
+        Assert.assertEquals(223, SecureMessaging.getMaxCommandDataLength(261));
+        Assert.assertEquals(223, SecureMessaging.getMaxResponseDataLength(258));
+        Assert.assertEquals(65247, SecureMessaging.getMaxResponseDataLength(65279));
+        Assert.assertEquals(65519, SecureMessaging.getMaxResponseDataLength(70000));
+        Assert.assertEquals(0, SecureMessaging.getMaxCommandDataLength(20));
+    }
+
+    @Test
+    public void secureMessagingOnFurtherLogicalChannelShouldKeepChannelNumber() throws IOException {
+        SecureMessaging secureMessaging = new SecureMessaging(paceKey);
+        // logical channel 5 in the further interindustry class
+        commandApdu = new CommandApdu(0x41, 0xB0, 0x00, 0x00, 16);
+        encryptedCommandApdu = secureMessaging.encrypt(commandApdu);
+        Assert.assertEquals(0x61, encryptedCommandApdu.getCla());
+    }
 }
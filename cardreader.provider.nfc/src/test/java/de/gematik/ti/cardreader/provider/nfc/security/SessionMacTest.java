@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.cardreader.provider.nfc.security;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.spongycastle.crypto.macs.CMac;
+
+import de.gematik.ti.cardreader.provider.nfc.security.tagobjects.MacObject;
+import de.gematik.ti.utils.codec.Hex;
+import de.gematik.ti.utils.primitives.Bytes;
+
+/**
+ * Test {@link SessionMac}
+ *
+ */
+public class SessionMacTest {
+
+    private static final int BLOCK_SIZE = 16;
+    private final byte[] keyMac = Hex.decode("73FF268784F72AF833FDC9464049AFC9");
+
+    @Test
+    public void reusedEngineShouldMatchFreshCMac() {
+        SessionMac sessionMac = new SessionMac(keyMac);
+        Random random = new Random(1);
+        byte[] ssc = new byte[BLOCK_SIZE];
+        byte[] header = new byte[] { 0x0C, (byte) 0xB0, 0x00, 0x00 };
+
+        for (int length : new int[] { 0, 1, 15, 16, 17, 31, 32, 255, 1024 }) {
+            byte[] data = new byte[length];
+            random.nextBytes(data);
+            ssc[BLOCK_SIZE - 1]++;
+
+            Assert.assertEquals(Hex.encodeHexString(calculateWithFreshCMac(ssc, header, data)),
+                    Hex.encodeHexString(sessionMac.calculateMac(ssc, header, data, 0, data.length)));
+            Assert.assertEquals(Hex.encodeHexString(calculateWithFreshCMac(ssc, null, data)),
+                    Hex.encodeHexString(sessionMac.calculateMac(ssc, null, data, 0, data.length)));
+        }
+    }
+
+    @Test
+    public void shouldRespectOffset() {
+        SessionMac sessionMac = new SessionMac(keyMac);
+        byte[] ssc = new byte[BLOCK_SIZE];
+        byte[] data = Hex.decode("990290008E08");
+        byte[] embedded = Hex.decode("FFFF990290008E08FF");
+
+        Assert.assertArrayEquals(sessionMac.calculateMac(ssc, null, data, 0, data.length), sessionMac.calculateMac(ssc, null, embedded, 2, data.length));
+    }
+
+    private byte[] calculateWithFreshCMac(final byte[] ssc, final byte[] header, final byte[] data) {
+        CMac cmac = MacObject.getCMac(ssc, keyMac);
+        if (header != null) {
+            byte[] paddedHeader = Bytes.padData(header, BLOCK_SIZE);
+            cmac.update(paddedHeader, 0, paddedHeader.length);
+        }
+        if (data.length > 0) {
+            byte[] paddedData = Bytes.padData(data, BLOCK_SIZE);
+            cmac.update(paddedData, 0, paddedData.length);
+        }
+        byte[] mac = new byte[BLOCK_SIZE];
+        cmac.doFinal(mac, 0);
+        return Bytes.copyByteArray(mac, 0, 8);
+    }
+}